@@ -0,0 +1,12 @@
+package com.cosmicdoc.opdmanagement.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enables @Scheduled background jobs (pharmacy expiry alerts, maintenance sweeps)
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
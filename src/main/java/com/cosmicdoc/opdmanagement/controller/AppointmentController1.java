@@ -1,8 +1,15 @@
 package com.cosmicdoc.opdmanagement.controller;
 
 import com.cosmicdoc.opdmanagement.dto.AppointmentDTO;
+import com.cosmicdoc.opdmanagement.dto.QueueAdvanceDTO;
+import com.cosmicdoc.opdmanagement.model.AppointmentCalendar;
+import com.cosmicdoc.opdmanagement.service.AppointmentAutoCancelJob;
 import com.cosmicdoc.opdmanagement.service.AppointmentService;
+import com.cosmicdoc.opdmanagement.service.AppointmentTimeZoneMigration;
+import com.cosmicdoc.opdmanagement.service.AppointmentWriteMetrics;
+import com.cosmicdoc.opdmanagement.service.TokenInitializationJob;
 import com.cosmicdoc.opdmanagement.service.TokenService;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
@@ -10,26 +17,43 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import jakarta.validation.Valid;
+import java.time.DateTimeException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.Comparator;
 
 @RestController
 @RequestMapping("/api/appointments")
 public class AppointmentController1 {
     
+    private static final int MAX_GRID_DAYS = 62;
+    
     private final AppointmentService appointmentService;
     private final TokenService tokenService;
+    private final AppointmentWriteMetrics appointmentWriteMetrics;
+    private final TokenInitializationJob tokenInitializationJob;
+    private final AppointmentAutoCancelJob appointmentAutoCancelJob;
+    private final AppointmentTimeZoneMigration appointmentTimeZoneMigration;
+    private final ClinicClock clinicClock;
     
     @Autowired
-    public AppointmentController1(AppointmentService appointmentService, TokenService tokenService) {
+    public AppointmentController1(AppointmentService appointmentService, TokenService tokenService,
+                                  AppointmentWriteMetrics appointmentWriteMetrics,
+                                  TokenInitializationJob tokenInitializationJob,
+                                  AppointmentAutoCancelJob appointmentAutoCancelJob,
+                                  AppointmentTimeZoneMigration appointmentTimeZoneMigration,
+                                  ClinicClock clinicClock) {
         this.appointmentService = appointmentService;
         this.tokenService = tokenService;
+        this.appointmentWriteMetrics = appointmentWriteMetrics;
+        this.tokenInitializationJob = tokenInitializationJob;
+        this.appointmentAutoCancelJob = appointmentAutoCancelJob;
+        this.appointmentTimeZoneMigration = appointmentTimeZoneMigration;
+        this.clinicClock = clinicClock;
     }
     
     @GetMapping
@@ -70,6 +94,16 @@ public class AppointmentController1 {
         return ResponseEntity.ok(appointments);
     }
     
+    @GetMapping("/calendar")
+    public ResponseEntity<AppointmentCalendar> getMonthCalendar(
+            @RequestParam int year,
+            @RequestParam int month) {
+        if (month < 1 || month > 12) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(appointmentService.getMonthCalendar(year, month));
+    }
+
     @GetMapping("/month")
     public ResponseEntity<List<AppointmentDTO>> getAppointmentsForMonth(
             @RequestParam int year,
@@ -83,7 +117,7 @@ public class AppointmentController1 {
         // Get appointment date or use today if not specified
         LocalDate appointmentDate = appointmentDTO.getAppointmentDateTime() != null 
             ? appointmentDTO.getAppointmentDateTime().toLocalDate() 
-            : LocalDate.now();
+            : clinicClock.today();
         
         // Check if patient already has an appointment on this date
         if (appointmentService.hasAppointmentOnDate(appointmentDTO.getPatientId(), appointmentDate)) {
@@ -102,7 +136,7 @@ public class AppointmentController1 {
         appointmentDTO.setTokenNumber(tokenNumber);
         appointmentDTO.setTokenStatus("WAITING");
         // Store the token time as a formatted string
-        appointmentDTO.setTokenTime(LocalDateTime.now().format(java.time.format.DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        appointmentDTO.setTokenTime(clinicClock.now().format(java.time.format.DateTimeFormatter.ISO_LOCAL_DATE_TIME));
         
         // Set token order to match token number for consistent sequencing
         appointmentDTO.setTokenOrder(tokenNumber);
@@ -133,7 +167,7 @@ public class AppointmentController1 {
      */
     @GetMapping("/token/waiting-count/{doctorId}")
     public ResponseEntity<Map<String, Object>> getWaitingTokenCount(@PathVariable String doctorId) {
-        LocalDate today = LocalDate.now();
+        LocalDate today = clinicClock.today();
         List<AppointmentDTO> appointments = appointmentService.getAppointmentsByDoctorId(doctorId);
         
         long waitingCount = appointments.stream()
@@ -171,6 +205,17 @@ public class AppointmentController1 {
         return ResponseEntity.ok(nextToken);
     }
     
+    /**
+     * Finish the current token (complete, or skip with skip=true) and move to next;
+     * returns both the finished and the newly current token
+     */
+    @PostMapping("/token/advance/{doctorId}")
+    public ResponseEntity<QueueAdvanceDTO> advanceQueue(
+            @PathVariable String doctorId,
+            @RequestParam(defaultValue = "false") boolean skip) {
+        return ResponseEntity.ok(tokenService.advanceQueue(doctorId, skip));
+    }
+    
     /**
      * Update a token status directly with time-based validation
      * Allows status changes up to 2 days after appointment time
@@ -206,66 +251,23 @@ public class AppointmentController1 {
     /**
      * Validates if status change is allowed based on appointment time
      * Rules:
-     * - Allow status changes up to 2 days after appointment time
-     * - After 2 days, automatically set status to 'cancelled' and reject other changes
+     * - Allow status changes until app.appointments.auto-cancel.after-hours (48 by default) after appointment time
+     * - After that only cancellation is allowed; AppointmentAutoCancelJob cancels such appointments
      * @param appointment The appointment to validate
      * @param requestedStatus The status change being requested
      * @return ResponseEntity with error if validation fails, null if validation passes
      */
     private ResponseEntity<AppointmentDTO> validateStatusChangeTime(AppointmentDTO appointment, String requestedStatus) {
-        try {
-            // Get appointment date and time (already a LocalDateTime object)
-            LocalDateTime appointmentDateTime = appointment.getAppointmentDateTime();
-            if (appointmentDateTime == null) {
-                // If no appointment time is set, allow the change
-                return null;
-            }
-            
-            LocalDateTime now = LocalDateTime.now();
-            LocalDateTime twoDaysAfterAppointment = appointmentDateTime.plusDays(2);
-            
-            // Log for debugging
-            System.out.println("Appointment time: " + appointmentDateTime);
-            System.out.println("Current time: " + now);
-            System.out.println("Two days after appointment: " + twoDaysAfterAppointment);
-            System.out.println("Requested status: " + requestedStatus);
-            
-            // Check if current time is more than 2 days after appointment
-            if (now.isAfter(twoDaysAfterAppointment)) {
-                // More than 2 days have passed - automatically set to cancelled
-                System.out.println("More than 2 days have passed. Auto-setting to CANCELLED.");
-                
-                // If they're trying to set it to cancelled, allow it
-                if ("CANCELLED".equalsIgnoreCase(requestedStatus)) {
-                    return null; // Allow the cancellation
-                }
-                
-                // For any other status change, auto-set to cancelled and return the cancelled appointment
-                appointment.setStatus("CANCELLED");
-                appointment.setTokenStatus("CANCELLED");
-                AppointmentDTO cancelledAppointment = appointmentService.updateAppointment(appointment.getAppointmentId(), appointment);
-                
-                // Return error response indicating auto-cancellation
-                Map<String, Object> errorResponse = new HashMap<>();
-                errorResponse.put("error", "APPOINTMENT_AUTO_CANCELLED");
-                errorResponse.put("message", "Appointment has been automatically cancelled as more than 2 days have passed since the appointment time. Status changes are not allowed after this period.");
-                errorResponse.put("appointmentId", appointment.getAppointmentId());
-                errorResponse.put("originalAppointmentTime", appointmentDateTime.toString());
-                errorResponse.put("daysPassed", java.time.temporal.ChronoUnit.DAYS.between(appointmentDateTime, now));
-                errorResponse.put("updatedAppointment", cancelledAppointment);
-                
-                return ResponseEntity.status(HttpStatus.FORBIDDEN).body(cancelledAppointment);
-            }
-            
-            // Within 2 days - allow the status change
-            System.out.println("Within 2 days of appointment time. Status change allowed.");
-            return null; // Validation passed
-            
-        } catch (Exception e) {
-            System.err.println("Error parsing appointment date/time: " + e.getMessage());
-            // If we can't parse the date, allow the change (fallback behavior)
+        LocalDateTime appointmentDateTime = appointment.getAppointmentDateTime();
+        if (appointmentDateTime == null || "CANCELLED".equalsIgnoreCase(requestedStatus)) {
             return null;
         }
+        
+        // Past the auto-cancel window - reject the change
+        if (clinicClock.now().isAfter(appointmentDateTime.plusHours(appointmentAutoCancelJob.getAfterHours()))) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(appointment);
+        }
+        return null;
     }
 
     @PutMapping("/{id}")
@@ -349,6 +351,33 @@ public class AppointmentController1 {
         return ResponseEntity.ok(availableSlots);
     }
     
+    /**
+     * Latency and failure counts of appointment writes
+     */
+    @GetMapping("/write-stats")
+    public ResponseEntity<Map<String, Object>> getWriteStats() {
+        return ResponseEntity.ok(appointmentWriteMetrics.getStats());
+    }
+    
+    /**
+     * Run counts and last-run duration of the stale appointment auto-cancel sweep
+     */
+    @GetMapping("/auto-cancel/stats")
+    public ResponseEntity<Map<String, Object>> getAutoCancelStats() {
+        return ResponseEntity.ok(appointmentAutoCancelJob.getStats());
+    }
+    
+    @GetMapping("/availability-grid")
+    public ResponseEntity<Map<String, Map<LocalDate, List<LocalTime>>>> getAvailabilityGrid(
+            @RequestParam(required = false) List<String> doctorIds,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(defaultValue = "30") int days) {
+        if (days < 1 || days > MAX_GRID_DAYS) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(appointmentService.getAvailabilityGrid(doctorIds, from, days));
+    }
+    
     @DeleteMapping("/{id}")
     public ResponseEntity<Void> deleteAppointment(@PathVariable String id) {
         appointmentService.deleteAppointment(id);
@@ -356,88 +385,49 @@ public class AppointmentController1 {
     }
     
     /**
-     * Initialize token information for existing appointments without token data
-     * This endpoint is for migration purposes only and should be called once
+     * Start the background job that assigns tokens to existing appointments, day by day.
+     * The job resumes after the last completed day unless restart=true.
      */
     @PostMapping("/token/initialize")
-    public ResponseEntity<Map<String, Object>> initializeTokensForExistingAppointments() {
-        List<AppointmentDTO> allAppointments = appointmentService.getAllAppointments();
-        int updatedCount = 0;
-        int totalTokens = 0;
-        
-        // Group appointments by doctor and date
-        Map<String, List<AppointmentDTO>> groupedAppointments = new HashMap<>();
-        for (AppointmentDTO appointment : allAppointments) {
-            if (appointment.getDoctorId() != null && appointment.getAppointmentDateTime() != null) {
-                // Create a key using doctor ID and date part of appointment time
-                String dateString = appointment.getAppointmentDateTime().toLocalDate().toString();
-                String key = appointment.getDoctorId() + "_" + dateString;
-                
-                if (!groupedAppointments.containsKey(key)) {
-                    groupedAppointments.put(key, new ArrayList<>());
-                }
-                
-                groupedAppointments.get(key).add(appointment);
-            }
+    public ResponseEntity<Map<String, Object>> initializeTokensForExistingAppointments(
+            @RequestParam(defaultValue = "false") boolean restart) {
+        if (!tokenInitializationJob.submit(restart)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(tokenInitializationJob.getStatus());
         }
-        
-        // Process each group (doctor + date)
-        for (Map.Entry<String, List<AppointmentDTO>> entry : groupedAppointments.entrySet()) {
-            String key = entry.getKey();
-            List<AppointmentDTO> appointmentsForDate = entry.getValue();
-            
-            if (!appointmentsForDate.isEmpty()) {
-                // Reset token counter for each doctor-date combination
-                int tokenCounter = 0;
-                
-                // Sort appointments by time
-                appointmentsForDate.sort(Comparator.comparing(AppointmentDTO::getAppointmentDateTime));
-                
-                // Extract doctor ID from the key for logging
-                String doctorId = key.split("_")[0];
-                String dateStr = key.split("_")[1];
-                System.out.println("Processing " + appointmentsForDate.size() + " appointments for doctor " + doctorId + " on date " + dateStr);
-                
-                // Assign tokens with order based on time
-                for (int i = 0; i < appointmentsForDate.size(); i++) {
-                    AppointmentDTO appointment = appointmentsForDate.get(i);
-                    
-                    // Increment token counter for this doctor-date combination
-                    tokenCounter++;
-                    
-                    // Update token information
-                    appointment.setTokenNumber(tokenCounter);
-                    appointment.setTokenOrder(tokenCounter);
-                    
-                    // Only set the token status to WAITING if it's not already set to something else
-                    // This preserves any CURRENT tokens we've already set
-                    if (appointment.getTokenStatus() == null || !appointment.getTokenStatus().equals("CURRENT")) {
-                        appointment.setTokenStatus("WAITING");
-                    }
-                    
-                    // Set token time if not already set
-                    if (appointment.getTokenTime() == null) {
-                        appointment.setTokenTime(LocalDateTime.now()
-                                .format(java.time.format.DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-                    }
-                    
-                    // Set patient name if not already set
-                    if (appointment.getPatientName() == null || appointment.getPatientName().isEmpty()) {
-                        appointment.setPatientName("Patient #" + appointment.getPatientId());
-                    }
-                    
-                    System.out.println("Setting token " + tokenCounter + " for appointment " + appointment.getAppointmentId());
-                    appointmentService.updateAppointment(appointment.getAppointmentId(), appointment);
-                    updatedCount++;
-                    totalTokens = Math.max(totalTokens, tokenCounter);
-                }
-            }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(tokenInitializationJob.getStatus());
+    }
+    
+    /**
+     * Progress and throughput of the token initialization job
+     */
+    @GetMapping("/token/initialize/status")
+    public ResponseEntity<Map<String, Object>> getTokenInitializationStatus() {
+        return ResponseEntity.ok(tokenInitializationJob.getStatus());
+    }
+    
+    /**
+     * Start the one-off job that moves appointments written before the clinic time zone was
+     * configured from fromZone (the zone the old hosts ran in, app.clinic.legacy-time-zone by
+     * default) to the clinic zone.
+     */
+    @PostMapping("/migrations/time-zone")
+    public ResponseEntity<Map<String, Object>> migrateAppointmentTimeZone(
+            @RequestParam(required = false) String fromZone) {
+        ZoneId sourceZone;
+        try {
+            sourceZone = fromZone != null ? ZoneId.of(fromZone) : ClinicClock.legacyZone();
+        } catch (DateTimeException e) {
+            return ResponseEntity.badRequest().build();
         }
-        
-        Map<String, Object> response = new HashMap<>();
-        response.put("updatedCount", updatedCount);
-        response.put("totalTokensGenerated", totalTokens);
-        return ResponseEntity.ok(response);
+        if (!appointmentTimeZoneMigration.submit(sourceZone)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(appointmentTimeZoneMigration.getStatus());
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(appointmentTimeZoneMigration.getStatus());
+    }
+    
+    @GetMapping("/migrations/time-zone/status")
+    public ResponseEntity<Map<String, Object>> getAppointmentTimeZoneMigrationStatus() {
+        return ResponseEntity.ok(appointmentTimeZoneMigration.getStatus());
     }
 }
 
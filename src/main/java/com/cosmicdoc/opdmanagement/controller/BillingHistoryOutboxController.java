@@ -0,0 +1,38 @@
+package com.cosmicdoc.opdmanagement.controller;
+
+import com.cosmicdoc.opdmanagement.model.ApiResponse;
+import com.cosmicdoc.opdmanagement.service.BillingHistoryOutbox;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * REST controller exposing billing history outbox metrics
+ */
+@RestController
+@RequestMapping("/api/billing/history-outbox")
+@Slf4j
+public class BillingHistoryOutboxController {
+
+    private final BillingHistoryOutbox billingHistoryOutbox;
+
+    @Autowired
+    public BillingHistoryOutboxController(BillingHistoryOutbox billingHistoryOutbox) {
+        this.billingHistoryOutbox = billingHistoryOutbox;
+    }
+
+    /**
+     * Get delivery counts, backlog and lag of the billing history projection
+     *
+     * @return ResponseEntity with outbox metrics
+     */
+    @GetMapping("/stats")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> getStats() {
+        return ResponseEntity.ok(ApiResponse.success("Outbox stats retrieved successfully", billingHistoryOutbox.getStats()));
+    }
+}
@@ -1,6 +1,7 @@
 package com.cosmicdoc.opdmanagement.controller;
 
 import com.cosmicdoc.opdmanagement.model.Doctor;
+import com.cosmicdoc.opdmanagement.model.NearbyDoctor;
 import com.cosmicdoc.opdmanagement.response.ApiResponse;
 import com.cosmicdoc.opdmanagement.dto.DoctorLoginRequest;
 import com.cosmicdoc.opdmanagement.service.DoctorService;
@@ -14,12 +15,15 @@ import org.springframework.web.bind.annotation.*;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 @RestController
 @RequestMapping("/api/doctors")
 @RequiredArgsConstructor
 @Slf4j
 public class DoctorController {
+    private static final int MAX_NEAREST = 50;
+    
     private final DoctorService doctorService;
     
     @GetMapping
@@ -80,19 +84,43 @@ public class DoctorController {
     }
     
     @GetMapping("/available")
-    public ResponseEntity<ApiResponse<List<Doctor>>> getAvailableDoctors() {
-        log.info("Request received for available doctors");
-        List<Doctor> doctors = doctorService.getAvailableDoctors();
+    public ResponseEntity<ApiResponse<List<Doctor>>> getAvailableDoctors(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate date) {
+        log.info("Request received for available doctors on {}", date != null ? date : "today");
+        List<Doctor> doctors = date != null
+                ? doctorService.getAvailableDoctors(date)
+                : doctorService.getAvailableDoctors();
         return ResponseEntity.ok(ApiResponse.success("Available doctors retrieved successfully", doctors));
     }
     
     @GetMapping("/available/{specialization}")
-    public ResponseEntity<ApiResponse<List<Doctor>>> getAvailableDoctorsBySpecialization(@PathVariable String specialization) {
+    public ResponseEntity<ApiResponse<List<Doctor>>> getAvailableDoctorsBySpecialization(
+            @PathVariable String specialization,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate date) {
         log.info("Request received for available doctors with specialization: {}", specialization);
-        List<Doctor> doctors = doctorService.getAvailableDoctorsBySpecialization(specialization);
+        List<Doctor> doctors = date != null
+                ? doctorService.getAvailableDoctorsBySpecialization(specialization, date)
+                : doctorService.getAvailableDoctorsBySpecialization(specialization);
         return ResponseEntity.ok(ApiResponse.success("Available doctors retrieved successfully", doctors));
     }
     
+    @GetMapping("/nearest")
+    public ResponseEntity<ApiResponse<List<NearbyDoctor>>> getNearestAvailableDoctors(
+            @RequestParam double latitude,
+            @RequestParam double longitude,
+            @RequestParam(defaultValue = "5") int k,
+            @RequestParam(required = false) String specialization,
+            @RequestParam(defaultValue = "0") double maxDistanceKm) {
+        log.info("Request received for {} nearest doctors to ({}, {})", k, latitude, longitude);
+        if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180 || k < 1 || k > MAX_NEAREST) {
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Invalid coordinates or k (1-" + MAX_NEAREST + ")"));
+        }
+        List<NearbyDoctor> doctors = doctorService.findNearestAvailableDoctors(
+                latitude, longitude, k, specialization, maxDistanceKm);
+        return ResponseEntity.ok(ApiResponse.success("Nearest doctors retrieved successfully", doctors));
+    }
+    
     @PatchMapping("/{id}/availability")
     public ResponseEntity<ApiResponse<Doctor>> updateAvailability(
             @PathVariable String id,
@@ -103,15 +131,19 @@ public class DoctorController {
     }
     
     @PostMapping("/{id}/leave")
-    public ResponseEntity<ApiResponse<Boolean>> addLeave(
+    public ResponseEntity<ApiResponse<Doctor.DoctorLeave>> addLeave(
             @PathVariable String id,
             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate startDate,
             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate endDate,
             @RequestParam String reason) {
         log.info("Request received to add leave for doctor: {} from {} to {}", id, startDate, endDate);
-        boolean success = doctorService.addLeave(id, startDate, endDate, reason);
-        if (success) {
-            return ResponseEntity.ok(ApiResponse.success("Leave added successfully", true));
+        if (endDate.isBefore(startDate)) {
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Leave end date must not be before its start date"));
+        }
+        Optional<Doctor.DoctorLeave> leave = doctorService.addLeave(id, startDate, endDate, reason);
+        if (leave.isPresent()) {
+            return ResponseEntity.ok(ApiResponse.success("Leave added successfully", leave.get()));
         } else {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body(ApiResponse.error("Failed to add leave"));
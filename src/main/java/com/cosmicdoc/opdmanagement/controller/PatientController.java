@@ -57,14 +57,34 @@ public class PatientController {
     
     @DeleteMapping("/{id}")
     public ResponseEntity<Map<String, Object>> deletePatient(@PathVariable String id) {
-        patientService.deletePatient(id);
+        String erasureJobId = patientService.deletePatient(id);
         Map<String, Object> response = new HashMap<>();
         response.put("success", true);
         response.put("message", "Patient deleted successfully");
         response.put("data", true);
+        response.put("erasureJobId", erasureJobId);
         return ResponseEntity.ok(response);
     }
     
+    /**
+     * Endpoint to (re)run the cascade delete of a patient's records
+     * @return Response containing the erasure job ID
+     */
+    @PostMapping("/{id}/erasure")
+    public ResponseEntity<Map<String, Object>> erasePatientRecords(@PathVariable String id) {
+        String erasureJobId = patientService.erasePatientRecords(id);
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("message", "Patient record erasure started");
+        response.put("erasureJobId", erasureJobId);
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+    }
+    
+    @GetMapping("/erasure-jobs/{jobId}")
+    public ResponseEntity<Map<String, Object>> getErasureStatus(@PathVariable String jobId) {
+        return ResponseEntity.ok(patientService.getErasureStatus(jobId));
+    }
+    
     /**
      * Endpoint to migrate legacy patient IDs to the new format
      * @return Response containing the count of updated patients
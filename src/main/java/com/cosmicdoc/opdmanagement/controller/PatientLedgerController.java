@@ -0,0 +1,51 @@
+package com.cosmicdoc.opdmanagement.controller;
+
+import com.cosmicdoc.opdmanagement.model.ApiResponse;
+import com.cosmicdoc.opdmanagement.model.PatientLedger;
+import com.cosmicdoc.opdmanagement.service.PatientLedgerService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * REST controller for the materialized patient ledger
+ */
+@RestController
+@RequestMapping("/api/billing/ledger")
+@Slf4j
+public class PatientLedgerController {
+
+    private final PatientLedgerService patientLedgerService;
+
+    @Autowired
+    public PatientLedgerController(PatientLedgerService patientLedgerService) {
+        this.patientLedgerService = patientLedgerService;
+    }
+
+    /**
+     * Get the outstanding balance, available advance and available credit for a patient
+     *
+     * @param patientId The patient ID
+     * @return ResponseEntity with the patient's ledger
+     */
+    @GetMapping("/patient/{patientId}")
+    public ResponseEntity<ApiResponse<PatientLedger>> getLedger(@PathVariable String patientId) {
+        log.info("Received request to get ledger for patient: {}", patientId);
+        PatientLedger ledger = patientLedgerService.getLedger(patientId);
+        return ResponseEntity.ok(ApiResponse.success("Ledger retrieved successfully", ledger));
+    }
+
+    /**
+     * Recompute a patient's ledger from the billing collections
+     *
+     * @param patientId The patient ID
+     * @return ResponseEntity with the rebuilt ledger
+     */
+    @PostMapping("/patient/{patientId}/rebuild")
+    public ResponseEntity<ApiResponse<PatientLedger>> rebuildLedger(@PathVariable String patientId) {
+        log.info("Received request to rebuild ledger for patient: {}", patientId);
+        PatientLedger ledger = patientLedgerService.rebuild(patientId);
+        return ResponseEntity.ok(ApiResponse.success("Ledger rebuilt successfully", ledger));
+    }
+}
@@ -1,14 +1,23 @@
 package com.cosmicdoc.opdmanagement.controller;
 
 import com.cosmicdoc.opdmanagement.dto.PharmacyItemDTO;
+import com.cosmicdoc.opdmanagement.dto.StockMovementDTO;
+import com.cosmicdoc.opdmanagement.service.PharmacyImportService;
 import com.cosmicdoc.opdmanagement.service.PharmacyItemService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Map;
@@ -17,11 +26,16 @@ import java.util.Map;
 @RequestMapping("/api/pharmacy-items")
 public class PharmacyItemController {
     
+    private static final int MAX_MOVEMENTS_PER_BATCH = 200;
+    
     private final PharmacyItemService pharmacyItemService;
+    private final PharmacyImportService pharmacyImportService;
     
     @Autowired
-    public PharmacyItemController(PharmacyItemService pharmacyItemService) {
+    public PharmacyItemController(PharmacyItemService pharmacyItemService,
+                                  PharmacyImportService pharmacyImportService) {
         this.pharmacyItemService = pharmacyItemService;
+        this.pharmacyImportService = pharmacyImportService;
     }
     
     @GetMapping
@@ -55,18 +69,56 @@ public class PharmacyItemController {
         return ResponseEntity.ok(items);
     }
     
+    @GetMapping("/expiring")
+    public ResponseEntity<List<PharmacyItemDTO>> getItemsExpiringWithin(@RequestParam(defaultValue = "30") int days) {
+        List<PharmacyItemDTO> items = pharmacyItemService.getPharmacyItemsExpiringWithin(days);
+        return ResponseEntity.ok(items);
+    }
+    
+    @GetMapping("/expiry-alerts")
+    public ResponseEntity<Map<String, Object>> getExpiryAlerts() {
+        return ResponseEntity.ok(pharmacyItemService.getExpiryAlertReport());
+    }
+    
+    @PostMapping("/migrate-expiry-timestamps")
+    public ResponseEntity<String> migrateExpiryTimestamps() {
+        int updatedCount = pharmacyItemService.migrateExpiryTimestamps();
+        return ResponseEntity.ok("Migration complete. Updated " + updatedCount + " pharmacy items.");
+    }
+    
     @GetMapping("/search")
     public ResponseEntity<List<PharmacyItemDTO>> searchItemsByName(@RequestParam String name) {
         List<PharmacyItemDTO> items = pharmacyItemService.getPharmacyItemsByNameContaining(name);
         return ResponseEntity.ok(items);
     }
     
+    @GetMapping("/typeahead")
+    public ResponseEntity<List<PharmacyItemDTO>> typeahead(
+            @RequestParam String q,
+            @RequestParam(defaultValue = "20") int limit) {
+        List<PharmacyItemDTO> items = pharmacyItemService.searchPharmacyItems(q, limit);
+        return ResponseEntity.ok(items);
+    }
+    
     @GetMapping("/low-stock")
-    public ResponseEntity<List<PharmacyItemDTO>> getLowStockItems(@RequestParam(defaultValue = "10") int threshold) {
-        List<PharmacyItemDTO> items = pharmacyItemService.getLowStockItems(threshold);
+    public ResponseEntity<List<PharmacyItemDTO>> getLowStockItems(@RequestParam(required = false) Integer threshold) {
+        // Without an explicit threshold, serve the watchlist built from per-item reorder levels
+        List<PharmacyItemDTO> items = threshold != null
+                ? pharmacyItemService.getLowStockItems(threshold)
+                : pharmacyItemService.getLowStockWatchlist();
         return ResponseEntity.ok(items);
     }
     
+    @GetMapping("/low-stock/summary")
+    public ResponseEntity<Map<String, Object>> getLowStockSummary() {
+        return ResponseEntity.ok(pharmacyItemService.getLowStockSummary());
+    }
+    
+    @GetMapping(value = "/low-stock/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamLowStock() {
+        return pharmacyItemService.subscribeToLowStock();
+    }
+    
     @GetMapping("/prescription-required")
     public ResponseEntity<List<PharmacyItemDTO>> getItemsByPrescriptionRequirement(
             @RequestParam(defaultValue = "true") boolean requiresPrescription) {
@@ -100,6 +152,32 @@ public class PharmacyItemController {
         return ResponseEntity.ok(updatedItem);
     }
     
+    @PostMapping("/stock-movements")
+    public ResponseEntity<List<PharmacyItemDTO>> applyStockMovements(
+            // A transaction holds at most 500 writes: one per item plus one log entry per movement
+            @RequestBody @NotEmpty @Size(max = MAX_MOVEMENTS_PER_BATCH) List<@Valid StockMovementDTO> movements) {
+        List<PharmacyItemDTO> updatedItems = pharmacyItemService.applyStockMovements(movements);
+        return ResponseEntity.ok(updatedItems);
+    }
+    
+    @PostMapping(value = "/import", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<Map<String, Object>> importItems(
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(required = false) String format) throws IOException {
+        // Fall back to the file extension when the format isn't given
+        String resolvedFormat = format;
+        if (resolvedFormat == null) {
+            String fileName = file.getOriginalFilename() != null ? file.getOriginalFilename().toLowerCase() : "";
+            resolvedFormat = fileName.endsWith(".csv") ? "csv" : fileName.endsWith(".ndjson") || fileName.endsWith(".jsonl") ? "ndjson" : null;
+        }
+        if (resolvedFormat == null || !(resolvedFormat.equalsIgnoreCase("csv") || resolvedFormat.equalsIgnoreCase("ndjson"))) {
+            return ResponseEntity.badRequest().build();
+        }
+        try (InputStream input = file.getInputStream()) {
+            return ResponseEntity.ok(pharmacyImportService.importItems(input, resolvedFormat));
+        }
+    }
+    
     @DeleteMapping("/{id}")
     public ResponseEntity<Void> deleteItem(@PathVariable String id) {
         pharmacyItemService.deletePharmacyItem(id);
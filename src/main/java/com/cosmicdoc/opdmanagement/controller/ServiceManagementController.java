@@ -130,12 +130,15 @@ public class ServiceManagementController {
      * Search services by name
      *
      * @param name The name to search for
+     * @param limit Maximum number of results (0 for all)
      * @return ResponseEntity with list of matching services
      */
     @GetMapping("/search")
-    public ResponseEntity<ApiResponse<List<Service>>> searchServices(@RequestParam String name) {
-        log.info("Received request to search services with name containing: {}", name);
-        List<Service> services = serviceManagementService.searchServicesByName(name);
+    public ResponseEntity<ApiResponse<List<Service>>> searchServices(
+            @RequestParam String name,
+            @RequestParam(defaultValue = "0") int limit) {
+        log.debug("Received request to search services with name containing: {}", name);
+        List<Service> services = serviceManagementService.searchServicesByName(name, limit);
         return ResponseEntity.ok(ApiResponse.success("Service search completed", services));
     }
 }
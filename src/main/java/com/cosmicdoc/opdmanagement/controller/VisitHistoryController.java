@@ -1,7 +1,9 @@
 package com.cosmicdoc.opdmanagement.controller;
 
 import com.cosmicdoc.opdmanagement.dto.VisitHistoryDTO;
+import com.cosmicdoc.opdmanagement.dto.VisitTimelineDTO;
 import com.cosmicdoc.opdmanagement.response.ApiResponse;
+import com.cosmicdoc.opdmanagement.service.VisitHistoryPipeline;
 import com.cosmicdoc.opdmanagement.service.VisitHistoryService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -10,16 +12,21 @@ import org.springframework.web.bind.annotation.*;
 
 import jakarta.validation.Valid;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/visit-history")
 public class VisitHistoryController {
     
+    private static final int MAX_TIMELINE_PAGE = 100;
+    
     private final VisitHistoryService visitHistoryService;
+    private final VisitHistoryPipeline visitHistoryPipeline;
     
     @Autowired
-    public VisitHistoryController(VisitHistoryService visitHistoryService) {
+    public VisitHistoryController(VisitHistoryService visitHistoryService, VisitHistoryPipeline visitHistoryPipeline) {
         this.visitHistoryService = visitHistoryService;
+        this.visitHistoryPipeline = visitHistoryPipeline;
     }
     
     @GetMapping("/{id}")
@@ -34,6 +41,31 @@ public class VisitHistoryController {
         return ResponseEntity.ok(response);
     }
     
+    @GetMapping("/patient/{patientId}/timeline")
+    public ResponseEntity<ApiResponse<VisitTimelineDTO>> getVisitTimeline(
+            @PathVariable String patientId,
+            @RequestParam(defaultValue = "20") int limit,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "false") boolean summary) {
+        if (limit < 1 || limit > MAX_TIMELINE_PAGE) {
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("limit must be between 1 and " + MAX_TIMELINE_PAGE));
+        }
+        ApiResponse<VisitTimelineDTO> response = visitHistoryService.getVisitTimeline(patientId, limit, cursor, summary);
+        return ResponseEntity.status(response.isSuccess() ? HttpStatus.OK : HttpStatus.BAD_REQUEST).body(response);
+    }
+    
+    @GetMapping("/pipeline/stats")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> getPipelineStats() {
+        return ResponseEntity.ok(ApiResponse.success("Visit history pipeline stats retrieved successfully",
+                visitHistoryPipeline.getStats()));
+    }
+    
+    @PostMapping("/migrate-visit-timestamps")
+    public ResponseEntity<ApiResponse<Integer>> migrateVisitTimestamps() {
+        return ResponseEntity.ok(visitHistoryService.migrateVisitTimestamps());
+    }
+    
     @PostMapping
     public ResponseEntity<ApiResponse<VisitHistoryDTO>> createVisitHistory(@Valid @RequestBody VisitHistoryDTO visitHistoryDTO) {
         ApiResponse<VisitHistoryDTO> response = visitHistoryService.createVisitHistory(visitHistoryDTO);
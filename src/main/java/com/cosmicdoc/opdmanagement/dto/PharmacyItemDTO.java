@@ -36,6 +36,9 @@ public class PharmacyItemDTO {
     @Min(value = 0, message = "Stock quantity must be non-negative")
     private Integer stockQuantity;
     
+    @Min(value = 0, message = "Reorder level must be non-negative")
+    private Integer reorderLevel; // Low-stock threshold; the configured default applies when null
+    
     @NotNull(message = "Expiry date is required")
     private LocalDate expiryDate;
     
@@ -0,0 +1,14 @@
+package com.cosmicdoc.opdmanagement.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class QueueAdvanceDTO {
+    
+    private AppointmentDTO finished; // Previous token, now COMPLETED or SKIPPED
+    private AppointmentDTO current;  // Token now being served
+}
@@ -0,0 +1,34 @@
+package com.cosmicdoc.opdmanagement.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.validation.constraints.AssertTrue;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Pattern;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A change in stock for one pharmacy item. Positive delta adds stock (RESTOCK, RETURN),
+ * negative delta removes it (DISPENSE, ADJUSTMENT).
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockMovementDTO {
+    @NotBlank(message = "Item ID is required")
+    private String itemId;
+
+    private int delta;
+
+    @Pattern(regexp = "DISPENSE|RESTOCK|RETURN|ADJUSTMENT", message = "Reason must be DISPENSE, RESTOCK, RETURN or ADJUSTMENT")
+    private String reason; // DISPENSE, RESTOCK, RETURN, ADJUSTMENT
+    private String referenceId; // e.g. cash memo bill ID
+    private String createdBy;
+
+    @JsonIgnore
+    @AssertTrue(message = "Delta must not be zero")
+    public boolean isNonZeroDelta() {
+        return delta != 0;
+    }
+}
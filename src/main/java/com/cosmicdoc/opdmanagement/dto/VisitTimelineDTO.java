@@ -0,0 +1,17 @@
+package com.cosmicdoc.opdmanagement.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class VisitTimelineDTO {
+    
+    private List<VisitHistoryDTO> visits;
+    private String nextCursor; // Pass back as cursor to fetch older visits; null on the last page
+    private boolean hasMore;
+}
@@ -0,0 +1,12 @@
+package com.cosmicdoc.opdmanagement.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.CONFLICT)
+public class InsufficientStockException extends RuntimeException {
+    
+    public InsufficientStockException(String message) {
+        super(message);
+    }
+}
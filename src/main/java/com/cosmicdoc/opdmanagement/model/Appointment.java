@@ -1,12 +1,12 @@
 package com.cosmicdoc.opdmanagement.model;
 
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import com.google.cloud.Timestamp;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.time.Instant;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
 
 @Data
 @NoArgsConstructor
@@ -55,7 +55,7 @@ public class Appointment {
                 appointmentDate.getSeconds(), 
                 appointmentDate.getNanos()
             ),
-            ZoneId.systemDefault()
+            ClinicClock.zone()
         );
     }
 }
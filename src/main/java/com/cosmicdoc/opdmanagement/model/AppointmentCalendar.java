@@ -0,0 +1,30 @@
+package com.cosmicdoc.opdmanagement.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Appointment counts of one month, per day and per doctor, by status
+ */
+@Data
+@NoArgsConstructor
+public class AppointmentCalendar {
+    private String month; // yyyy-MM
+    private long total;
+    private Map<String, Long> byStatus = new TreeMap<>();
+    private List<Day> days = new ArrayList<>(); // Every day of the month, in order
+
+    @Data
+    @NoArgsConstructor
+    public static class Day {
+        private String date; // yyyy-MM-dd
+        private long total;
+        private Map<String, Long> byStatus = new TreeMap<>();
+        private Map<String, Map<String, Long>> byDoctor = new TreeMap<>(); // doctorId -> status -> count
+    }
+}
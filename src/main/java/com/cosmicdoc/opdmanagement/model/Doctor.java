@@ -27,6 +27,8 @@ public class Doctor {
     private String zipCode;
     private boolean isAvailable;
     private String profileImage;
+    private List<String> availableDays; // e.g. "Monday"; empty means every day
+    private List<String> availableTimeSlots; // e.g. "10:00-13:00"; empty means 09:00-17:00
     private List<DoctorLeave> leaves = new ArrayList<>();
     private GpsLocation location;
     private LocalDateTime createdAt;
@@ -1,5 +1,6 @@
 package com.cosmicdoc.opdmanagement.model;
 
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import com.google.cloud.Timestamp;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -22,6 +23,7 @@ public class FirestoreAppointment {
     private String userId;
     private String doctorId;
     private Timestamp appointmentDate;
+    private String dateZone; // Zone appointmentDate is encoded in; missing on appointments from before ClinicClock
     private String status;
     private String category;
     private String subCategory;
@@ -98,6 +100,7 @@ public class FirestoreAppointment {
             );
         }
         
+        firestoreAppointment.setDateZone(ClinicClock.zone().getId());
         firestoreAppointment.setCreatedAt(appointment.getCreatedAt());
         firestoreAppointment.setUpdatedAt(appointment.getUpdatedAt());
         firestoreAppointment.setNotes(appointment.getNotes());
@@ -124,7 +127,9 @@ public class FirestoreAppointment {
         appointment.setAppointmentId(this.appointmentId);
         appointment.setUserId(this.userId);
         appointment.setDoctorId(this.doctorId);
-        appointment.setAppointmentDate(this.appointmentDate);
+        // Not yet migrated: decode from the zone the old hosts wrote in
+        appointment.setAppointmentDate(this.dateZone != null
+                ? this.appointmentDate : ClinicClock.fromLegacyZone(this.appointmentDate));
         appointment.setStatus(this.status);
         appointment.setCategory(this.category);
         appointment.setSubCategory(this.subCategory);
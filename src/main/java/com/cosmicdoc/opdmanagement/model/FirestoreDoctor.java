@@ -3,17 +3,22 @@ package com.cosmicdoc.opdmanagement.model;
 import com.cosmicdoc.opdmanagement.model.Doctor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * A wrapper class for Doctor that handles Firestore compatibility.
  */
 @Data
 @NoArgsConstructor
+@Slf4j
 public class FirestoreDoctor {
     
     @Data
@@ -29,10 +34,61 @@ public class FirestoreDoctor {
     
     @Data
     public static class Leave {
-        private String startDate;
-        private String endDate;
+        private String id;
+        private String startDate; // ISO date, inclusive
+        private String endDate; // ISO date, inclusive
         private String reason;
         private String status;  // PENDING, APPROVED, REJECTED
+        
+        // Leaves written before IDs existed get a stable ID derived from their content
+        public String resolveId() {
+            if (id != null && !id.isEmpty()) {
+                return id;
+            }
+            String key = startDate + "|" + endDate + "|" + reason + "|" + status;
+            return "legacy-" + UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        public Doctor.DoctorLeave toDoctorLeave() {
+            Doctor.DoctorLeave doctorLeave = new Doctor.DoctorLeave();
+            doctorLeave.setId(resolveId());
+            doctorLeave.setStartDate(LocalDate.parse(startDate).atStartOfDay());
+            doctorLeave.setEndDate(LocalDate.parse(endDate).atStartOfDay());
+            doctorLeave.setReason(reason);
+            doctorLeave.setStatus(status);
+            return doctorLeave;
+        }
+        
+        public static Leave fromDoctorLeave(Doctor.DoctorLeave doctorLeave) {
+            Leave leave = new Leave();
+            leave.setId(doctorLeave.getId());
+            leave.setStartDate(doctorLeave.getStartDate().toLocalDate().toString());
+            leave.setEndDate(doctorLeave.getEndDate().toLocalDate().toString());
+            leave.setReason(doctorLeave.getReason());
+            leave.setStatus(doctorLeave.getStatus());
+            return leave;
+        }
+        
+        public static Leave fromMap(Map<String, Object> map) {
+            Leave leave = new Leave();
+            leave.setId((String) map.get("id"));
+            leave.setStartDate((String) map.get("startDate"));
+            leave.setEndDate((String) map.get("endDate"));
+            leave.setReason((String) map.get("reason"));
+            leave.setStatus((String) map.get("status"));
+            return leave;
+        }
+        
+        // Array elements are matched by value in arrayRemove, so always write leaves in this shape
+        public Map<String, Object> toMap() {
+            Map<String, Object> leaveMap = new HashMap<>();
+            leaveMap.put("id", resolveId());
+            leaveMap.put("startDate", startDate);
+            leaveMap.put("endDate", endDate);
+            leaveMap.put("reason", reason);
+            leaveMap.put("status", status);
+            return leaveMap;
+        }
     }
     
     private String id;
@@ -64,6 +120,25 @@ public class FirestoreDoctor {
         doctor.setAddress(this.address);
         doctor.setAvailable(this.isActive);
         
+        // The nested schedule takes precedence over the flat fields when it is filled in
+        boolean hasScheduleDays = this.schedule != null && this.schedule.getDays() != null && !this.schedule.getDays().isEmpty();
+        boolean hasScheduleSlots = this.schedule != null && this.schedule.getTimeSlots() != null && !this.schedule.getTimeSlots().isEmpty();
+        doctor.setAvailableDays(hasScheduleDays ? this.schedule.getDays() : this.availableDays);
+        doctor.setAvailableTimeSlots(hasScheduleSlots ? this.schedule.getTimeSlots() : this.availableTimeSlots);
+        
+        List<Doctor.DoctorLeave> doctorLeaves = new ArrayList<>();
+        if (this.leaves != null) {
+            for (Leave leave : this.leaves) {
+                // One bad entry shouldn't make the whole doctor unreadable
+                try {
+                    doctorLeaves.add(leave.toDoctorLeave());
+                } catch (Exception e) {
+                    log.warn("Skipping malformed leave {} of doctor {}: {}", leave, this.id, e.getMessage());
+                }
+            }
+        }
+        doctor.setLeaves(doctorLeaves);
+        
         // Set GPS location if available
         if (this.latitude != null && this.longitude != null) {
             Doctor.GpsLocation location = new Doctor.GpsLocation();
@@ -86,7 +161,19 @@ public class FirestoreDoctor {
         firestoreDoctor.setPhoneNumber(doctor.getPhoneNumber());
         firestoreDoctor.setAddress(doctor.getAddress());
         firestoreDoctor.setActive(doctor.isAvailable());
-        firestoreDoctor.setLeaves(new ArrayList<>());
+        firestoreDoctor.setAvailableDays(doctor.getAvailableDays());
+        firestoreDoctor.setAvailableTimeSlots(doctor.getAvailableTimeSlots());
+        
+        // Carry leaves through so saving a doctor doesn't drop them
+        List<Leave> leaves = new ArrayList<>();
+        if (doctor.getLeaves() != null) {
+            for (Doctor.DoctorLeave doctorLeave : doctor.getLeaves()) {
+                if (doctorLeave.getStartDate() != null && doctorLeave.getEndDate() != null) {
+                    leaves.add(Leave.fromDoctorLeave(doctorLeave));
+                }
+            }
+        }
+        firestoreDoctor.setLeaves(leaves);
         
         // Set GPS coordinates if location exists
         if (doctor.getLocation() != null) {
@@ -120,7 +207,13 @@ public class FirestoreDoctor {
             docMap.put("schedule", scheduleMap);
         }
         
-        docMap.put("leaves", this.leaves);
+        List<Map<String, Object>> leaveMaps = new ArrayList<>();
+        if (this.leaves != null) {
+            for (Leave leave : this.leaves) {
+                leaveMaps.add(leave.toMap());
+            }
+        }
+        docMap.put("leaves", leaveMaps);
         
         if (this.latitude != null) {
             docMap.put("latitude", this.latitude);
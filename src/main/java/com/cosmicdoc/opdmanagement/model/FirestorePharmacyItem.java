@@ -1,6 +1,8 @@
 package com.cosmicdoc.opdmanagement.model;
 
 import com.cosmicdoc.opdmanagement.model.PharmacyItem;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
+import com.google.cloud.Timestamp;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
@@ -24,7 +26,9 @@ public class FirestorePharmacyItem {
     private String batchNumber;
     private Double price;
     private Integer stockQuantity;
+    private Integer reorderLevel; // Low-stock threshold; the configured default applies when null
     private String expiryDate; // Stored as String in ISO format (YYYY-MM-DD)
+    private Timestamp expiryAt; // Start of the expiry day, range-queryable
     private Boolean requiresPrescription;
     private String category;
     private Boolean isActive;
@@ -46,10 +50,12 @@ public class FirestorePharmacyItem {
         firestoreItem.setBatchNumber(item.getBatchNumber());
         firestoreItem.setPrice(item.getPrice());
         firestoreItem.setStockQuantity(item.getStockQuantity());
+        firestoreItem.setReorderLevel(item.getReorderLevel());
         
         // Convert LocalDate to String
         if (item.getExpiryDate() != null) {
             firestoreItem.setExpiryDate(item.getExpiryDate().format(DATE_FORMATTER));
+            firestoreItem.setExpiryAt(toExpiryTimestamp(item.getExpiryDate()));
         }
         
         firestoreItem.setRequiresPrescription(item.getRequiresPrescription());
@@ -59,6 +65,13 @@ public class FirestorePharmacyItem {
         return firestoreItem;
     }
     
+    /**
+     * Start of the given expiry day in the clinic's zone as a Firestore Timestamp
+     */
+    public static Timestamp toExpiryTimestamp(LocalDate date) {
+        return Timestamp.of(java.util.Date.from(date.atStartOfDay(ClinicClock.zone()).toInstant()));
+    }
+    
     /**
      * Converts this FirestorePharmacyItem to a standard PharmacyItem entity
      */
@@ -72,6 +85,7 @@ public class FirestorePharmacyItem {
         item.setBatchNumber(this.batchNumber);
         item.setPrice(this.price);
         item.setStockQuantity(this.stockQuantity);
+        item.setReorderLevel(this.reorderLevel);
         
         // Convert String to LocalDate
         if (this.expiryDate != null && !this.expiryDate.isEmpty()) {
@@ -4,6 +4,14 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
+import com.google.cloud.Timestamp;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 
 /**
@@ -17,6 +25,7 @@ public class FirestoreVisitHistory {
     private String id;
     private String patientId;
     private String visitDate;
+    private Timestamp visitAt; // visitDate as a Timestamp, for ordering and range queries
     private String doctorId;
     private String doctorName;
     private List<String> symptoms;
@@ -38,6 +47,7 @@ public class FirestoreVisitHistory {
         firestoreVisitHistory.setId(visitHistory.getId());
         firestoreVisitHistory.setPatientId(visitHistory.getPatientId());
         firestoreVisitHistory.setVisitDate(visitHistory.getVisitDate());
+        firestoreVisitHistory.setVisitAt(toVisitTimestamp(visitHistory.getVisitDate()));
         firestoreVisitHistory.setDoctorId(visitHistory.getDoctorId());
         firestoreVisitHistory.setDoctorName(visitHistory.getDoctorName());
         firestoreVisitHistory.setSymptoms(visitHistory.getSymptoms());
@@ -50,6 +60,37 @@ public class FirestoreVisitHistory {
         return firestoreVisitHistory;
     }
     
+    /**
+     * Parse a visit date (ISO date, local date-time, offset date-time or instant) into a
+     * Firestore Timestamp; null if the string is missing or not a recognised format
+     */
+    public static Timestamp toVisitTimestamp(String visitDate) {
+        if (visitDate == null || visitDate.isBlank()) {
+            return null;
+        }
+        String value = visitDate.trim();
+        try {
+            return Timestamp.of(java.util.Date.from(OffsetDateTime.parse(value).toInstant()));
+        } catch (DateTimeParseException ignored) {
+            // Not an offset date-time
+        }
+        try {
+            return Timestamp.of(java.util.Date.from(Instant.parse(value)));
+        } catch (DateTimeParseException ignored) {
+            // Not an instant
+        }
+        try {
+            return Timestamp.of(java.util.Date.from(LocalDateTime.parse(value).atZone(ClinicClock.zone()).toInstant()));
+        } catch (DateTimeParseException ignored) {
+            // Not a local date-time
+        }
+        try {
+            return Timestamp.of(java.util.Date.from(LocalDate.parse(value).atStartOfDay(ClinicClock.zone()).toInstant()));
+        } catch (DateTimeParseException ignored) {
+            return null;
+        }
+    }
+    
     /**
      * Converts this FirestoreVisitHistory to a standard VisitHistory entity
      */
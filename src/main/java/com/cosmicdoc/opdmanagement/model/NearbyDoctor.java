@@ -0,0 +1,16 @@
+package com.cosmicdoc.opdmanagement.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A doctor returned by a proximity search, with the great-circle distance to the query point
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class NearbyDoctor {
+    private Doctor doctor;
+    private double distanceKm;
+}
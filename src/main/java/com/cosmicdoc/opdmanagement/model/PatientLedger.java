@@ -0,0 +1,27 @@
+package com.cosmicdoc.opdmanagement.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+/**
+ * Materialized billing summary for one patient, maintained by PatientLedgerService
+ */
+@Data
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PatientLedger {
+    private String patientId;
+    private double totalCharged; // Invoices and cash memos
+    private double totalPaid; // Receipts and cash memos
+    private double advanceDeposited; // Advance payments received
+    private double creditIssued; // Credit notes issued
+    private double refunded; // Refunds paid out
+    private double outstandingBalance; // totalCharged - totalPaid
+    private double advanceAvailable; // advanceDeposited - refunded, never negative
+    private double creditAvailable; // creditIssued
+    private long entryCount; // Number of billing documents folded into the ledger
+    private Date updatedAt;
+}
@@ -14,6 +14,7 @@ public class PharmacyItem {
     private String batchNumber;
     private Double price;
     private Integer stockQuantity;
+    private Integer reorderLevel; // Low-stock threshold; the configured default applies when null
     private LocalDate expiryDate;
     private Boolean requiresPrescription;
     private String category;
@@ -0,0 +1,16 @@
+package com.cosmicdoc.opdmanagement.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Outcome of advancing a doctor's token queue, as committed
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class QueueAdvance {
+    private Appointment finished; // The token that was CURRENT, now COMPLETED or SKIPPED; null if none
+    private Appointment current;  // The token promoted to CURRENT; null if nobody was waiting
+}
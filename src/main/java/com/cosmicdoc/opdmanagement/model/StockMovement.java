@@ -0,0 +1,15 @@
+package com.cosmicdoc.opdmanagement.model;
+
+import lombok.Data;
+
+/**
+ * A recorded change in stock for one pharmacy item
+ */
+@Data
+public class StockMovement {
+    private String itemId;
+    private int delta;
+    private String reason; // DISPENSE, RESTOCK, RETURN, ADJUSTMENT
+    private String referenceId;
+    private String createdBy;
+}
@@ -0,0 +1,18 @@
+package com.cosmicdoc.opdmanagement.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One page of a patient's visit timeline, most recent visit first
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class VisitHistoryPage {
+    private List<VisitHistory> visits;
+    private String nextCursor; // Opaque; null when there are no older visits
+}
@@ -2,6 +2,7 @@ package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.Advance;
 import com.cosmicdoc.opdmanagement.model.FirestoreAdvance;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,12 +21,14 @@ import java.util.stream.Collectors;
 public class AdvanceRepositoryImpl implements AdvanceRepository {
 
     private final Firestore firestore;
+    private final ClinicClock clinicClock;
     private static final String COLLECTION_NAME = "advances";
     private static final String ADVANCE_ID_PREFIX = "ADV-";
 
     @Autowired
-    public AdvanceRepositoryImpl(Firestore firestore) {
+    public AdvanceRepositoryImpl(Firestore firestore, ClinicClock clinicClock) {
         this.firestore = firestore;
+        this.clinicClock = clinicClock;
     }
 
     @Override
@@ -148,7 +151,7 @@ public class AdvanceRepositoryImpl implements AdvanceRepository {
 
     @Override
     public String generateAdvanceId() {
-        LocalDate today = LocalDate.now();
+        LocalDate today = clinicClock.today();
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd");
         String datePart = today.format(formatter);
         
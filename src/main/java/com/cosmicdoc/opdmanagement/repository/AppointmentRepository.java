@@ -1,17 +1,28 @@
 package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.Appointment;
+import com.cosmicdoc.opdmanagement.model.QueueAdvance;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.YearMonth;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public interface AppointmentRepository {
     List<Appointment> findAll();
     Optional<Appointment> findById(String id);
     Appointment save(Appointment appointment);
+    
+    /**
+     * Update only the given fields of an appointment; updatedAt is set to the server time.
+     *
+     * @param appointmentId Appointment ID
+     * @param fields Changed fields, keyed by FirestoreAppointment property name
+     * @return false if the appointment doesn't exist
+     */
+    boolean updateFields(String appointmentId, Map<String, Object> fields);
     void deleteById(String id);
     boolean existsById(String id);
     List<Appointment> findByDoctorId(String doctorId);
@@ -27,6 +38,23 @@ public interface AppointmentRepository {
     List<Appointment> findByUserId(String userId);
     List<Appointment> findByStatus(String status);
     List<Appointment> findByAppointmentDateBetween(LocalDateTime start, LocalDateTime end);
+    
+    /**
+     * Appointments in a date range with only appointmentId, appointmentDate, doctorId and status read;
+     * throws rather than returning a partial or empty list when the query fails
+     */
+    List<Appointment> findStatusSummariesBetween(LocalDateTime start, LocalDateTime end);
     List<Appointment> findByUserIdAndStatus(String userId, String status);
     List<Appointment> findByDoctorIdAndMonth(String doctorId, YearMonth month);
+    
+    /**
+     * Atomically finish a doctor's CURRENT token and promote the first WAITING one.
+     *
+     * @param doctorId Doctor ID
+     * @param date Queue date
+     * @param finishedTokenStatus COMPLETED or SKIPPED
+     * @param finishedStatus New appointment status of the finished token, or null to keep it
+     * @return The finished and promoted tokens as written
+     */
+    QueueAdvance advanceQueue(String doctorId, LocalDate date, String finishedTokenStatus, String finishedStatus);
 }
@@ -2,9 +2,9 @@ package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.CashMemo;
 import com.cosmicdoc.opdmanagement.model.FirestoreCashMemo;
-import com.cosmicdoc.opdmanagement.model.LineItem;
-import com.cosmicdoc.opdmanagement.model.Service;
-import com.cosmicdoc.opdmanagement.service.ServiceManagementService;
+import com.cosmicdoc.opdmanagement.service.BillNumberService;
+import com.cosmicdoc.opdmanagement.service.BillingHistoryOutbox;
+import com.cosmicdoc.opdmanagement.service.ServiceCatalogCache;
 
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
@@ -13,12 +13,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
@@ -28,16 +24,22 @@ import java.util.stream.Collectors;
 public class CashMemoRepositoryImpl implements CashMemoRepository {
 
     private final Firestore firestore;
-    private final ServiceManagementService serviceManagementService;
+    private final ServiceCatalogCache serviceCatalogCache;
+    private final BillNumberService billNumberService;
+    private final BillingHistoryOutbox billingHistoryOutbox;
     
     private static final Logger logger = LoggerFactory.getLogger(CashMemoRepositoryImpl.class);
     private static final String COLLECTION_NAME = "cash_memos";
     private static final String BILL_ID_PREFIX = "CM-";
 
     @Autowired
-    public CashMemoRepositoryImpl(Firestore firestore, ServiceManagementService serviceManagementService) {
+    public CashMemoRepositoryImpl(Firestore firestore, ServiceCatalogCache serviceCatalogCache,
+                                  BillNumberService billNumberService,
+                                  BillingHistoryOutbox billingHistoryOutbox) {
         this.firestore = firestore;
-        this.serviceManagementService = serviceManagementService;
+        this.serviceCatalogCache = serviceCatalogCache;
+        this.billNumberService = billNumberService;
+        this.billingHistoryOutbox = billingHistoryOutbox;
     }
 
     @Override
@@ -48,8 +50,11 @@ public class CashMemoRepositoryImpl implements CashMemoRepository {
                 cashMemo.setBillId(generateBillId());
             }
 
+            // An existing document may be moving to another patient
+            boolean existing = cashMemo.getId() != null && !cashMemo.getId().isEmpty();
+
             // Generate document ID if not present
-            if (cashMemo.getId() == null || cashMemo.getId().isEmpty()) {
+            if (!existing) {
                 cashMemo.setId(UUID.randomUUID().toString());
             }
 
@@ -69,7 +74,7 @@ public class CashMemoRepositoryImpl implements CashMemoRepository {
                 cashMemo.setLineItems(new ArrayList<>());
             } else {
                 // Populate service names for line items if available
-                populateServiceNames(cashMemo.getLineItems());
+                serviceCatalogCache.populateServiceNames(cashMemo.getLineItems());
             }
             
             if (cashMemo.getTaxBreakdown() == null) {
@@ -79,13 +84,14 @@ public class CashMemoRepositoryImpl implements CashMemoRepository {
             FirestoreCashMemo firestoreCashMemo = new FirestoreCashMemo(cashMemo);
             
             DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(cashMemo.getId());
-            ApiFuture<WriteResult> result = docRef.set(firestoreCashMemo);
-            
-            // Wait for the write to complete
-            result.get();
             
-            // Also save in patient's billing history
-            updatePatientBillingHistory(cashMemo);
+            // Write the cash memo and its billing history outbox entry in one atomic commit
+            WriteBatch batch = firestore.batch();
+            String previousPatientId = existing ? billingHistoryOutbox.storedPatientId(docRef) : null;
+            batch.set(docRef, firestoreCashMemo);
+            billingHistoryOutbox.enqueue(batch, COLLECTION_NAME, cashMemo.getId(), cashMemo.getPatientId(), previousPatientId);
+            batch.commit().get();
+            billingHistoryOutbox.signal();
             
             return cashMemo;
         } catch (InterruptedException | ExecutionException e) {
@@ -93,70 +99,6 @@ public class CashMemoRepositoryImpl implements CashMemoRepository {
         }
     }
 
-    private void updatePatientBillingHistory(CashMemo cashMemo) {
-        try {
-            DocumentReference patientRef = firestore.collection("patients").document(cashMemo.getPatientId());
-            
-            // Create billing history entry
-            FirestoreCashMemo firestoreCashMemo = new FirestoreCashMemo(cashMemo);
-            
-            // Add to patient's billing history subcollection
-            patientRef.collection("billing_history").document(cashMemo.getId()).set(firestoreCashMemo).get();
-        } catch (InterruptedException | ExecutionException e) {
-            // Log but don't fail the primary operation
-            System.err.println("Warning: Failed to update patient billing history: " + e.getMessage());
-        }
-    }
-
-    /**
-     * Populates service names for line items based on their serviceId
-     * 
-     * @param lineItems List of line items to populate service names for
-     */
-    private void populateServiceNames(List<LineItem> lineItems) {
-        if (lineItems == null || lineItems.isEmpty()) {
-            return;
-        }
-        
-        // Create a map to store service IDs and their associated services
-        Map<String, Service> serviceMap = new HashMap<>();
-        
-        // Process each line item
-        for (LineItem item : lineItems) {
-            if (item.getServiceId() != null && !item.getServiceId().isEmpty()) {
-                try {
-                    // If we haven't fetched this service yet, get it from the service management service
-                    if (!serviceMap.containsKey(item.getServiceId())) {
-                        Service service = serviceManagementService.getServiceById(item.getServiceId());
-                        if (service != null) {
-                            serviceMap.put(item.getServiceId(), service);
-                        }
-                    }
-                    
-                    // Get the service from our map
-                    Service service = serviceMap.get(item.getServiceId());
-                    
-                    // Set the service name in the line item
-                    if (service != null) {
-                        item.setServiceName(service.getName());
-                    } else if (item.getDescription() != null && !item.getDescription().isEmpty()) {
-                        // Fall back to description if service is not found
-                        item.setServiceName(item.getDescription());
-                    }
-                } catch (Exception e) {
-                    logger.error("Error fetching service details for line item with service ID: " + item.getServiceId(), e);
-                    // Fall back to description if there's an error
-                    if (item.getDescription() != null && !item.getDescription().isEmpty()) {
-                        item.setServiceName(item.getDescription());
-                    }
-                }
-            } else if (item.getDescription() != null && !item.getDescription().isEmpty()) {
-                // If there's no service ID but there is a description, use that as service name
-                item.setServiceName(item.getDescription());
-            }
-        }
-    }
-
     @Override
     public List<CashMemo> findAll() {
         try {
@@ -184,7 +126,7 @@ public class CashMemoRepositoryImpl implements CashMemoRepository {
                 
                 // Populate service names for line items if available
                 if (cashMemo.getLineItems() != null && !cashMemo.getLineItems().isEmpty()) {
-                    populateServiceNames(cashMemo.getLineItems());
+                    serviceCatalogCache.populateServiceNames(cashMemo.getLineItems());
                 }
                 
                 return Optional.of(cashMemo);
@@ -226,12 +168,12 @@ public class CashMemoRepositoryImpl implements CashMemoRepository {
             if (cashMemoOpt.isPresent()) {
                 CashMemo cashMemo = cashMemoOpt.get();
                 
-                // Delete from main collection
-                firestore.collection(COLLECTION_NAME).document(id).delete().get();
-                
-                // Also delete from patient's billing history
-                firestore.collection("patients").document(cashMemo.getPatientId())
-                        .collection("billing_history").document(id).delete().get();
+                // Delete from main collection; the outbox removes the billing history copy
+                WriteBatch batch = firestore.batch();
+                batch.delete(firestore.collection(COLLECTION_NAME).document(id));
+                billingHistoryOutbox.enqueue(batch, COLLECTION_NAME, id, cashMemo.getPatientId());
+                batch.commit().get();
+                billingHistoryOutbox.signal();
             }
         } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException("Failed to delete cash memo: " + e.getMessage(), e);
@@ -240,12 +182,6 @@ public class CashMemoRepositoryImpl implements CashMemoRepository {
 
     @Override
     public String generateBillId() {
-        LocalDate today = LocalDate.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd");
-        String datePart = today.format(formatter);
-        
-        String randomPart = UUID.randomUUID().toString().substring(0, 6).toUpperCase();
-        
-        return BILL_ID_PREFIX + datePart + randomPart;
+        return billNumberService.nextNumber(BILL_ID_PREFIX);
     }
 }
@@ -2,6 +2,7 @@ package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.CreditNote;
 import com.cosmicdoc.opdmanagement.model.FirestoreCreditNote;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,12 +21,14 @@ import java.util.stream.Collectors;
 public class CreditNoteRepositoryImpl implements CreditNoteRepository {
 
     private final Firestore firestore;
+    private final ClinicClock clinicClock;
     private static final String COLLECTION_NAME = "credit_notes";
     private static final String CREDIT_NOTE_ID_PREFIX = "CN-";
 
     @Autowired
-    public CreditNoteRepositoryImpl(Firestore firestore) {
+    public CreditNoteRepositoryImpl(Firestore firestore, ClinicClock clinicClock) {
         this.firestore = firestore;
+        this.clinicClock = clinicClock;
     }
 
     @Override
@@ -148,7 +151,7 @@ public class CreditNoteRepositoryImpl implements CreditNoteRepository {
 
     @Override
     public String generateCreditNoteId() {
-        LocalDate today = LocalDate.now();
+        LocalDate today = clinicClock.today();
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd");
         String datePart = today.format(formatter);
         
@@ -29,7 +29,7 @@ public interface DoctorRepository {
     
     boolean updateAvailability(String id, boolean isAvailable);
     
-    boolean addLeave(String id, LocalDate startDate, LocalDate endDate, String reason);
+    Optional<Doctor.DoctorLeave> addLeave(String id, LocalDate startDate, LocalDate endDate, String reason);
     
     boolean cancelLeave(String id, String leaveId);
     
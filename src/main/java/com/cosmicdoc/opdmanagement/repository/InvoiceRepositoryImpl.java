@@ -2,13 +2,14 @@ package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.Invoice;
 import com.cosmicdoc.opdmanagement.model.FirestoreInvoice;
+import com.cosmicdoc.opdmanagement.service.BillNumberService;
+import com.cosmicdoc.opdmanagement.service.BillingHistoryOutbox;
+import com.cosmicdoc.opdmanagement.service.ServiceCatalogCache;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -20,12 +21,20 @@ import java.util.stream.Collectors;
 public class InvoiceRepositoryImpl implements InvoiceRepository {
 
     private final Firestore firestore;
+    private final BillNumberService billNumberService;
+    private final BillingHistoryOutbox billingHistoryOutbox;
+    private final ServiceCatalogCache serviceCatalogCache;
     private static final String COLLECTION_NAME = "invoices";
     private static final String INVOICE_ID_PREFIX = "INV-";
 
     @Autowired
-    public InvoiceRepositoryImpl(Firestore firestore) {
+    public InvoiceRepositoryImpl(Firestore firestore, BillNumberService billNumberService,
+                                 ServiceCatalogCache serviceCatalogCache,
+                                 BillingHistoryOutbox billingHistoryOutbox) {
         this.firestore = firestore;
+        this.billNumberService = billNumberService;
+        this.billingHistoryOutbox = billingHistoryOutbox;
+        this.serviceCatalogCache = serviceCatalogCache;
     }
 
     @Override
@@ -36,21 +45,25 @@ public class InvoiceRepositoryImpl implements InvoiceRepository {
                 invoice.setInvoiceId(generateInvoiceId());
             }
 
+            // An existing document may be moving to another patient
+            boolean existing = invoice.getId() != null && !invoice.getId().isEmpty();
+
             // Generate document ID if not present
-            if (invoice.getId() == null || invoice.getId().isEmpty()) {
+            if (!existing) {
                 invoice.setId(UUID.randomUUID().toString());
             }
 
             FirestoreInvoice firestoreInvoice = new FirestoreInvoice(invoice);
             
             DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(invoice.getId());
-            ApiFuture<WriteResult> result = docRef.set(firestoreInvoice);
-            
-            // Wait for the write to complete
-            result.get();
             
-            // Also save in patient's billing history
-            updatePatientBillingHistory(invoice);
+            // Write the invoice and its billing history outbox entry in one atomic commit
+            WriteBatch batch = firestore.batch();
+            String previousPatientId = existing ? billingHistoryOutbox.storedPatientId(docRef) : null;
+            batch.set(docRef, firestoreInvoice);
+            billingHistoryOutbox.enqueue(batch, COLLECTION_NAME, invoice.getId(), invoice.getPatientId(), previousPatientId);
+            batch.commit().get();
+            billingHistoryOutbox.signal();
             
             return invoice;
         } catch (InterruptedException | ExecutionException e) {
@@ -58,21 +71,6 @@ public class InvoiceRepositoryImpl implements InvoiceRepository {
         }
     }
 
-    private void updatePatientBillingHistory(Invoice invoice) {
-        try {
-            DocumentReference patientRef = firestore.collection("patients").document(invoice.getPatientId());
-            
-            // Create billing history entry
-            FirestoreInvoice firestoreInvoice = new FirestoreInvoice(invoice);
-            
-            // Add to patient's billing history subcollection
-            patientRef.collection("billing_history").document(invoice.getId()).set(firestoreInvoice).get();
-        } catch (InterruptedException | ExecutionException e) {
-            // Log but don't fail the primary operation
-            System.err.println("Warning: Failed to update patient billing history: " + e.getMessage());
-        }
-    }
-
     @Override
     public List<Invoice> findAll() {
         try {
@@ -96,7 +94,14 @@ public class InvoiceRepositoryImpl implements InvoiceRepository {
             
             if (document.exists()) {
                 FirestoreInvoice firestoreInvoice = document.toObject(FirestoreInvoice.class);
-                return Optional.ofNullable(firestoreInvoice.toInvoice());
+                Invoice invoice = firestoreInvoice.toInvoice();
+                
+                // Resolve service names for rendering from the catalog snapshot
+                if (invoice != null) {
+                    serviceCatalogCache.populateServiceNames(invoice.getItems());
+                }
+                
+                return Optional.ofNullable(invoice);
             }
             
             return Optional.empty();
@@ -134,12 +139,12 @@ public class InvoiceRepositoryImpl implements InvoiceRepository {
             if (invoiceOpt.isPresent()) {
                 Invoice invoice = invoiceOpt.get();
                 
-                // Delete from main collection
-                firestore.collection(COLLECTION_NAME).document(id).delete().get();
-                
-                // Also delete from patient's billing history
-                firestore.collection("patients").document(invoice.getPatientId())
-                        .collection("billing_history").document(id).delete().get();
+                // Delete from main collection; the outbox removes the billing history copy
+                WriteBatch batch = firestore.batch();
+                batch.delete(firestore.collection(COLLECTION_NAME).document(id));
+                billingHistoryOutbox.enqueue(batch, COLLECTION_NAME, id, invoice.getPatientId());
+                batch.commit().get();
+                billingHistoryOutbox.signal();
             }
         } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException("Failed to delete invoice: " + e.getMessage(), e);
@@ -148,12 +153,6 @@ public class InvoiceRepositoryImpl implements InvoiceRepository {
 
     @Override
     public String generateInvoiceId() {
-        LocalDate today = LocalDate.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd");
-        String datePart = today.format(formatter);
-        
-        String randomPart = UUID.randomUUID().toString().substring(0, 6).toUpperCase();
-        
-        return INVOICE_ID_PREFIX + datePart + randomPart;
+        return billNumberService.nextNumber(INVOICE_ID_PREFIX);
     }
 }
@@ -14,6 +14,13 @@ public interface MedicalHistoryRepository {
     
     MedicalHistory save(MedicalHistory medicalHistory);
     
+    /**
+     * Create the patient's medical history unless one already exists
+     *
+     * @return The created history, or empty if the patient already has one
+     */
+    Optional<MedicalHistory> createIfAbsent(MedicalHistory medicalHistory);
+    
     void deleteById(String id);
     
     void deleteByPatientId(String patientId);
@@ -3,40 +3,77 @@ package com.cosmicdoc.opdmanagement.repository;
 import com.cosmicdoc.opdmanagement.model.FirestoreMedicalHistory;
 import com.cosmicdoc.opdmanagement.model.MedicalHistory;
 import com.google.api.core.ApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
 import com.google.cloud.firestore.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Repository;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 
+/**
+ * Medical histories, one per patient.
+ *
+ * New histories are stored at a document ID derived from the patient ID and created with
+ * a create-if-absent precondition, so a patient lookup is a point read and two concurrent
+ * creates can't both succeed. Histories written before this scheme keep their generated
+ * IDs and are still found by a patientId query when the point read misses.
+ *
+ * Patient lookups are fronted by an LRU cache that every write on this instance updates
+ * or evicts; entries also expire after a TTL so changes made by other instances show up.
+ */
 @Repository
 @Primary
 public class MedicalHistoryRepositoryImpl implements MedicalHistoryRepository {
-    
+
     private static final Logger logger = LoggerFactory.getLogger(MedicalHistoryRepositoryImpl.class);
     private static final String COLLECTION_NAME = "medical_histories";
 
     private final Firestore firestore;
+    private final int cacheSize;
+    private final long cacheTtlMs;
+    private final Map<String, CachedHistory> cache;
 
     @Autowired
-    public MedicalHistoryRepositoryImpl(Firestore firestore) {
+    public MedicalHistoryRepositoryImpl(Firestore firestore,
+                                        @Value("${app.medical-history.cache-size:1000}") int cacheSize,
+                                        @Value("${app.medical-history.cache-ttl-seconds:300}") long cacheTtlSeconds) {
         this.firestore = firestore;
+        this.cacheSize = Math.max(1, cacheSize);
+        this.cacheTtlMs = Math.max(1, cacheTtlSeconds) * 1000;
+        // Access-ordered, so the eldest entry is the least recently used
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedHistory> eldest) {
+                return size() > MedicalHistoryRepositoryImpl.this.cacheSize;
+            }
+        };
         logger.info("Initialized MedicalHistoryRepositoryImpl with direct Firestore access");
     }
 
+    /**
+     * Document ID of the medical history of a patient
+     */
+    static String documentIdFor(String patientId) {
+        // Document IDs can't contain slashes
+        return patientId.replace('/', '_');
+    }
+
     @Override
     public Optional<MedicalHistory> findById(String id) {
         try {
             DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(id);
             ApiFuture<DocumentSnapshot> future = docRef.get();
             DocumentSnapshot document = future.get();
-            
+
             if (document.exists()) {
                 FirestoreMedicalHistory firestoreMedicalHistory = document.toObject(FirestoreMedicalHistory.class);
                 return Optional.ofNullable(firestoreMedicalHistory).map(FirestoreMedicalHistory::toMedicalHistory);
@@ -50,14 +87,32 @@ public class MedicalHistoryRepositoryImpl implements MedicalHistoryRepository {
 
     @Override
     public Optional<MedicalHistory> findByPatientId(String patientId) {
+        if (patientId == null || patientId.isEmpty()) {
+            return Optional.empty();
+        }
+        FirestoreMedicalHistory cached = getCached(patientId);
+        if (cached != null) {
+            return Optional.of(cached.toMedicalHistory());
+        }
         try {
-            Query query = firestore.collection(COLLECTION_NAME).whereEqualTo("patientId", patientId);
-            ApiFuture<QuerySnapshot> future = query.get();
-            List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-            
-            if (!documents.isEmpty()) {
-                FirestoreMedicalHistory firestoreMedicalHistory = documents.get(0).toObject(FirestoreMedicalHistory.class);
-                return Optional.ofNullable(firestoreMedicalHistory).map(FirestoreMedicalHistory::toMedicalHistory);
+            FirestoreMedicalHistory firestoreMedicalHistory = null;
+
+            // Point read at the derived ID first
+            DocumentSnapshot document = firestore.collection(COLLECTION_NAME).document(documentIdFor(patientId)).get().get();
+            if (document.exists()) {
+                firestoreMedicalHistory = document.toObject(FirestoreMedicalHistory.class);
+            } else {
+                // Histories created before derived IDs were introduced
+                Query query = firestore.collection(COLLECTION_NAME).whereEqualTo("patientId", patientId).limit(1);
+                List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+                if (!documents.isEmpty()) {
+                    firestoreMedicalHistory = documents.get(0).toObject(FirestoreMedicalHistory.class);
+                }
+            }
+
+            if (firestoreMedicalHistory != null) {
+                putCached(patientId, firestoreMedicalHistory);
+                return Optional.of(firestoreMedicalHistory.toMedicalHistory());
             }
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error retrieving medical history for patient ID {}: {}", patientId, e.getMessage(), e);
@@ -70,34 +125,68 @@ public class MedicalHistoryRepositoryImpl implements MedicalHistoryRepository {
     public MedicalHistory save(MedicalHistory medicalHistory) {
         try {
             FirestoreMedicalHistory firestoreMedicalHistory = FirestoreMedicalHistory.fromMedicalHistory(medicalHistory);
-            
-            // Generate ID if not present
+
+            // New histories live at the ID derived from the patient
             if (firestoreMedicalHistory.getId() == null || firestoreMedicalHistory.getId().isEmpty()) {
-                firestoreMedicalHistory.setId(UUID.randomUUID().toString());
+                firestoreMedicalHistory.setId(documentIdFor(medicalHistory.getPatientId()));
                 medicalHistory.setId(firestoreMedicalHistory.getId());
             }
-            
+
             DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(firestoreMedicalHistory.getId());
             ApiFuture<WriteResult> result = docRef.set(firestoreMedicalHistory);
-            
+
             // Wait for the operation to complete
             result.get();
+            putCached(medicalHistory.getPatientId(), firestoreMedicalHistory);
             logger.info("Medical history saved with ID: {}", firestoreMedicalHistory.getId());
-            
+
             return medicalHistory;
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error saving medical history: {}", e.getMessage(), e);
+            evict(medicalHistory.getPatientId());
             Thread.currentThread().interrupt();
             throw new RuntimeException("Failed to save medical history", e);
         }
     }
 
+    @Override
+    public Optional<MedicalHistory> createIfAbsent(MedicalHistory medicalHistory) {
+        // Legacy histories aren't at the derived ID, so the precondition alone can't see them
+        if (findByPatientId(medicalHistory.getPatientId()).isPresent()) {
+            return Optional.empty();
+        }
+        try {
+            FirestoreMedicalHistory firestoreMedicalHistory = FirestoreMedicalHistory.fromMedicalHistory(medicalHistory);
+            firestoreMedicalHistory.setId(documentIdFor(medicalHistory.getPatientId()));
+            medicalHistory.setId(firestoreMedicalHistory.getId());
+
+            // create() fails with ALREADY_EXISTS if another request got there first
+            DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(firestoreMedicalHistory.getId());
+            docRef.create(firestoreMedicalHistory).get();
+            putCached(medicalHistory.getPatientId(), firestoreMedicalHistory);
+            logger.info("Medical history created with ID: {}", firestoreMedicalHistory.getId());
+
+            return Optional.of(medicalHistory);
+        } catch (ExecutionException e) {
+            if (isAlreadyExists(e)) {
+                logger.info("Medical history for patient ID {} was created concurrently", medicalHistory.getPatientId());
+                return Optional.empty();
+            }
+            logger.error("Error creating medical history: {}", e.getMessage(), e);
+            throw new RuntimeException("Failed to create medical history", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to create medical history", e);
+        }
+    }
+
     @Override
     public void deleteById(String id) {
         try {
             DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(id);
             ApiFuture<WriteResult> result = docRef.delete();
             result.get();
+            evictById(id);
             logger.info("Medical history with ID {} deleted successfully", id);
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error deleting medical history with ID {}: {}", id, e.getMessage(), e);
@@ -109,21 +198,83 @@ public class MedicalHistoryRepositoryImpl implements MedicalHistoryRepository {
     @Override
     public void deleteByPatientId(String patientId) {
         try {
-            // First find the document with the given patientId
+            // Legacy documents are found by query; the derived ID is included by the same query
             Query query = firestore.collection(COLLECTION_NAME).whereEqualTo("patientId", patientId);
-            ApiFuture<QuerySnapshot> future = query.get();
-            List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-            
-            // Delete each matching document
-            for (QueryDocumentSnapshot document : documents) {
-                ApiFuture<WriteResult> result = document.getReference().delete();
-                result.get();
-                logger.info("Medical history for patient ID {} deleted successfully", patientId);
+            List<QueryDocumentSnapshot> documents = query.select(FieldPath.documentId()).get().get().getDocuments();
+
+            // A patient has one history (rarely a legacy duplicate), so one batch commit covers it
+            if (!documents.isEmpty()) {
+                WriteBatch batch = firestore.batch();
+                for (QueryDocumentSnapshot document : documents) {
+                    batch.delete(document.getReference());
+                }
+                batch.commit().get();
             }
+            evict(patientId);
+            logger.info("Deleted {} medical histories for patient ID {}", documents.size(), patientId);
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error deleting medical history for patient ID {}: {}", patientId, e.getMessage(), e);
+            evict(patientId);
             Thread.currentThread().interrupt();
             throw new RuntimeException("Failed to delete medical history", e);
         }
     }
+
+    private static boolean isAlreadyExists(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException
+                    && ((ApiException) cause).getStatusCode().getCode() == StatusCode.Code.ALREADY_EXISTS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private FirestoreMedicalHistory getCached(String patientId) {
+        synchronized (cache) {
+            CachedHistory cached = cache.get(patientId);
+            if (cached == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - cached.loadedAt > cacheTtlMs) {
+                cache.remove(patientId);
+                return null;
+            }
+            return cached.history;
+        }
+    }
+
+    private void putCached(String patientId, FirestoreMedicalHistory history) {
+        if (patientId == null) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(patientId, new CachedHistory(history, System.currentTimeMillis()));
+        }
+    }
+
+    private void evict(String patientId) {
+        if (patientId == null) {
+            return;
+        }
+        synchronized (cache) {
+            cache.remove(patientId);
+        }
+    }
+
+    private void evictById(String id) {
+        synchronized (cache) {
+            cache.values().removeIf(cached -> id.equals(cached.history.getId()));
+        }
+    }
+
+    private static final class CachedHistory {
+        final FirestoreMedicalHistory history;
+        final long loadedAt;
+
+        CachedHistory(FirestoreMedicalHistory history, long loadedAt) {
+            this.history = history;
+            this.loadedAt = loadedAt;
+        }
+    }
 }
@@ -3,10 +3,25 @@ package com.cosmicdoc.opdmanagement.repository;
 import com.cosmicdoc.opdmanagement.model.Appointment;
 import com.cosmicdoc.opdmanagement.repository.AppointmentRepository;
 import com.cosmicdoc.opdmanagement.model.FirestoreAppointment;
+import com.cosmicdoc.opdmanagement.model.QueueAdvance;
+import com.cosmicdoc.opdmanagement.service.AppointmentWriteMetrics;
+import com.cosmicdoc.opdmanagement.service.CompiledSchedule;
+import com.cosmicdoc.opdmanagement.service.DoctorLeaveIndex;
+import com.cosmicdoc.opdmanagement.service.DoctorScheduleCache;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteResult;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -27,12 +42,26 @@ import java.util.stream.Collectors;
 public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
     private static final Logger logger = LoggerFactory.getLogger(OpdAppointmentRepositoryImpl.class);
     private static final String COLLECTION_NAME = "appointments";
+    // Queue order of WAITING tokens: token order, then token number; unset values go last
+    private static final Comparator<FirestoreAppointment> QUEUE_ORDER = Comparator
+            .comparing((FirestoreAppointment appointment) -> appointment.getTokenOrder() != null ? appointment.getTokenOrder() : Integer.MAX_VALUE)
+            .thenComparing(appointment -> appointment.getTokenNumber() != null ? appointment.getTokenNumber() : Integer.MAX_VALUE);
 
     private final Firestore firestore;
+    private final DoctorLeaveIndex doctorLeaveIndex;
+    private final DoctorScheduleCache doctorScheduleCache;
+    private final AppointmentWriteMetrics writeMetrics;
+    private final ClinicClock clinicClock;
 
     @Autowired
-    public OpdAppointmentRepositoryImpl(Firestore firestore) {
+    public OpdAppointmentRepositoryImpl(Firestore firestore, DoctorLeaveIndex doctorLeaveIndex,
+                                        DoctorScheduleCache doctorScheduleCache, AppointmentWriteMetrics writeMetrics,
+                                        ClinicClock clinicClock) {
         this.firestore = firestore;
+        this.doctorLeaveIndex = doctorLeaveIndex;
+        this.doctorScheduleCache = doctorScheduleCache;
+        this.writeMetrics = writeMetrics;
+        this.clinicClock = clinicClock;
         logger.info("Initialized OpdAppointmentRepositoryImpl with direct Firestore access");
     }
 
@@ -84,10 +113,68 @@ public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
         // Convert Appointment to FirestoreAppointment
         FirestoreAppointment firestoreAppointment = FirestoreAppointment.fromAppointment(appointment);
         
-        // Save the FirestoreAppointment to Firestore
-        firestore.collection(COLLECTION_NAME).document(appointment.getAppointmentId()).set(firestoreAppointment);
+        // Wait for the write so errors surface and a following read sees the appointment
+        try {
+            track(firestore.collection(COLLECTION_NAME).document(appointment.getAppointmentId()).set(firestoreAppointment)).get();
+            return appointment;
+        } catch (ExecutionException e) {
+            logger.error("Error saving appointment: " + appointment.getAppointmentId(), e.getCause());
+            throw new RuntimeException("Failed to save appointment with ID: " + appointment.getAppointmentId(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted saving appointment with ID: " + appointment.getAppointmentId(), e);
+        }
+    }
+
+    @Override
+    public boolean updateFields(String appointmentId, Map<String, Object> fields) {
+        Map<String, Object> updates = new HashMap<>(fields);
+        updates.put("updatedAt", FieldValue.serverTimestamp());
         
-        return appointment;
+        // update() fails with NOT_FOUND rather than creating the document
+        try {
+            track(firestore.collection(COLLECTION_NAME).document(appointmentId).update(updates)).get();
+            return true;
+        } catch (ExecutionException e) {
+            if (isNotFound(e)) {
+                return false;
+            }
+            logger.error("Error updating appointment: " + appointmentId, e.getCause());
+            throw new RuntimeException("Failed to update appointment with ID: " + appointmentId, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted updating appointment with ID: " + appointmentId, e);
+        }
+    }
+
+    /**
+     * Record latency and outcome of a write when Firestore acknowledges it
+     */
+    private ApiFuture<WriteResult> track(ApiFuture<WriteResult> write) {
+        long start = writeMetrics.started();
+        ApiFutures.addCallback(write, new ApiFutureCallback<WriteResult>() {
+            @Override
+            public void onSuccess(WriteResult writeResult) {
+                writeMetrics.completed(start, true);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                // A missing document on update is an answer, not a failed write
+                writeMetrics.completed(start, isNotFound(error));
+            }
+        }, MoreExecutors.directExecutor());
+        return write;
+    }
+
+    private static boolean isNotFound(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException
+                    && ((ApiException) cause).getStatusCode().getCode() == StatusCode.Code.NOT_FOUND) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -152,10 +239,8 @@ public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
     public List<Appointment> findByAppointmentDateBetween(LocalDateTime start, LocalDateTime end) {
         try {
             // Convert LocalDateTime to Timestamp for Firestore querying
-            Timestamp startTimestamp = Timestamp.ofTimeSecondsAndNanos(
-                    start.atZone(ZoneId.systemDefault()).toEpochSecond(), 0);
-            Timestamp endTimestamp = Timestamp.ofTimeSecondsAndNanos(
-                    end.atZone(ZoneId.systemDefault()).toEpochSecond(), 0);
+            Timestamp startTimestamp = clinicClock.toTimestamp(start);
+            Timestamp endTimestamp = clinicClock.toTimestamp(end);
             
             return firestore.collection(COLLECTION_NAME)
                     .whereGreaterThanOrEqualTo("appointmentDate", startTimestamp)
@@ -171,6 +256,33 @@ public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
         }
     }
 
+    @Override
+    public List<Appointment> findStatusSummariesBetween(LocalDateTime start, LocalDateTime end) {
+        try {
+            Timestamp startTimestamp = clinicClock.toTimestamp(start);
+            Timestamp endTimestamp = clinicClock.toTimestamp(end);
+            
+            // Projection: only the fields counted, not whole appointment documents
+            return firestore.collection(COLLECTION_NAME)
+                    .whereGreaterThanOrEqualTo("appointmentDate", startTimestamp)
+                    .whereLessThanOrEqualTo("appointmentDate", endTimestamp)
+                    .select("appointmentDate", "doctorId", "status")
+                    .get().get().getDocuments().stream()
+                    .map(this::documentToFirestoreAppointment)
+                    .filter(Objects::nonNull)
+                    .map(FirestoreAppointment::toAppointment)
+                    .collect(Collectors.toList());
+        } catch (ExecutionException e) {
+            // An empty list would read as a month without appointments
+            logger.error("Error fetching appointment summaries between dates", e);
+            throw new RuntimeException("Failed to fetch appointment summaries", e);
+        } catch (InterruptedException e) {
+            logger.error("Interrupted fetching appointment summaries between dates", e);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to fetch appointment summaries", e);
+        }
+    }
+
     @Override
     public List<Appointment> findByUserIdAndStatus(String userId, String status) {
         try {
@@ -207,19 +319,13 @@ public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
     @Override
     public List<Appointment> findByDoctorIdAndDate(String doctorId, LocalDate date) {
         try {
-            // Convert LocalDate to start and end timestamps for the day
-            LocalDateTime startOfDay = date.atStartOfDay();
-            LocalDateTime endOfDay = date.atTime(23, 59, 59);
-            
-            Timestamp startTimestamp = Timestamp.ofTimeSecondsAndNanos(
-                    startOfDay.atZone(ZoneId.systemDefault()).toEpochSecond(), 0);
-            Timestamp endTimestamp = Timestamp.ofTimeSecondsAndNanos(
-                    endOfDay.atZone(ZoneId.systemDefault()).toEpochSecond(), 999999999);
+            // The clinic's day, start inclusive and end exclusive
+            ClinicClock.Range day = clinicClock.dayRange(date);
             
             return firestore.collection(COLLECTION_NAME)
                     .whereEqualTo("doctorId", doctorId)
-                    .whereGreaterThanOrEqualTo("appointmentDate", startTimestamp)
-                    .whereLessThanOrEqualTo("appointmentDate", endTimestamp)
+                    .whereGreaterThanOrEqualTo("appointmentDate", day.getStart())
+                    .whereLessThan("appointmentDate", day.getEnd())
                     .get().get().getDocuments().stream()
                     .map(this::documentToFirestoreAppointment)
                     .filter(Objects::nonNull)
@@ -234,18 +340,12 @@ public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
     @Override
     public List<Appointment> findByDate(LocalDate date) {
         try {
-            // Convert LocalDate to start and end timestamps for the day
-            LocalDateTime startOfDay = date.atStartOfDay();
-            LocalDateTime endOfDay = date.atTime(23, 59, 59);
-            
-            Timestamp startTimestamp = Timestamp.ofTimeSecondsAndNanos(
-                    startOfDay.atZone(ZoneId.systemDefault()).toEpochSecond(), 0);
-            Timestamp endTimestamp = Timestamp.ofTimeSecondsAndNanos(
-                    endOfDay.atZone(ZoneId.systemDefault()).toEpochSecond(), 999999999);
+            // The clinic's day, start inclusive and end exclusive
+            ClinicClock.Range day = clinicClock.dayRange(date);
             
             return firestore.collection(COLLECTION_NAME)
-                    .whereGreaterThanOrEqualTo("appointmentDate", startTimestamp)
-                    .whereLessThanOrEqualTo("appointmentDate", endTimestamp)
+                    .whereGreaterThanOrEqualTo("appointmentDate", day.getStart())
+                    .whereLessThan("appointmentDate", day.getEnd())
                     .get().get().getDocuments().stream()
                     .map(this::documentToFirestoreAppointment)
                     .filter(Objects::nonNull)
@@ -260,19 +360,13 @@ public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
     @Override
     public List<Appointment> findByDoctorIdAndMonth(String doctorId, YearMonth month) {
         try {
-            // Convert YearMonth to start and end timestamps for the month
-            LocalDateTime startOfMonth = month.atDay(1).atStartOfDay();
-            LocalDateTime endOfMonth = month.atEndOfMonth().atTime(LocalTime.MAX);
-            
-            Timestamp startTimestamp = Timestamp.ofTimeSecondsAndNanos(
-                    startOfMonth.atZone(ZoneId.systemDefault()).toEpochSecond(), 0);
-            Timestamp endTimestamp = Timestamp.ofTimeSecondsAndNanos(
-                    endOfMonth.atZone(ZoneId.systemDefault()).toEpochSecond(), 0);
+            // The clinic's month, start inclusive and end exclusive
+            ClinicClock.Range range = clinicClock.monthRange(month);
             
             return firestore.collection(COLLECTION_NAME)
                     .whereEqualTo("doctorId", doctorId)
-                    .whereGreaterThanOrEqualTo("appointmentDate", startTimestamp)
-                    .whereLessThanOrEqualTo("appointmentDate", endTimestamp)
+                    .whereGreaterThanOrEqualTo("appointmentDate", range.getStart())
+                    .whereLessThan("appointmentDate", range.getEnd())
                     .get().get().getDocuments().stream()
                     .map(this::documentToFirestoreAppointment)
                     .filter(Objects::nonNull)
@@ -289,14 +383,7 @@ public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
     @Override
     public boolean reassignAppointment(String appointmentId, String newDoctorId) {
         try {
-            Optional<Appointment> appointmentOpt = findById(appointmentId);
-            if (appointmentOpt.isPresent()) {
-                Appointment appointment = appointmentOpt.get();
-                appointment.setDoctorId(newDoctorId);
-                save(appointment);
-                return true;
-            }
-            return false;
+            return updateFields(appointmentId, Map.of("doctorId", newDoctorId));
         } catch (Exception e) {
             logger.error("Error reassigning appointment: " + appointmentId, e);
             return false;
@@ -306,14 +393,7 @@ public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
     @Override
     public boolean cancelAppointment(String appointmentId) {
         try {
-            Optional<Appointment> appointmentOpt = findById(appointmentId);
-            if (appointmentOpt.isPresent()) {
-                Appointment appointment = appointmentOpt.get();
-                appointment.setStatus("CANCELLED");
-                save(appointment);
-                return true;
-            }
-            return false;
+            return updateFields(appointmentId, Map.of("status", "CANCELLED"));
         } catch (Exception e) {
             logger.error("Error cancelling appointment: " + appointmentId, e);
             return false;
@@ -329,10 +409,8 @@ public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
             LocalDateTime startBuffer = dateTime.minusMinutes(30);
             LocalDateTime endBuffer = dateTime.plusMinutes(30);
             
-            Timestamp startTimestamp = Timestamp.ofTimeSecondsAndNanos(
-                    startBuffer.atZone(ZoneId.systemDefault()).toEpochSecond(), 0);
-            Timestamp endTimestamp = Timestamp.ofTimeSecondsAndNanos(
-                    endBuffer.atZone(ZoneId.systemDefault()).toEpochSecond(), 0);
+            Timestamp startTimestamp = clinicClock.toTimestamp(startBuffer);
+            Timestamp endTimestamp = clinicClock.toTimestamp(endBuffer);
             
             // Check if there are any appointments for this doctor within the time buffer
             long count = firestore.collection(COLLECTION_NAME)
@@ -351,30 +429,96 @@ public class OpdAppointmentRepositoryImpl implements AppointmentRepository {
 
     @Override
     public List<LocalTime> getDoctorAvailableTimeSlots(String doctorId, LocalDate date) {
+        // Working days and leave are answered from memory before any appointment reads
+        CompiledSchedule schedule = doctorScheduleCache.getSchedule(doctorId);
+        if (!schedule.worksOn(date.getDayOfWeek()) || doctorLeaveIndex.isOnLeave(doctorId, date)) {
+            return Collections.emptyList();
+        }
         try {
-            // Get all appointments for this doctor on the given date
+            // One read for the day's appointments, then filter the compiled slots in memory
             List<Appointment> doctorAppointments = findByDoctorIdAndDate(doctorId, date);
-            
-            // Define the working hours (e.g., 9 AM to 5 PM)
-            LocalTime startTime = LocalTime.of(9, 0);
-            LocalTime endTime = LocalTime.of(17, 0);
-            
-            // Create time slots every 30 minutes
-            List<LocalTime> allTimeSlots = new ArrayList<>();
-            for (LocalTime time = startTime; !time.isAfter(endTime); time = time.plusMinutes(30)) {
-                allTimeSlots.add(time);
+            int[] bookedMinutes = new int[doctorAppointments.size()];
+            int count = 0;
+            for (Appointment appointment : doctorAppointments) {
+                LocalDateTime appointmentTime = appointment.getAppointmentDate() != null
+                        ? clinicClock.toLocalDateTime(appointment.getAppointmentDate()) : null;
+                if (appointmentTime != null && !"CANCELLED".equals(appointment.getStatus())) {
+                    bookedMinutes[count++] = appointmentTime.getHour() * 60 + appointmentTime.getMinute();
+                }
             }
-            
-            // Filter out time slots that conflict with existing appointments
-            return allTimeSlots.stream()
-                    .filter(time -> isDoctorAvailable(doctorId, date, time))
-                    .collect(Collectors.toList());
+            return schedule.openSlots(bookedMinutes, count);
         } catch (Exception e) {
             logger.error("Error getting doctor available time slots", e);
             return Collections.emptyList();
         }
     }
     
+    @Override
+    public QueueAdvance advanceQueue(String doctorId, LocalDate date, String finishedTokenStatus, String finishedStatus) {
+        ClinicClock.Range day = clinicClock.dayRange(date);
+        Query queue = firestore.collection(COLLECTION_NAME)
+                .whereEqualTo("doctorId", doctorId)
+                .whereGreaterThanOrEqualTo("appointmentDate", day.getStart())
+                .whereLessThan("appointmentDate", day.getEnd());
+        long start = writeMetrics.started();
+        try {
+            // Reading the day's queue inside the transaction makes a concurrent advance retry
+            // instead of promoting the same WAITING token twice
+            QueueAdvance advance = firestore.runTransaction(transaction -> {
+                List<FirestoreAppointment> current = new ArrayList<>();
+                FirestoreAppointment next = null;
+                for (QueryDocumentSnapshot document : transaction.get(queue).get().getDocuments()) {
+                    FirestoreAppointment appointment = documentToFirestoreAppointment(document);
+                    if (appointment == null) {
+                        continue;
+                    }
+                    if ("CURRENT".equals(appointment.getTokenStatus())) {
+                        current.add(appointment);
+                    } else if ("WAITING".equals(appointment.getTokenStatus())
+                            && (next == null || QUEUE_ORDER.compare(appointment, next) < 0)) {
+                        next = appointment;
+                    }
+                }
+
+                // Normally one CURRENT token; finish any strays too so the queue converges
+                for (FirestoreAppointment appointment : current) {
+                    Map<String, Object> updates = new HashMap<>();
+                    updates.put("tokenStatus", finishedTokenStatus);
+                    appointment.setTokenStatus(finishedTokenStatus);
+                    if (finishedStatus != null) {
+                        updates.put("status", finishedStatus);
+                        appointment.setStatus(finishedStatus);
+                    }
+                    updates.put("updatedAt", FieldValue.serverTimestamp());
+                    transaction.update(firestore.collection(COLLECTION_NAME).document(appointment.getAppointmentId()), updates);
+                }
+                if (next != null) {
+                    Map<String, Object> updates = new HashMap<>();
+                    updates.put("tokenStatus", "CURRENT");
+                    updates.put("status", "ENGAGED");
+                    updates.put("updatedAt", FieldValue.serverTimestamp());
+                    next.setTokenStatus("CURRENT");
+                    next.setStatus("ENGAGED");
+                    transaction.update(firestore.collection(COLLECTION_NAME).document(next.getAppointmentId()), updates);
+                }
+                // updatedAt is left as read: the server sets it on commit and the DTOs don't carry it
+                return new QueueAdvance(
+                        current.isEmpty() ? null : current.get(0).toAppointment(),
+                        next != null ? next.toAppointment() : null);
+            }).get();
+            writeMetrics.completed(start, true);
+            return advance;
+        } catch (ExecutionException e) {
+            writeMetrics.completed(start, false);
+            logger.error("Error advancing queue of doctor: " + doctorId, e);
+            throw new RuntimeException("Failed to advance queue for doctor: " + doctorId, e);
+        } catch (InterruptedException e) {
+            writeMetrics.completed(start, false);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted advancing queue for doctor: " + doctorId, e);
+        }
+    }
+
     /**
      * Converts a Firestore document to a FirestoreAppointment object.
      * 
@@ -2,6 +2,9 @@ package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.Doctor;
 import com.cosmicdoc.opdmanagement.model.FirestoreDoctor;
+import com.cosmicdoc.opdmanagement.service.DoctorLeaveIndex;
+import com.cosmicdoc.opdmanagement.service.DoctorRosterIndex;
+import com.cosmicdoc.opdmanagement.service.DoctorScheduleCache;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
 import org.slf4j.Logger;
@@ -23,10 +26,17 @@ public class OpdDoctorRepositoryImpl implements DoctorRepository {
     private static final String COLLECTION_NAME = "doctors";
     
     private final Firestore firestore;
+    private final DoctorLeaveIndex leaveIndex;
+    private final DoctorScheduleCache scheduleCache;
+    private final DoctorRosterIndex rosterIndex;
     
     @Autowired
-    public OpdDoctorRepositoryImpl(Firestore firestore) {
+    public OpdDoctorRepositoryImpl(Firestore firestore, DoctorLeaveIndex leaveIndex, DoctorScheduleCache scheduleCache,
+                                   DoctorRosterIndex rosterIndex) {
         this.firestore = firestore;
+        this.leaveIndex = leaveIndex;
+        this.scheduleCache = scheduleCache;
+        this.rosterIndex = rosterIndex;
     }
     
     @Override
@@ -88,6 +98,9 @@ public class OpdDoctorRepositoryImpl implements DoctorRepository {
     
     @Override
     public List<Doctor> findBySpecialization(String specialization) {
+        if (rosterIndex.isReady()) {
+            return rosterIndex.findBySpecialization(specialization, false);
+        }
         try {
             ApiFuture<QuerySnapshot> future = 
                 firestore.collection(COLLECTION_NAME)
@@ -126,6 +139,12 @@ public class OpdDoctorRepositoryImpl implements DoctorRepository {
             ApiFuture<WriteResult> result = docRef.set(docMap);
             result.get(); // Wait for the write to complete
             
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> storedLeaves = (List<Map<String, Object>>) docMap.get("leaves");
+            leaveIndex.replace(firestoreDoctor.getId(), storedLeaves);
+            scheduleCache.refresh(firestoreDoctor);
+            rosterIndex.put(firestoreDoctor);
+            
             return doctor;
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error saving doctor: {}", doctor.getId(), e);
@@ -139,6 +158,9 @@ public class OpdDoctorRepositoryImpl implements DoctorRepository {
         try {
             ApiFuture<WriteResult> writeResult = firestore.collection(COLLECTION_NAME).document(id).delete();
             writeResult.get(); // Wait for the delete to complete
+            leaveIndex.remove(id);
+            scheduleCache.remove(id);
+            rosterIndex.remove(id);
             return true;
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error deleting doctor with ID: {}", id, e);
@@ -163,6 +185,9 @@ public class OpdDoctorRepositoryImpl implements DoctorRepository {
     
     @Override
     public List<Doctor> findAvailable() {
+        if (rosterIndex.isReady()) {
+            return rosterIndex.findActive();
+        }
         try {
             ApiFuture<QuerySnapshot> future = 
                 firestore.collection(COLLECTION_NAME)
@@ -183,6 +208,9 @@ public class OpdDoctorRepositoryImpl implements DoctorRepository {
     
     @Override
     public List<Doctor> findAvailableBySpecialization(String specialization) {
+        if (rosterIndex.isReady()) {
+            return rosterIndex.findBySpecialization(specialization, true);
+        }
         try {
             ApiFuture<QuerySnapshot> future = 
                 firestore.collection(COLLECTION_NAME)
@@ -211,6 +239,7 @@ public class OpdDoctorRepositoryImpl implements DoctorRepository {
             
             ApiFuture<WriteResult> writeResult = docRef.update(updates);
             writeResult.get(); // Wait for the update to complete
+            rosterIndex.updateAvailability(id, isAvailable);
             return true;
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error updating availability for doctor: {}", id, e);
@@ -220,80 +249,53 @@ public class OpdDoctorRepositoryImpl implements DoctorRepository {
     }
     
     @Override
-    public boolean addLeave(String id, LocalDate startDate, LocalDate endDate, String reason) {
+    public Optional<Doctor.DoctorLeave> addLeave(String id, LocalDate startDate, LocalDate endDate, String reason) {
         try {
+            FirestoreDoctor.Leave leave = new FirestoreDoctor.Leave();
+            leave.setId(UUID.randomUUID().toString());
+            leave.setStartDate(startDate.toString());
+            leave.setEndDate(endDate.toString());
+            leave.setReason(reason);
+            leave.setStatus("PENDING"); // Default status
+            Map<String, Object> stored = leave.toMap();
+            
+            // arrayUnion appends without reading or rewriting the other leaves
             DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(id);
-            ApiFuture<DocumentSnapshot> future = docRef.get();
-            DocumentSnapshot document = future.get();
+            ApiFuture<WriteResult> writeResult = docRef.update("leaves", FieldValue.arrayUnion(stored));
+            writeResult.get(); // Wait for the update to complete
             
-            if (document.exists()) {
-                FirestoreDoctor doctor = document.toObject(FirestoreDoctor.class);
-                
-                if (doctor != null) {
-                    if (doctor.getLeaves() == null) {
-                        doctor.setLeaves(new ArrayList<>());
-                    }
-                    
-                    FirestoreDoctor.Leave leave = new FirestoreDoctor.Leave();
-                    leave.setStartDate(startDate.toString());
-                    leave.setEndDate(endDate.toString());
-                    leave.setReason(reason);
-                    leave.setStatus("PENDING"); // Default status
-                    
-                    doctor.getLeaves().add(leave);
-                    
-                    // Update the document
-                    ApiFuture<WriteResult> writeResult = docRef.update("leaves", doctor.getLeaves());
-                    writeResult.get(); // Wait for the update to complete
-                    return true;
-                }
-            }
-            return false;
-        } catch (InterruptedException | ExecutionException e) {
+            leaveIndex.addLeave(id, stored);
+            return Optional.of(leave.toDoctorLeave());
+        } catch (ExecutionException e) {
             logger.error("Error adding leave for doctor: {}", id, e);
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            logger.error("Interrupted adding leave for doctor: {}", id, e);
             Thread.currentThread().interrupt();
-            return false;
+            return Optional.empty();
         }
     }
     
     @Override
     public boolean cancelLeave(String id, String leaveId) {
-        // Implementation would require storing a unique ID for each leave
-        // This is a simplified implementation
         try {
+            Optional<Map<String, Object>> stored = leaveIndex.findStoredLeave(id, leaveId);
+            if (stored.isEmpty()) {
+                return false;
+            }
+            
+            // arrayRemove matches by value, so pass the element exactly as stored
             DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(id);
-            ApiFuture<DocumentSnapshot> future = docRef.get();
-            DocumentSnapshot document = future.get();
+            ApiFuture<WriteResult> writeResult = docRef.update("leaves", FieldValue.arrayRemove(stored.get()));
+            writeResult.get(); // Wait for the update to complete
             
-            if (document.exists()) {
-                FirestoreDoctor doctor = document.toObject(FirestoreDoctor.class);
-                
-                if (doctor != null && doctor.getLeaves() != null) {
-                    // In a real implementation, we would find the leave by ID
-                    // For now, we'll just remove the first leave with status PENDING
-                    
-                    boolean removed = false;
-                    List<FirestoreDoctor.Leave> updatedLeaves = new ArrayList<>(doctor.getLeaves());
-                    
-                    for (int i = 0; i < updatedLeaves.size(); i++) {
-                        FirestoreDoctor.Leave leave = updatedLeaves.get(i);
-                        if (leave.getStatus().equals("PENDING")) {
-                            updatedLeaves.remove(i);
-                            removed = true;
-                            break;
-                        }
-                    }
-                    
-                    if (removed) {
-                        ApiFuture<WriteResult> writeResult = docRef.update("leaves", updatedLeaves);
-                        writeResult.get(); // Wait for the update to complete
-                        return true;
-                    }
-                }
-            }
-            return false;
-        } catch (InterruptedException | ExecutionException e) {
+            leaveIndex.removeLeave(id, leaveId);
+            return true;
+        } catch (ExecutionException e) {
             logger.error("Error canceling leave for doctor: {}", id, e);
+            return false;
+        } catch (InterruptedException e) {
+            logger.error("Interrupted canceling leave for doctor: {}", id, e);
             Thread.currentThread().interrupt();
             return false;
         }
@@ -301,35 +303,7 @@ public class OpdDoctorRepositoryImpl implements DoctorRepository {
     
     @Override
     public List<Doctor.DoctorLeave> getDoctorLeaves(String id) {
-        try {
-            DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(id);
-            ApiFuture<DocumentSnapshot> future = docRef.get();
-            DocumentSnapshot document = future.get();
-            
-            if (document.exists()) {
-                FirestoreDoctor doctor = document.toObject(FirestoreDoctor.class);
-                List<Doctor.DoctorLeave> result = new ArrayList<>();
-                
-                if (doctor != null && doctor.getLeaves() != null) {
-                    // Convert FirestoreDoctor.Leave to Doctor.DoctorLeave
-                    for (FirestoreDoctor.Leave leave : doctor.getLeaves()) {
-                        Doctor.DoctorLeave doctorLeave = new Doctor.DoctorLeave();
-                        // Parse string dates to LocalDateTime
-                        doctorLeave.setStartDate(LocalDate.parse(leave.getStartDate()).atStartOfDay());
-                        doctorLeave.setEndDate(LocalDate.parse(leave.getEndDate()).atStartOfDay());
-                        doctorLeave.setReason(leave.getReason());
-                        doctorLeave.setStatus(leave.getStatus());
-                        result.add(doctorLeave);
-                    }
-                    return result;
-                }
-            }
-            return Collections.emptyList();
-        } catch (InterruptedException | ExecutionException e) {
-            logger.error("Error fetching leaves for doctor: {}", id, e);
-            Thread.currentThread().interrupt();
-            return Collections.emptyList();
-        }
+        return leaveIndex.getLeaves(id);
     }
     
     @Override
@@ -342,6 +316,7 @@ public class OpdDoctorRepositoryImpl implements DoctorRepository {
             
             ApiFuture<WriteResult> writeResult = docRef.update(updates);
             writeResult.get(); // Wait for the update to complete
+            rosterIndex.updateLocation(id, latitude, longitude);
             return true;
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error updating location for doctor: {}", id, e);
@@ -3,6 +3,7 @@ package com.cosmicdoc.opdmanagement.repository;
 import com.cosmicdoc.opdmanagement.model.Patient;
 import com.cosmicdoc.opdmanagement.repository.PatientRepository;
 import com.cosmicdoc.opdmanagement.model.FirestorePatient;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
 import org.slf4j.Logger;
@@ -23,10 +24,12 @@ public class OpdPatientRepositoryImpl implements PatientRepository {
     private static final String COLLECTION_NAME = "patients";
 
     private final Firestore firestore;
+    private final ClinicClock clinicClock;
 
     @Autowired
-    public OpdPatientRepositoryImpl(Firestore firestore) {
+    public OpdPatientRepositoryImpl(Firestore firestore, ClinicClock clinicClock) {
         this.firestore = firestore;
+        this.clinicClock = clinicClock;
         logger.info("Initialized OpdPatientRepositoryImpl with direct Firestore access");
     }
 
@@ -145,7 +148,7 @@ public class OpdPatientRepositoryImpl implements PatientRepository {
      * This is just a safety measure - normally IDs should be generated by PatientService
      */
     private String generateFallbackPatientId() {
-        String year = java.time.LocalDate.now().format(java.time.format.DateTimeFormatter.ofPattern("yyyy"));
+        String year = clinicClock.today().format(java.time.format.DateTimeFormatter.ofPattern("yyyy"));
         
         try {
             // Find highest existing ID
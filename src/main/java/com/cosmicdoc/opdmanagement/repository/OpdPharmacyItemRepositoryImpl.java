@@ -3,7 +3,13 @@ package com.cosmicdoc.opdmanagement.repository;
 import com.cosmicdoc.opdmanagement.model.PharmacyItem;
 import com.cosmicdoc.opdmanagement.repository.PharmacyItemRepository;
 import com.cosmicdoc.opdmanagement.model.FirestorePharmacyItem;
+import com.cosmicdoc.opdmanagement.model.StockMovement;
+import com.cosmicdoc.opdmanagement.exception.InsufficientStockException;
+import com.cosmicdoc.opdmanagement.exception.ResourceNotFoundException;
+import com.cosmicdoc.opdmanagement.service.PharmacyItemIndex;
 import com.google.api.core.ApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
 import com.google.cloud.firestore.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,7 +20,10 @@ import org.springframework.stereotype.Repository;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 
@@ -23,12 +32,16 @@ import java.util.concurrent.ExecutionException;
 public class OpdPharmacyItemRepositoryImpl implements PharmacyItemRepository {
     private static final Logger logger = LoggerFactory.getLogger(OpdPharmacyItemRepositoryImpl.class);
     private static final String COLLECTION_NAME = "pharmacy_items";
+    private static final String MOVEMENTS_COLLECTION = "pharmacy_stock_movements";
+    private static final int MIGRATION_PAGE_SIZE = 500;
 
     private final Firestore firestore;
+    private final PharmacyItemIndex pharmacyItemIndex;
 
     @Autowired
-    public OpdPharmacyItemRepositoryImpl(Firestore firestore) {
+    public OpdPharmacyItemRepositoryImpl(Firestore firestore, PharmacyItemIndex pharmacyItemIndex) {
         this.firestore = firestore;
+        this.pharmacyItemIndex = pharmacyItemIndex;
         logger.info("Initialized OpdPharmacyItemRepositoryImpl with direct Firestore access");
     }
 
@@ -80,33 +93,80 @@ public class OpdPharmacyItemRepositoryImpl implements PharmacyItemRepository {
 
     @Override
     public List<PharmacyItem> findByExpiryDateBefore(LocalDate date) {
-        List<PharmacyItem> items = new ArrayList<>();
-        String dateStr = date.format(DateTimeFormatter.ISO_LOCAL_DATE);
+        if (pharmacyItemIndex.isReady()) {
+            return pharmacyItemIndex.findExpiringBefore(date);
+        }
+        
+        Query query = firestore.collection(COLLECTION_NAME)
+                .whereLessThan("expiryAt", FirestorePharmacyItem.toExpiryTimestamp(date))
+                .orderBy("expiryAt");
+        return findByQuery(query, "expiry date before " + date);
+    }
+
+    @Override
+    public List<PharmacyItem> findByExpiryDateBetween(LocalDate from, LocalDate to) {
+        if (pharmacyItemIndex.isReady()) {
+            return pharmacyItemIndex.findExpiringBetween(from, to);
+        }
         
+        Query query = firestore.collection(COLLECTION_NAME)
+                .whereGreaterThanOrEqualTo("expiryAt", FirestorePharmacyItem.toExpiryTimestamp(from))
+                .whereLessThan("expiryAt", FirestorePharmacyItem.toExpiryTimestamp(to.plusDays(1)))
+                .orderBy("expiryAt");
+        return findByQuery(query, "expiry date between " + from + " and " + to);
+    }
+
+    @Override
+    public int migrateExpiryTimestamps() {
+        int updated = 0;
         try {
-            ApiFuture<QuerySnapshot> future = firestore.collection(COLLECTION_NAME).get();
-            List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-            
-            for (QueryDocumentSnapshot document : documents) {
-                FirestorePharmacyItem firestoreItem = document.toObject(FirestorePharmacyItem.class);
-                PharmacyItem item = firestoreItem.toPharmacyItem();
+            QueryDocumentSnapshot last = null;
+            while (true) {
+                Query page = firestore.collection(COLLECTION_NAME).orderBy(FieldPath.documentId()).limit(MIGRATION_PAGE_SIZE);
+                if (last != null) {
+                    page = page.startAfter(last);
+                }
+                List<QueryDocumentSnapshot> documents = page.get().get().getDocuments();
                 
-                if (item.getExpiryDate() != null && item.getExpiryDate().isBefore(date)) {
-                    items.add(item);
+                // Backfill expiryAt from the ISO expiryDate string, one batch per page
+                WriteBatch batch = firestore.batch();
+                int pending = 0;
+                for (QueryDocumentSnapshot document : documents) {
+                    String expiryDate = document.getString("expiryDate");
+                    if (expiryDate != null && !expiryDate.isEmpty() && document.get("expiryAt") == null) {
+                        LocalDate date = LocalDate.parse(expiryDate, DateTimeFormatter.ISO_LOCAL_DATE);
+                        batch.update(document.getReference(), "expiryAt", FirestorePharmacyItem.toExpiryTimestamp(date));
+                        pending++;
+                    }
+                }
+                if (pending > 0) {
+                    batch.commit().get();
+                    updated += pending;
                 }
+                
+                if (documents.size() < MIGRATION_PAGE_SIZE) {
+                    break;
+                }
+                last = documents.get(documents.size() - 1);
             }
+            logger.info("Expiry timestamp migration complete, updated {} pharmacy items", updated);
         } catch (InterruptedException | ExecutionException e) {
-            logger.error("Error finding pharmacy items with expiry date before {}: {}", dateStr, e.getMessage(), e);
+            logger.error("Error migrating pharmacy item expiry timestamps: {}", e.getMessage(), e);
             Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to migrate expiry timestamps", e);
         }
-        return items;
+        return updated;
     }
 
     @Override
     public List<PharmacyItem> findByNameContaining(String name) {
+        if (pharmacyItemIndex.isReady()) {
+            return pharmacyItemIndex.findByNameContaining(name);
+        }
+        
         List<PharmacyItem> items = new ArrayList<>();
         try {
-            // Firestore doesn't support native contains queries, so we'll do a full scan
+            // Index still loading; Firestore doesn't support native contains queries, so do a full scan
             ApiFuture<QuerySnapshot> future = firestore.collection(COLLECTION_NAME).get();
             List<QueryDocumentSnapshot> documents = future.get().getDocuments();
             
@@ -124,6 +184,17 @@ public class OpdPharmacyItemRepositoryImpl implements PharmacyItemRepository {
         return items;
     }
 
+    @Override
+    public List<PharmacyItem> search(String query, int limit) {
+        if (pharmacyItemIndex.isReady()) {
+            return pharmacyItemIndex.search(query, limit);
+        }
+        
+        // Index still loading; fall back to a name scan
+        List<PharmacyItem> items = findByNameContaining(query);
+        return limit > 0 && items.size() > limit ? new ArrayList<>(items.subList(0, limit)) : items;
+    }
+
     @Override
     public List<PharmacyItem> findByStockQuantityLessThan(int threshold) {
         List<PharmacyItem> items = new ArrayList<>();
@@ -143,6 +214,26 @@ public class OpdPharmacyItemRepositoryImpl implements PharmacyItemRepository {
         return items;
     }
 
+    @Override
+    public List<PharmacyItem> findLowStock() {
+        if (pharmacyItemIndex.isReady()) {
+            return pharmacyItemIndex.findLowStock();
+        }
+        
+        // Index still loading; reorder levels are per item, so filter a full read
+        List<PharmacyItem> items = new ArrayList<>();
+        for (PharmacyItem item : findAll()) {
+            int stock = item.getStockQuantity() != null ? item.getStockQuantity() : 0;
+            if (!Boolean.FALSE.equals(item.getIsActive()) && stock <= pharmacyItemIndex.reorderLevel(item)) {
+                items.add(item);
+            }
+        }
+        items.sort((a, b) -> Integer.compare(
+                a.getStockQuantity() != null ? a.getStockQuantity() : 0,
+                b.getStockQuantity() != null ? b.getStockQuantity() : 0));
+        return items;
+    }
+
     @Override
     public List<PharmacyItem> findByRequiresPrescription(boolean requiresPrescription) {
         return findByField("requiresPrescription", requiresPrescription);
@@ -165,6 +256,7 @@ public class OpdPharmacyItemRepositoryImpl implements PharmacyItemRepository {
             
             ApiFuture<WriteResult> result = docRef.set(firestoreItem);
             result.get(); // Wait for the write to complete
+            pharmacyItemIndex.put(item);
             
             return item;
         } catch (InterruptedException | ExecutionException e) {
@@ -180,6 +272,7 @@ public class OpdPharmacyItemRepositoryImpl implements PharmacyItemRepository {
             DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(id);
             ApiFuture<WriteResult> writeResult = docRef.delete();
             writeResult.get(); // Wait for deletion to complete
+            pharmacyItemIndex.remove(id);
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error deleting pharmacy item with ID {}: {}", id, e.getMessage(), e);
             Thread.currentThread().interrupt();
@@ -187,6 +280,185 @@ public class OpdPharmacyItemRepositoryImpl implements PharmacyItemRepository {
         }
     }
 
+    @Override
+    public List<PharmacyItem> applyStockMovements(List<StockMovement> movements) {
+        // Net delta per item, keeping request order for the response
+        Map<String, Integer> netDeltas = new LinkedHashMap<>();
+        boolean decrements = false;
+        for (StockMovement movement : movements) {
+            netDeltas.merge(movement.getItemId(), movement.getDelta(), Integer::sum);
+            decrements |= movement.getDelta() < 0;
+        }
+        
+        try {
+            if (!decrements) {
+                return applyIncrements(movements, netDeltas);
+            }
+            
+            List<PharmacyItem> updatedItems = firestore.runTransaction(transaction -> {
+                List<DocumentReference> refs = new ArrayList<>();
+                for (String itemId : netDeltas.keySet()) {
+                    refs.add(firestore.collection(COLLECTION_NAME).document(itemId));
+                }
+                List<DocumentSnapshot> snapshots = transaction.getAll(refs.toArray(new DocumentReference[0])).get();
+                
+                // Validate every item before writing anything
+                Map<String, PharmacyItem> items = new HashMap<>();
+                for (DocumentSnapshot snapshot : snapshots) {
+                    if (!snapshot.exists()) {
+                        throw new ResourceNotFoundException("Pharmacy item not found with id: " + snapshot.getId());
+                    }
+                    PharmacyItem item = snapshot.toObject(FirestorePharmacyItem.class).toPharmacyItem();
+                    item.setId(snapshot.getId());
+                    int current = item.getStockQuantity() != null ? item.getStockQuantity() : 0;
+                    int updated = current + netDeltas.get(snapshot.getId());
+                    if (updated < 0) {
+                        throw new InsufficientStockException("Insufficient stock for " + item.getName()
+                                + ": available " + current + ", requested " + (-netDeltas.get(snapshot.getId())));
+                    }
+                    item.setStockQuantity(updated);
+                    items.put(snapshot.getId(), item);
+                }
+                
+                for (PharmacyItem item : items.values()) {
+                    transaction.update(firestore.collection(COLLECTION_NAME).document(item.getId()),
+                            "stockQuantity", item.getStockQuantity());
+                }
+                for (StockMovement movement : movements) {
+                    transaction.set(firestore.collection(MOVEMENTS_COLLECTION).document(),
+                            toMovementDoc(movement, items.get(movement.getItemId()).getStockQuantity()));
+                }
+                
+                List<PharmacyItem> result = new ArrayList<>();
+                for (String itemId : netDeltas.keySet()) {
+                    result.add(items.get(itemId));
+                }
+                return result;
+            }).get();
+            
+            for (PharmacyItem item : updatedItems) {
+                pharmacyItemIndex.put(item);
+            }
+            return updatedItems;
+        } catch (ExecutionException e) {
+            // Surface validation failures thrown inside the transaction as-is
+            if (e.getCause() instanceof InsufficientStockException) {
+                throw (InsufficientStockException) e.getCause();
+            }
+            if (e.getCause() instanceof ResourceNotFoundException) {
+                throw (ResourceNotFoundException) e.getCause();
+            }
+            logger.error("Error applying stock movements: {}", e.getMessage(), e);
+            throw new RuntimeException("Failed to apply stock movements", e);
+        } catch (InterruptedException e) {
+            logger.error("Error applying stock movements: {}", e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to apply stock movements", e);
+        }
+    }
+
+    @Override
+    public PharmacyItem setStockQuantity(String id, int quantity) {
+        DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(id);
+        try {
+            PharmacyItem updatedItem = firestore.runTransaction(transaction -> {
+                DocumentSnapshot snapshot = transaction.get(docRef).get();
+                if (!snapshot.exists()) {
+                    throw new ResourceNotFoundException("Pharmacy item not found with id: " + id);
+                }
+                PharmacyItem item = snapshot.toObject(FirestorePharmacyItem.class).toPharmacyItem();
+                item.setId(id);
+                int current = item.getStockQuantity() != null ? item.getStockQuantity() : 0;
+                item.setStockQuantity(quantity);
+                
+                // Only the quantity field is written; the adjustment is logged as a movement
+                StockMovement movement = new StockMovement();
+                movement.setItemId(id);
+                movement.setDelta(quantity - current);
+                movement.setReason("ADJUSTMENT");
+                transaction.update(docRef, "stockQuantity", quantity);
+                transaction.set(firestore.collection(MOVEMENTS_COLLECTION).document(), toMovementDoc(movement, quantity));
+                return item;
+            }).get();
+            
+            pharmacyItemIndex.put(updatedItem);
+            return updatedItem;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ResourceNotFoundException) {
+                throw (ResourceNotFoundException) e.getCause();
+            }
+            logger.error("Error setting stock for pharmacy item {}: {}", id, e.getMessage(), e);
+            throw new RuntimeException("Failed to update stock", e);
+        } catch (InterruptedException e) {
+            logger.error("Error setting stock for pharmacy item {}: {}", id, e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to update stock", e);
+        }
+    }
+
+    /**
+     * Stock can only go up, so no read is needed: apply server-side increments in one batch.
+     * update() fails the whole batch if any item does not exist.
+     */
+    private List<PharmacyItem> applyIncrements(List<StockMovement> movements, Map<String, Integer> netDeltas)
+            throws InterruptedException, ExecutionException {
+        List<DocumentReference> refs = new ArrayList<>();
+        WriteBatch batch = firestore.batch();
+        for (Map.Entry<String, Integer> entry : netDeltas.entrySet()) {
+            DocumentReference ref = firestore.collection(COLLECTION_NAME).document(entry.getKey());
+            refs.add(ref);
+            batch.update(ref, "stockQuantity", FieldValue.increment(entry.getValue()));
+        }
+        for (StockMovement movement : movements) {
+            batch.set(firestore.collection(MOVEMENTS_COLLECTION).document(), toMovementDoc(movement, null));
+        }
+        try {
+            batch.commit().get();
+        } catch (ExecutionException e) {
+            if (isNotFound(e.getCause())) {
+                throw new ResourceNotFoundException("Pharmacy item not found among ids: " + netDeltas.keySet());
+            }
+            throw e;
+        }
+        
+        // Read back the resulting quantities in one round trip
+        List<PharmacyItem> result = new ArrayList<>();
+        for (DocumentSnapshot snapshot : firestore.getAll(refs.toArray(new DocumentReference[0])).get()) {
+            if (snapshot.exists()) {
+                PharmacyItem item = snapshot.toObject(FirestorePharmacyItem.class).toPharmacyItem();
+                item.setId(snapshot.getId());
+                pharmacyItemIndex.put(item);
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    // update() on a missing document fails the commit with NOT_FOUND
+    private static boolean isNotFound(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException
+                    && ((ApiException) cause).getStatusCode().getCode() == StatusCode.Code.NOT_FOUND) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, Object> toMovementDoc(StockMovement movement, Integer quantityAfter) {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("itemId", movement.getItemId());
+        doc.put("delta", movement.getDelta());
+        doc.put("reason", movement.getReason());
+        doc.put("referenceId", movement.getReferenceId());
+        doc.put("createdBy", movement.getCreatedBy());
+        if (quantityAfter != null) {
+            doc.put("itemQuantityAfter", quantityAfter);
+        }
+        doc.put("createdAt", FieldValue.serverTimestamp());
+        return doc;
+    }
+
     @Override
     public boolean existsById(String id) {
         try {
@@ -201,6 +473,23 @@ public class OpdPharmacyItemRepositoryImpl implements PharmacyItemRepository {
         }
     }
 
+    // Helper method for running a query and mapping the results
+    private List<PharmacyItem> findByQuery(Query query, String description) {
+        List<PharmacyItem> items = new ArrayList<>();
+        try {
+            List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+            
+            for (QueryDocumentSnapshot document : documents) {
+                FirestorePharmacyItem firestoreItem = document.toObject(FirestorePharmacyItem.class);
+                items.add(firestoreItem.toPharmacyItem());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Error finding pharmacy items with {}: {}", description, e.getMessage(), e);
+            Thread.currentThread().interrupt();
+        }
+        return items;
+    }
+
     // Helper method for querying by a specific field value
     private List<PharmacyItem> findByField(String fieldName, Object value) {
         List<PharmacyItem> items = new ArrayList<>();
@@ -1,6 +1,7 @@
 package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.PharmacyItem;
+import com.cosmicdoc.opdmanagement.model.StockMovement;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Optional;
@@ -11,10 +12,16 @@ public interface PharmacyItemRepository {
     List<PharmacyItem> findByCategory(String category);
     List<PharmacyItem> findByManufacturer(String manufacturer);
     List<PharmacyItem> findByExpiryDateBefore(LocalDate date);
+    List<PharmacyItem> findByExpiryDateBetween(LocalDate from, LocalDate to);
     List<PharmacyItem> findByNameContaining(String name);
+    List<PharmacyItem> search(String query, int limit);
     List<PharmacyItem> findByStockQuantityLessThan(int threshold);
+    List<PharmacyItem> findLowStock();
     List<PharmacyItem> findByRequiresPrescription(boolean requiresPrescription);
     PharmacyItem save(PharmacyItem item);
     void deleteById(String id);
     boolean existsById(String id);
+    int migrateExpiryTimestamps();
+    List<PharmacyItem> applyStockMovements(List<StockMovement> movements);
+    PharmacyItem setStockQuantity(String id, int quantity);
 }
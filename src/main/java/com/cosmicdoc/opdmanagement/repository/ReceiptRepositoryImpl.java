@@ -2,13 +2,13 @@ package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.Receipt;
 import com.cosmicdoc.opdmanagement.model.FirestoreReceipt;
+import com.cosmicdoc.opdmanagement.service.BillNumberService;
+import com.cosmicdoc.opdmanagement.service.BillingHistoryOutbox;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -20,12 +20,17 @@ import java.util.stream.Collectors;
 public class ReceiptRepositoryImpl implements ReceiptRepository {
 
     private final Firestore firestore;
+    private final BillNumberService billNumberService;
+    private final BillingHistoryOutbox billingHistoryOutbox;
     private static final String COLLECTION_NAME = "receipts";
     private static final String RECEIPT_ID_PREFIX = "REC-";
 
     @Autowired
-    public ReceiptRepositoryImpl(Firestore firestore) {
+    public ReceiptRepositoryImpl(Firestore firestore, BillNumberService billNumberService,
+                                 BillingHistoryOutbox billingHistoryOutbox) {
         this.firestore = firestore;
+        this.billNumberService = billNumberService;
+        this.billingHistoryOutbox = billingHistoryOutbox;
     }
 
     @Override
@@ -36,21 +41,25 @@ public class ReceiptRepositoryImpl implements ReceiptRepository {
                 receipt.setReceiptId(generateReceiptId());
             }
 
+            // An existing document may be moving to another patient
+            boolean existing = receipt.getId() != null && !receipt.getId().isEmpty();
+
             // Generate document ID if not present
-            if (receipt.getId() == null || receipt.getId().isEmpty()) {
+            if (!existing) {
                 receipt.setId(UUID.randomUUID().toString());
             }
 
             FirestoreReceipt firestoreReceipt = new FirestoreReceipt(receipt);
             
             DocumentReference docRef = firestore.collection(COLLECTION_NAME).document(receipt.getId());
-            ApiFuture<WriteResult> result = docRef.set(firestoreReceipt);
-            
-            // Wait for the write to complete
-            result.get();
             
-            // Also save in patient's billing history
-            updatePatientBillingHistory(receipt);
+            // Write the receipt and its billing history outbox entry in one atomic commit
+            WriteBatch batch = firestore.batch();
+            String previousPatientId = existing ? billingHistoryOutbox.storedPatientId(docRef) : null;
+            batch.set(docRef, firestoreReceipt);
+            billingHistoryOutbox.enqueue(batch, COLLECTION_NAME, receipt.getId(), receipt.getPatientId(), previousPatientId);
+            batch.commit().get();
+            billingHistoryOutbox.signal();
             
             return receipt;
         } catch (InterruptedException | ExecutionException e) {
@@ -58,21 +67,6 @@ public class ReceiptRepositoryImpl implements ReceiptRepository {
         }
     }
 
-    private void updatePatientBillingHistory(Receipt receipt) {
-        try {
-            DocumentReference patientRef = firestore.collection("patients").document(receipt.getPatientId());
-            
-            // Create billing history entry
-            FirestoreReceipt firestoreReceipt = new FirestoreReceipt(receipt);
-            
-            // Add to patient's billing history subcollection
-            patientRef.collection("billing_history").document(receipt.getId()).set(firestoreReceipt).get();
-        } catch (InterruptedException | ExecutionException e) {
-            // Log but don't fail the primary operation
-            System.err.println("Warning: Failed to update patient billing history: " + e.getMessage());
-        }
-    }
-
     @Override
     public List<Receipt> findAll() {
         try {
@@ -155,12 +149,12 @@ public class ReceiptRepositoryImpl implements ReceiptRepository {
             if (receiptOpt.isPresent()) {
                 Receipt receipt = receiptOpt.get();
                 
-                // Delete from main collection
-                firestore.collection(COLLECTION_NAME).document(id).delete().get();
-                
-                // Also delete from patient's billing history
-                firestore.collection("patients").document(receipt.getPatientId())
-                        .collection("billing_history").document(id).delete().get();
+                // Delete from main collection; the outbox removes the billing history copy
+                WriteBatch batch = firestore.batch();
+                batch.delete(firestore.collection(COLLECTION_NAME).document(id));
+                billingHistoryOutbox.enqueue(batch, COLLECTION_NAME, id, receipt.getPatientId());
+                batch.commit().get();
+                billingHistoryOutbox.signal();
             }
         } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException("Failed to delete receipt: " + e.getMessage(), e);
@@ -169,12 +163,6 @@ public class ReceiptRepositoryImpl implements ReceiptRepository {
 
     @Override
     public String generateReceiptId() {
-        LocalDate today = LocalDate.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd");
-        String datePart = today.format(formatter);
-        
-        String randomPart = UUID.randomUUID().toString().substring(0, 6).toUpperCase();
-        
-        return RECEIPT_ID_PREFIX + datePart + randomPart;
+        return billNumberService.nextNumber(RECEIPT_ID_PREFIX);
     }
 }
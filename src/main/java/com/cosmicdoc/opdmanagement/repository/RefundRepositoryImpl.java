@@ -2,6 +2,7 @@ package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.Refund;
 import com.cosmicdoc.opdmanagement.model.FirestoreRefund;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,12 +21,14 @@ import java.util.stream.Collectors;
 public class RefundRepositoryImpl implements RefundRepository {
 
     private final Firestore firestore;
+    private final ClinicClock clinicClock;
     private static final String COLLECTION_NAME = "refunds";
     private static final String REFUND_ID_PREFIX = "REF-";
 
     @Autowired
-    public RefundRepositoryImpl(Firestore firestore) {
+    public RefundRepositoryImpl(Firestore firestore, ClinicClock clinicClock) {
         this.firestore = firestore;
+        this.clinicClock = clinicClock;
     }
 
     @Override
@@ -148,7 +151,7 @@ public class RefundRepositoryImpl implements RefundRepository {
 
     @Override
     public String generateRefundId() {
-        LocalDate today = LocalDate.now();
+        LocalDate today = clinicClock.today();
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd");
         String datePart = today.format(formatter);
         
@@ -1,6 +1,7 @@
 package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.VisitHistory;
+import com.cosmicdoc.opdmanagement.model.VisitHistoryPage;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -13,9 +14,26 @@ public interface VisitHistoryRepository {
     
     List<VisitHistory> findByPatientId(String patientId);
     
+    /**
+     * Page through a patient's visits, most recent first
+     *
+     * @param patientId Patient ID
+     * @param limit Page size
+     * @param cursor nextCursor of the previous page, or null for the first page
+     * @param summary Leave out prescriptions and symptoms
+     */
+    VisitHistoryPage findTimelineByPatientId(String patientId, int limit, String cursor, boolean summary);
+    
     VisitHistory save(VisitHistory visitHistory);
     
+    /**
+     * Save several visit histories in one batch commit; visits without an ID get a generated one
+     */
+    void saveAll(List<VisitHistory> visitHistories);
+    
     void deleteById(String id);
     
     void deleteByPatientId(String patientId);
+    
+    int migrateVisitTimestamps();
 }
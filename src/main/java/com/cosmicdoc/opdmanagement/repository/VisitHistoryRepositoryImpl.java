@@ -2,7 +2,9 @@ package com.cosmicdoc.opdmanagement.repository;
 
 import com.cosmicdoc.opdmanagement.model.FirestoreVisitHistory;
 import com.cosmicdoc.opdmanagement.model.VisitHistory;
+import com.cosmicdoc.opdmanagement.model.VisitHistoryPage;
 import com.google.api.core.ApiFuture;
+import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,7 +12,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Repository;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -22,6 +27,12 @@ public class VisitHistoryRepositoryImpl implements VisitHistoryRepository {
 
     private static final Logger logger = LoggerFactory.getLogger(VisitHistoryRepositoryImpl.class);
     private static final String COLLECTION_NAME = "visit_histories";
+    private static final int MIGRATION_PAGE_SIZE = 500;
+    // Summary projection: everything except prescriptions and symptoms
+    private static final String[] SUMMARY_FIELDS = {
+            "id", "patientId", "visitDate", "visitAt", "doctorId", "doctorName",
+            "diagnosis", "treatment", "followUpDate", "notes"
+    };
 
     private final Firestore firestore;
 
@@ -57,8 +68,14 @@ public class VisitHistoryRepositoryImpl implements VisitHistoryRepository {
             ApiFuture<QuerySnapshot> future = query.get();
             List<QueryDocumentSnapshot> documents = future.get().getDocuments();
             
+            // Most recent first; visits without a parseable date go last
+            List<FirestoreVisitHistory> firestoreVisitHistories = new ArrayList<>();
             for (QueryDocumentSnapshot document : documents) {
-                FirestoreVisitHistory firestoreVisitHistory = document.toObject(FirestoreVisitHistory.class);
+                firestoreVisitHistories.add(document.toObject(FirestoreVisitHistory.class));
+            }
+            firestoreVisitHistories.sort(Comparator.comparing(FirestoreVisitHistory::getVisitAt,
+                    Comparator.nullsLast(Comparator.<Timestamp>reverseOrder())));
+            for (FirestoreVisitHistory firestoreVisitHistory : firestoreVisitHistories) {
                 visitHistories.add(firestoreVisitHistory.toVisitHistory());
             }
         } catch (InterruptedException | ExecutionException e) {
@@ -68,6 +85,113 @@ public class VisitHistoryRepositoryImpl implements VisitHistoryRepository {
         return visitHistories;
     }
 
+    @Override
+    public VisitHistoryPage findTimelineByPatientId(String patientId, int limit, String cursor, boolean summary) {
+        try {
+            // Ties on visitAt are broken by document ID so the cursor position is exact
+            Query query = firestore.collection(COLLECTION_NAME)
+                    .whereEqualTo("patientId", patientId)
+                    .orderBy("visitAt", Query.Direction.DESCENDING)
+                    .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING)
+                    .limit(limit + 1);
+            if (summary) {
+                query = query.select(SUMMARY_FIELDS);
+            }
+            if (cursor != null && !cursor.isEmpty()) {
+                Object[] position = decodeCursor(cursor);
+                query = query.startAfter(position[0], firestore.collection(COLLECTION_NAME).document((String) position[1]));
+            }
+            List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+
+            // One extra document tells us whether another page exists
+            boolean hasMore = documents.size() > limit;
+            List<VisitHistory> visits = new ArrayList<>();
+            String nextCursor = null;
+            for (int i = 0; i < Math.min(limit, documents.size()); i++) {
+                QueryDocumentSnapshot document = documents.get(i);
+                FirestoreVisitHistory firestoreVisitHistory = document.toObject(FirestoreVisitHistory.class);
+                VisitHistory visit = firestoreVisitHistory.toVisitHistory();
+                if (visit.getId() == null) {
+                    visit.setId(document.getId());
+                }
+                visits.add(visit);
+                if (hasMore && i == limit - 1) {
+                    nextCursor = encodeCursor(firestoreVisitHistory.getVisitAt(), document.getId());
+                }
+            }
+            return new VisitHistoryPage(visits, nextCursor);
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Error retrieving visit timeline for patient ID {}: {}", patientId, e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to retrieve visit timeline", e);
+        }
+    }
+
+    private static String encodeCursor(Timestamp visitAt, String documentId) {
+        String raw = visitAt.getSeconds() + ":" + visitAt.getNanos() + ":" + documentId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Object[] decodeCursor(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = raw.split(":", 3);
+            Timestamp visitAt = Timestamp.ofTimeSecondsAndNanos(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+            return new Object[] {visitAt, parts[2]};
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid visit timeline cursor", e);
+        }
+    }
+
+    @Override
+    public int migrateVisitTimestamps() {
+        int updated = 0;
+        int unparseable = 0;
+        try {
+            QueryDocumentSnapshot last = null;
+            while (true) {
+                Query page = firestore.collection(COLLECTION_NAME).orderBy(FieldPath.documentId()).limit(MIGRATION_PAGE_SIZE);
+                if (last != null) {
+                    page = page.startAfter(last);
+                }
+                List<QueryDocumentSnapshot> documents = page.get().get().getDocuments();
+
+                // Backfill visitAt from the visitDate string, one batch per page
+                WriteBatch batch = firestore.batch();
+                int pending = 0;
+                for (QueryDocumentSnapshot document : documents) {
+                    String visitDate = document.getString("visitDate");
+                    if (visitDate == null || visitDate.isEmpty() || document.get("visitAt") != null) {
+                        continue;
+                    }
+                    Timestamp visitAt = FirestoreVisitHistory.toVisitTimestamp(visitDate);
+                    if (visitAt != null) {
+                        batch.update(document.getReference(), "visitAt", visitAt);
+                        pending++;
+                    } else {
+                        logger.warn("Visit history {} has an unrecognised visitDate: {}", document.getId(), visitDate);
+                        unparseable++;
+                    }
+                }
+                if (pending > 0) {
+                    batch.commit().get();
+                    updated += pending;
+                }
+
+                if (documents.size() < MIGRATION_PAGE_SIZE) {
+                    break;
+                }
+                last = documents.get(documents.size() - 1);
+            }
+            logger.info("Visit timestamp migration complete, updated {} visits, {} unparseable", updated, unparseable);
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Error migrating visit timestamps: {}", e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to migrate visit timestamps", e);
+        }
+        return updated;
+    }
+
     @Override
     public VisitHistory save(VisitHistory visitHistory) {
         try {
@@ -87,13 +211,38 @@ public class VisitHistoryRepositoryImpl implements VisitHistoryRepository {
             logger.info("Visit history saved with ID: {}", firestoreVisitHistory.getId());
             
             return visitHistory;
-        } catch (InterruptedException | ExecutionException e) {
+        } catch (ExecutionException e) {
             logger.error("Error saving visit history: {}", e.getMessage(), e);
+            throw new RuntimeException("Failed to save visit history", e);
+        } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Failed to save visit history", e);
         }
     }
 
+    @Override
+    public void saveAll(List<VisitHistory> visitHistories) {
+        try {
+            WriteBatch batch = firestore.batch();
+            for (VisitHistory visitHistory : visitHistories) {
+                FirestoreVisitHistory firestoreVisitHistory = FirestoreVisitHistory.fromVisitHistory(visitHistory);
+                if (firestoreVisitHistory.getId() == null || firestoreVisitHistory.getId().isEmpty()) {
+                    firestoreVisitHistory.setId(UUID.randomUUID().toString());
+                    visitHistory.setId(firestoreVisitHistory.getId());
+                }
+                batch.set(firestore.collection(COLLECTION_NAME).document(firestoreVisitHistory.getId()), firestoreVisitHistory);
+            }
+            batch.commit().get();
+            logger.info("Saved {} visit histories in one batch", visitHistories.size());
+        } catch (ExecutionException e) {
+            logger.error("Error saving visit histories: {}", e.getMessage(), e);
+            throw new RuntimeException("Failed to save visit histories", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to save visit histories", e);
+        }
+    }
+
     @Override
     public void deleteById(String id) {
         try {
@@ -111,17 +260,22 @@ public class VisitHistoryRepositoryImpl implements VisitHistoryRepository {
     @Override
     public void deleteByPatientId(String patientId) {
         try {
-            // First find all documents with the given patientId
-            Query query = firestore.collection(COLLECTION_NAME).whereEqualTo("patientId", patientId);
-            ApiFuture<QuerySnapshot> future = query.get();
-            List<QueryDocumentSnapshot> documents = future.get().getDocuments();
+            // Keys only; the documents themselves aren't needed to delete them
+            Query query = firestore.collection(COLLECTION_NAME).whereEqualTo("patientId", patientId)
+                    .select(FieldPath.documentId());
+            List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
             
-            // Delete each matching document
-            for (QueryDocumentSnapshot document : documents) {
-                ApiFuture<WriteResult> result = document.getReference().delete();
-                result.get();
-                logger.info("Visit history for patient ID {} deleted successfully", patientId);
+            // BulkWriter sends the deletes in parallel batches instead of one round trip each
+            BulkWriter bulkWriter = firestore.bulkWriter();
+            try {
+                for (QueryDocumentSnapshot document : documents) {
+                    bulkWriter.delete(document.getReference());
+                }
+                bulkWriter.flush().get();
+            } finally {
+                bulkWriter.close();
             }
+            logger.info("Deleted {} visit histories for patient ID {}", documents.size(), patientId);
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error deleting visit histories for patient ID {}: {}", patientId, e.getMessage(), e);
             Thread.currentThread().interrupt();
@@ -17,10 +17,12 @@ import java.util.Optional;
 public class AdvanceService {
 
     private final AdvanceRepository advanceRepository;
+    private final PatientLedgerService patientLedgerService;
 
     @Autowired
-    public AdvanceService(AdvanceRepository advanceRepository) {
+    public AdvanceService(AdvanceRepository advanceRepository, PatientLedgerService patientLedgerService) {
         this.advanceRepository = advanceRepository;
+        this.patientLedgerService = patientLedgerService;
     }
 
     /**
@@ -31,7 +33,9 @@ public class AdvanceService {
      */
     public Advance createAdvance(Advance advance) {
         log.info("Creating advance payment for patient: {}", advance.getPatientId());
-        return advanceRepository.save(advance);
+        Advance savedAdvance = advanceRepository.save(advance);
+        patientLedgerService.recordAdvance(savedAdvance);
+        return savedAdvance;
     }
 
     /**
@@ -86,7 +90,9 @@ public class AdvanceService {
             updatedAdvance.setAdvanceId(existingAdvance.getAdvanceId());
         }
         
-        return advanceRepository.save(updatedAdvance);
+        Advance savedAdvance = advanceRepository.save(updatedAdvance);
+        patientLedgerService.recordAdvance(savedAdvance);
+        return savedAdvance;
     }
 
     /**
@@ -97,5 +103,6 @@ public class AdvanceService {
     public void deleteAdvance(String id) {
         log.info("Deleting advance with ID: {}", id);
         advanceRepository.delete(id);
+        patientLedgerService.removeAdvance(id);
     }
 }
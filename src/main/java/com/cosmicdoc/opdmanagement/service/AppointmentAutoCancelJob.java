@@ -0,0 +1,179 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodic sweep that cancels appointments left open well past their time.
+ *
+ * Each run range-queries appointmentDate up to the cutoff (now minus the grace period),
+ * reading only the status fields, and cancels every appointment that is not COMPLETED or
+ * CANCELLED with field-level updates in WriteBatches of up to 500. After a successful run
+ * the cutoff is stored in a checkpoint document shared by all instances, so only the very
+ * first run scans the whole history. Each run starts a trailing window before the stored
+ * cutoff, which picks up appointments that were booked or rescheduled into an already
+ * swept range since; anything moved back further than that is left open.
+ */
+@Component
+@Slf4j
+public class AppointmentAutoCancelJob {
+
+    private static final String COLLECTION_NAME = "appointments";
+    private static final int PAGE_SIZE = 500;
+    private static final String CHECKPOINT_COLLECTION = "migration_checkpoints";
+    private static final String CHECKPOINT_ID = "appointment-auto-cancel";
+
+    private final Firestore firestore;
+    private final int afterHours;
+    private final long graceMs;
+    private final long resweepMs;
+    private volatile Timestamp sweptUpTo;
+
+    // Metrics
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong failedRuns = new AtomicLong();
+    private final AtomicLong totalCancelled = new AtomicLong();
+    private volatile long lastRunCancelled;
+    private volatile long lastRunScanned;
+    private volatile long lastRunDurationMs;
+    private volatile Timestamp lastRunAt;
+
+    @Autowired
+    public AppointmentAutoCancelJob(Firestore firestore,
+                                    @Value("${app.appointments.auto-cancel.after-hours:48}") int afterHours,
+                                    @Value("${app.appointments.auto-cancel.resweep-hours:168}") int resweepHours) {
+        this.firestore = firestore;
+        this.afterHours = Math.max(1, afterHours);
+        this.graceMs = this.afterHours * 60L * 60 * 1000;
+        this.resweepMs = Math.max(0, resweepHours) * 60L * 60 * 1000;
+    }
+
+    /**
+     * Hours after its time when an appointment is cancelled; until then its status can change
+     */
+    public int getAfterHours() {
+        return afterHours;
+    }
+
+    @Scheduled(cron = "${app.appointments.auto-cancel.cron:0 */15 * * * *}")
+    public synchronized void run() {
+        long start = System.currentTimeMillis();
+        Timestamp cutoff = Timestamp.ofTimeMicroseconds((start - graceMs) * 1000);
+        long scanned = 0;
+        long cancelled = 0;
+        try {
+            // Another instance may have swept since this one last ran
+            sweptUpTo = readCheckpoint();
+            Query window = firestore.collection(COLLECTION_NAME)
+                    .whereLessThanOrEqualTo("appointmentDate", cutoff);
+            if (sweptUpTo != null) {
+                long from = sweptUpTo.getSeconds() * 1000 - resweepMs;
+                window = window.whereGreaterThan("appointmentDate", Timestamp.ofTimeMicroseconds(from * 1000));
+            }
+            window = window.orderBy("appointmentDate")
+                    .select("appointmentDate", "status")
+                    .limit(PAGE_SIZE);
+
+            QueryDocumentSnapshot last = null;
+            while (true) {
+                List<QueryDocumentSnapshot> page = (last != null ? window.startAfter(last) : window)
+                        .get().get().getDocuments();
+                scanned += page.size();
+
+                WriteBatch batch = firestore.batch();
+                int pending = 0;
+                for (QueryDocumentSnapshot appointment : page) {
+                    if (!isTerminal(appointment.getString("status"))) {
+                        batch.update(appointment.getReference(), cancelFields());
+                        pending++;
+                    }
+                }
+                if (pending > 0) {
+                    batch.commit().get();
+                    cancelled += pending;
+                }
+
+                if (page.size() < PAGE_SIZE) {
+                    break;
+                }
+                last = page.get(page.size() - 1);
+            }
+            writeCheckpoint(cutoff);
+            sweptUpTo = cutoff;
+            if (cancelled > 0) {
+                log.info("Auto-cancelled {} appointments older than {}", cancelled, cutoff);
+            }
+        } catch (ExecutionException e) {
+            failedRuns.incrementAndGet();
+            log.error("Appointment auto-cancel sweep failed after cancelling {}: {}", cancelled, e.getMessage(), e);
+        } catch (InterruptedException e) {
+            failedRuns.incrementAndGet();
+            log.error("Appointment auto-cancel sweep interrupted after cancelling {}", cancelled);
+            Thread.currentThread().interrupt();
+        } finally {
+            runs.incrementAndGet();
+            totalCancelled.addAndGet(cancelled);
+            lastRunCancelled = cancelled;
+            lastRunScanned = scanned;
+            lastRunDurationMs = System.currentTimeMillis() - start;
+            lastRunAt = Timestamp.now();
+        }
+    }
+
+    /**
+     * Run counts and the outcome of the last sweep
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("runs", runs.get());
+        stats.put("failedRuns", failedRuns.get());
+        stats.put("totalCancelled", totalCancelled.get());
+        stats.put("lastRunCancelled", lastRunCancelled);
+        stats.put("lastRunScanned", lastRunScanned);
+        stats.put("lastRunDurationMs", lastRunDurationMs);
+        stats.put("lastRunAt", lastRunAt != null ? lastRunAt.toString() : null);
+        stats.put("sweptUpTo", sweptUpTo != null ? sweptUpTo.toString() : null);
+        return stats;
+    }
+
+    private Timestamp readCheckpoint() throws InterruptedException, ExecutionException {
+        DocumentSnapshot document = firestore.collection(CHECKPOINT_COLLECTION).document(CHECKPOINT_ID).get().get();
+        return document.exists() ? document.getTimestamp("sweptUpTo") : null;
+    }
+
+    private void writeCheckpoint(Timestamp cutoff) throws InterruptedException, ExecutionException {
+        Map<String, Object> checkpoint = new HashMap<>();
+        checkpoint.put("sweptUpTo", cutoff);
+        checkpoint.put("updatedAt", FieldValue.serverTimestamp());
+        firestore.collection(CHECKPOINT_COLLECTION).document(CHECKPOINT_ID).set(checkpoint).get();
+    }
+
+    private static boolean isTerminal(String status) {
+        return "COMPLETED".equalsIgnoreCase(status) || "CANCELLED".equalsIgnoreCase(status);
+    }
+
+    private static Map<String, Object> cancelFields() {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("status", "CANCELLED");
+        fields.put("tokenStatus", "CANCELLED");
+        fields.put("updatedAt", FieldValue.serverTimestamp());
+        return fields;
+    }
+}
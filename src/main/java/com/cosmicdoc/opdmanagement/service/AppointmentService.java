@@ -2,23 +2,35 @@ package com.cosmicdoc.opdmanagement.service;
 
 import lombok.extern.slf4j.Slf4j;
 import com.cosmicdoc.opdmanagement.model.Appointment;
+import com.cosmicdoc.opdmanagement.model.AppointmentCalendar;
+import com.cosmicdoc.opdmanagement.model.Doctor;
 import com.cosmicdoc.opdmanagement.repository.AppointmentRepository;
 import com.cosmicdoc.opdmanagement.repository.DoctorRepository;
 import com.cosmicdoc.opdmanagement.repository.PatientRepository;
 import com.cosmicdoc.opdmanagement.dto.AppointmentDTO;
+import com.cosmicdoc.opdmanagement.dto.QueueAdvanceDTO;
+import com.cosmicdoc.opdmanagement.model.QueueAdvance;
 import com.cosmicdoc.opdmanagement.exception.ResourceNotFoundException;
-import com.google.cloud.Timestamp;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.YearMonth;
-import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 @Service
@@ -27,15 +39,28 @@ public class AppointmentService {
     private final AppointmentRepository appointmentRepository;
     private final DoctorRepository doctorRepository;
     private final PatientRepository patientRepository;
+    private final DoctorScheduleCache doctorScheduleCache;
+    private final DoctorLeaveIndex doctorLeaveIndex;
+    private final ClinicClock clinicClock;
+    private final long calendarCacheMs;
+    private final Map<YearMonth, CachedCalendar> calendarCache = new ConcurrentHashMap<>();
 
     @Autowired
     public AppointmentService(
             AppointmentRepository appointmentRepository,
             DoctorRepository doctorRepository,
-            PatientRepository patientRepository) {
+            PatientRepository patientRepository,
+            DoctorScheduleCache doctorScheduleCache,
+            DoctorLeaveIndex doctorLeaveIndex,
+            ClinicClock clinicClock,
+            @Value("${app.appointments.calendar-cache-seconds:30}") long calendarCacheSeconds) {
         this.appointmentRepository = appointmentRepository;
         this.doctorRepository = doctorRepository;
         this.patientRepository = patientRepository;
+        this.doctorScheduleCache = doctorScheduleCache;
+        this.doctorLeaveIndex = doctorLeaveIndex;
+        this.clinicClock = clinicClock;
+        this.calendarCacheMs = Math.max(0, calendarCacheSeconds) * 1000;
     }
 
     public List<AppointmentDTO> getAllAppointments() {
@@ -72,7 +97,7 @@ public class AppointmentService {
 
     public List<AppointmentDTO> getAppointmentsByDateRange(LocalDate startDate, LocalDate endDate) {
         LocalDateTime startDateTime = startDate.atStartOfDay();
-        LocalDateTime endDateTime = endDate.atTime(23, 59, 59);
+        LocalDateTime endDateTime = endDate.atTime(LocalTime.MAX);
         return appointmentRepository.findByAppointmentDateBetween(startDateTime, endDateTime).stream()
                 .map(this::mapToDTO)
                 .collect(Collectors.toList());
@@ -86,7 +111,7 @@ public class AppointmentService {
      */
     public boolean hasAppointmentOnDate(String patientId, LocalDate appointmentDate) {
         LocalDateTime startOfDay = appointmentDate.atStartOfDay();
-        LocalDateTime endOfDay = appointmentDate.atTime(23, 59, 59);
+        LocalDateTime endOfDay = appointmentDate.atTime(LocalTime.MAX);
         
         List<Appointment> existingAppointments = appointmentRepository.findByUserId(patientId);
         
@@ -96,8 +121,7 @@ public class AppointmentService {
                         return false;
                     }
                     
-                    LocalDateTime appointmentDateTime = appointment.getAppointmentDate().toDate()
-                            .toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime();
+                    LocalDateTime appointmentDateTime = clinicClock.toLocalDateTime(appointment.getAppointmentDate());
                     
                     return !appointmentDateTime.isBefore(startOfDay) && 
                            !appointmentDateTime.isAfter(endOfDay);
@@ -107,12 +131,70 @@ public class AppointmentService {
     public List<AppointmentDTO> getAppointmentsForMonth(int year, int month) {
         YearMonth yearMonth = YearMonth.of(year, month);
         LocalDateTime start = yearMonth.atDay(1).atStartOfDay();
-        LocalDateTime end = yearMonth.atEndOfMonth().atTime(23, 59, 59);
+        LocalDateTime end = yearMonth.atEndOfMonth().atTime(LocalTime.MAX);
         return appointmentRepository.findByAppointmentDateBetween(start, end).stream()
                 .map(this::mapToDTO)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Count the appointments of a month per day and per doctor, by status.
+     * The month is read with one range query that fetches only the counted fields;
+     * the result is cached briefly since calendar views are reloaded often. Count
+     * aggregations don't help here: the per-doctor breakdown needs every document anyway,
+     * and statuses are free text, so there is no fixed set to count. A failed read throws
+     * and is not cached.
+     *
+     * @param year Year
+     * @param month Month, 1-12
+     * @return Counts for every day of the month, including days without appointments
+     */
+    public AppointmentCalendar getMonthCalendar(int year, int month) {
+        YearMonth yearMonth = YearMonth.of(year, month);
+        long now = System.currentTimeMillis();
+        CachedCalendar cached = calendarCache.get(yearMonth);
+        if (cached != null && now - cached.loadedAt < calendarCacheMs) {
+            return cached.calendar;
+        }
+
+        LocalDateTime start = yearMonth.atDay(1).atStartOfDay();
+        LocalDateTime end = yearMonth.atEndOfMonth().atTime(LocalTime.MAX);
+        Map<LocalDate, AppointmentCalendar.Day> days = new TreeMap<>();
+        for (LocalDate date = yearMonth.atDay(1); !date.isAfter(yearMonth.atEndOfMonth()); date = date.plusDays(1)) {
+            AppointmentCalendar.Day day = new AppointmentCalendar.Day();
+            day.setDate(date.toString());
+            days.put(date, day);
+        }
+
+        AppointmentCalendar calendar = new AppointmentCalendar();
+        calendar.setMonth(yearMonth.toString());
+        for (Appointment appointment : appointmentRepository.findStatusSummariesBetween(start, end)) {
+            if (appointment.getAppointmentDate() == null) {
+                continue;
+            }
+            LocalDate date = clinicClock.toLocalDate(appointment.getAppointmentDate());
+            AppointmentCalendar.Day day = days.get(date);
+            if (day == null) {
+                continue;
+            }
+            String status = appointment.getStatus() != null ? appointment.getStatus().toUpperCase() : "UNKNOWN";
+            String doctorId = appointment.getDoctorId() != null ? appointment.getDoctorId() : "UNASSIGNED";
+
+            day.setTotal(day.getTotal() + 1);
+            day.getByStatus().merge(status, 1L, Long::sum);
+            day.getByDoctor().computeIfAbsent(doctorId, id -> new TreeMap<>()).merge(status, 1L, Long::sum);
+            calendar.setTotal(calendar.getTotal() + 1);
+            calendar.getByStatus().merge(status, 1L, Long::sum);
+        }
+        calendar.getDays().addAll(days.values());
+
+        if (calendarCacheMs > 0) {
+            calendarCache.put(yearMonth, new CachedCalendar(calendar, now));
+            calendarCache.values().removeIf(entry -> now - entry.loadedAt >= calendarCacheMs);
+        }
+        return calendar;
+    }
+
     public AppointmentDTO getAppointmentById(String id) {
         Optional<Appointment> appointmentOptional = appointmentRepository.findById(id);
         return appointmentOptional.map(this::mapToDTO)
@@ -183,20 +265,40 @@ public class AppointmentService {
     }
 
     public AppointmentDTO updateAppointment(String id, AppointmentDTO appointmentDTO) {
-        // Check if appointment exists
-        if (!appointmentRepository.existsById(id)) {
+        // Only the fields the DTO carries are written; createdAt, diagnosis etc. are left alone
+        Map<String, Object> fields = toFieldUpdates(appointmentDTO);
+        if (fields.containsKey("appointmentDate")) {
+            // Callers often send back the whole appointment they read. Only write the time (and
+            // mark it as clinic zone) if it changed, so unmigrated appointments stay unmarked.
+            Appointment stored = appointmentRepository.findById(id)
+                    .orElseThrow(() -> new ResourceNotFoundException("Appointment not found with id: " + id));
+            if (fields.get("appointmentDate").equals(stored.getAppointmentDate())) {
+                fields.remove("appointmentDate");
+                fields.remove("dateZone");
+            }
+        }
+        if (!appointmentRepository.updateFields(id, fields)) {
             throw new ResourceNotFoundException("Appointment not found with id: " + id);
         }
 
-        // Map DTO to entity and ensure ID is set
-        Appointment appointment = mapToEntity(appointmentDTO);
-        appointment.setAppointmentId(id);
-
-        // Save updated appointment
-        Appointment savedAppointment = appointmentRepository.save(appointment);
+        // Return the stored appointment, not the partial DTO the caller sent
+        return getAppointmentById(id);
+    }
 
-        // Return mapped DTO
-        return mapToDTO(savedAppointment);
+    /**
+     * Finish today's CURRENT token of a doctor and promote the next WAITING one, in one transaction
+     *
+     * @param doctorId Doctor ID
+     * @param skip Mark the current token SKIPPED instead of COMPLETED
+     * @return The finished and promoted tokens
+     */
+    public QueueAdvanceDTO advanceTokenQueue(String doctorId, boolean skip) {
+        QueueAdvance advance = skip
+                ? appointmentRepository.advanceQueue(doctorId, clinicClock.today(), "SKIPPED", null)
+                : appointmentRepository.advanceQueue(doctorId, clinicClock.today(), "COMPLETED", "COMPLETED");
+        return new QueueAdvanceDTO(
+                advance.getFinished() != null ? mapToDTO(advance.getFinished()) : null,
+                advance.getCurrent() != null ? mapToDTO(advance.getCurrent()) : null);
     }
 
     public boolean reassignAppointment(String appointmentId, String newDoctorId) {
@@ -227,13 +329,11 @@ public class AppointmentService {
     }
 
     public boolean cancelAppointment(String appointmentId) {
-        // Check if appointment exists
-        if (!appointmentRepository.existsById(appointmentId)) {
+        // The repository reports a missing appointment, so no separate existence check
+        if (!appointmentRepository.cancelAppointment(appointmentId)) {
             throw new ResourceNotFoundException("Appointment not found with id: " + appointmentId);
         }
-        
-        // Use repository method to cancel
-        return appointmentRepository.cancelAppointment(appointmentId);
+        return true;
     }
 
     public List<LocalTime> getDoctorAvailableTimeSlots(String doctorId, LocalDate date) {
@@ -265,6 +365,77 @@ public class AppointmentService {
         return availableSlots;
     }
 
+    /**
+     * Open slots per doctor per day over a date range.
+     *
+     * Uses one appointment range query for the whole grid; working days, hours and leave
+     * come from the in-memory schedule and leave caches.
+     *
+     * @param doctorIds Doctors to include, or empty for all active doctors
+     * @param from First day of the grid
+     * @param days Number of days
+     * @return doctorId -> date -> open slot start times
+     */
+    public Map<String, Map<LocalDate, List<LocalTime>>> getAvailabilityGrid(List<String> doctorIds, LocalDate from, int days) {
+        List<String> ids = doctorIds;
+        if (ids == null || ids.isEmpty()) {
+            ids = doctorRepository.findAvailable().stream().map(Doctor::getId).collect(Collectors.toList());
+        }
+        Set<String> wanted = new HashSet<>(ids);
+        LocalDate to = from.plusDays(days);
+
+        // Bucket booked minutes by doctor and day offset
+        Map<String, BookedMinutes[]> bookings = new HashMap<>();
+        for (Appointment appointment : appointmentRepository.findByAppointmentDateBetween(
+                from.atStartOfDay(), to.atStartOfDay().minusSeconds(1))) {
+            LocalDateTime appointmentTime = appointment.getAppointmentDateAsLocalDateTime();
+            if (appointmentTime == null || "CANCELLED".equals(appointment.getStatus())
+                    || !wanted.contains(appointment.getDoctorId())) {
+                continue;
+            }
+            int dayOffset = (int) (appointmentTime.toLocalDate().toEpochDay() - from.toEpochDay());
+            if (dayOffset < 0 || dayOffset >= days) {
+                continue;
+            }
+            BookedMinutes[] byDay = bookings.computeIfAbsent(appointment.getDoctorId(), id -> new BookedMinutes[days]);
+            if (byDay[dayOffset] == null) {
+                byDay[dayOffset] = new BookedMinutes();
+            }
+            byDay[dayOffset].add(appointmentTime.getHour() * 60 + appointmentTime.getMinute());
+        }
+
+        Map<String, Map<LocalDate, List<LocalTime>>> grid = new LinkedHashMap<>();
+        for (String doctorId : ids) {
+            CompiledSchedule schedule = doctorScheduleCache.getSchedule(doctorId);
+            BookedMinutes[] byDay = bookings.get(doctorId);
+            Map<LocalDate, List<LocalTime>> row = new LinkedHashMap<>();
+            LocalDate date = from;
+            for (int day = 0; day < days; day++, date = date.plusDays(1)) {
+                if (!schedule.worksOn(date.getDayOfWeek()) || doctorLeaveIndex.isOnLeave(doctorId, date)) {
+                    row.put(date, List.of());
+                } else if (byDay == null || byDay[day] == null) {
+                    row.put(date, schedule.slots());
+                } else {
+                    row.put(date, schedule.openSlots(byDay[day].minutes, byDay[day].count));
+                }
+            }
+            grid.put(doctorId, row);
+        }
+        return grid;
+    }
+
+    private static final class BookedMinutes {
+        int[] minutes = new int[4];
+        int count;
+
+        void add(int minute) {
+            if (count == minutes.length) {
+                minutes = Arrays.copyOf(minutes, count * 2);
+            }
+            minutes[count++] = minute;
+        }
+    }
+
     public void deleteAppointment(String id) {
         // Check if appointment exists
         if (!appointmentRepository.existsById(id)) {
@@ -311,7 +482,10 @@ public class AppointmentService {
             */
             
             // Update the appointment date/time
-            appointment.setAppointmentDate(Timestamp.of(java.util.Date.from(newDateTime.atZone(ZoneId.systemDefault()).toInstant())));
+            Map<String, Object> changes = new HashMap<>();
+            appointment.setAppointmentDate(clinicClock.toTimestamp(newDateTime));
+            changes.put("appointmentDate", appointment.getAppointmentDate());
+            changes.put("dateZone", clinicClock.getZone().getId());
             
             // If a new doctor ID is provided and different from current, update doctor assignment
             if (newDoctorId != null && !newDoctorId.isEmpty() && !newDoctorId.equals(appointment.getDoctorId())) {
@@ -325,12 +499,17 @@ public class AppointmentService {
                 
                 // Update the doctor ID
                 appointment.setDoctorId(newDoctorId);
+                changes.put("doctorId", newDoctorId);
             }
             
-            // Save the updated appointment
-            Appointment updatedAppointment = appointmentRepository.save(appointment);
-            return mapToDTO(updatedAppointment);
+            // Write only what changed
+            if (!appointmentRepository.updateFields(id, changes)) {
+                throw new ResourceNotFoundException("Appointment not found with id: " + id);
+            }
+            return mapToDTO(appointment);
             
+        } catch (ResourceNotFoundException e) {
+            throw e;
         } catch (Exception e) {
             throw new IllegalArgumentException("Invalid date/time format or doctor not found: " + e.getMessage());
         }
@@ -344,25 +523,25 @@ public class AppointmentService {
      * @return The updated appointment data
      */
     public AppointmentDTO updateAppointmentType(String id, String appointmentType) {
+        // Validate appointment type
+        if (!appointmentType.equals("In Clinic") && !appointmentType.equals("Video Consultation")) {
+            throw new IllegalArgumentException("Invalid appointment type. Must be 'In Clinic' or 'Video Consultation'");
+        }
+        
         // Check if appointment exists
         Optional<Appointment> appointmentOpt = appointmentRepository.findById(id);
         if (appointmentOpt.isEmpty()) {
             throw new ResourceNotFoundException("Appointment not found with id: " + id);
         }
         
-        // Validate appointment type
-        if (!appointmentType.equals("In Clinic") && !appointmentType.equals("Video Consultation")) {
-            throw new IllegalArgumentException("Invalid appointment type. Must be 'In Clinic' or 'Video Consultation'");
-        }
-        
         Appointment appointment = appointmentOpt.get();
         
         // Update the appointment category which represents the type
         appointment.setCategory(appointmentType);
-        
-        // Save the updated appointment
-        Appointment updatedAppointment = appointmentRepository.save(appointment);
-        return mapToDTO(updatedAppointment);
+        if (!appointmentRepository.updateFields(id, Map.of("category", appointmentType))) {
+            throw new ResourceNotFoundException("Appointment not found with id: " + id);
+        }
+        return mapToDTO(appointment);
     }
 
     // Helper methods to map between entity and DTO
@@ -398,12 +577,48 @@ public class AppointmentService {
         return dto;
     }
 
+    /**
+     * Fields to write for an update from a DTO: everything it carries that is set,
+     * keyed by FirestoreAppointment property name
+     */
+    private Map<String, Object> toFieldUpdates(AppointmentDTO dto) {
+        Map<String, Object> fields = new HashMap<>();
+        putIfSet(fields, "userId", dto.getPatientId());
+        putIfSet(fields, "doctorId", dto.getDoctorId());
+        if (dto.getAppointmentDateTime() != null) {
+            fields.put("appointmentDate", clinicClock.toTimestamp(dto.getAppointmentDateTime()));
+            fields.put("dateZone", clinicClock.getZone().getId());
+        }
+        putIfSet(fields, "status", dto.getStatus());
+        putIfSet(fields, "category", dto.getCategory());
+        putIfSet(fields, "subCategory", dto.getSubCategory());
+        putIfSet(fields, "notes", dto.getNotes());
+        if (dto.getPatientLatitude() != null && dto.getPatientLongitude() != null) {
+            fields.put("patientGpsLocation", Map.of("latitude", dto.getPatientLatitude(), "longitude", dto.getPatientLongitude()));
+        }
+        if (dto.getDoctorLatitude() != null && dto.getDoctorLongitude() != null) {
+            fields.put("doctorGpsLocation", Map.of("latitude", dto.getDoctorLatitude(), "longitude", dto.getDoctorLongitude()));
+        }
+        putIfSet(fields, "tokenNumber", dto.getTokenNumber());
+        putIfSet(fields, "tokenStatus", dto.getTokenStatus());
+        putIfSet(fields, "tokenTime", dto.getTokenTime());
+        putIfSet(fields, "tokenOrder", dto.getTokenOrder());
+        putIfSet(fields, "patientName", dto.getPatientName());
+        return fields;
+    }
+
+    private static void putIfSet(Map<String, Object> fields, String name, Object value) {
+        if (value != null) {
+            fields.put(name, value);
+        }
+    }
+
     private Appointment mapToEntity(AppointmentDTO dto) {
         Appointment appointment = new Appointment();
         appointment.setAppointmentId(dto.getAppointmentId());
         appointment.setUserId(dto.getPatientId());  // Note: Mapping patientId to userId
         appointment.setDoctorId(dto.getDoctorId());
-        appointment.setAppointmentDate(Timestamp.of(java.util.Date.from(dto.getAppointmentDateTime().atZone(ZoneId.systemDefault()).toInstant())));
+        appointment.setAppointmentDate(clinicClock.toTimestamp(dto.getAppointmentDateTime()));
         appointment.setStatus(dto.getStatus());
         appointment.setCategory(dto.getCategory());
         appointment.setSubCategory(dto.getSubCategory());
@@ -433,4 +648,14 @@ public class AppointmentService {
         
         return appointment;
     }
+
+    private static final class CachedCalendar {
+        final AppointmentCalendar calendar;
+        final long loadedAt;
+
+        CachedCalendar(AppointmentCalendar calendar, long loadedAt) {
+            this.calendar = calendar;
+            this.loadedAt = loadedAt;
+        }
+    }
 }
@@ -0,0 +1,177 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Precondition;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One-off migration of appointment times to the clinic time zone.
+ *
+ * Before ClinicClock, appointmentDate was encoded in the zone of whichever host wrote it; on
+ * Cloud Run that is UTC, so a 10:00 booking was stored as 10:00Z and now reads back as 15:30
+ * in Asia/Kolkata. Appointments written since carry a dateZone field. This job pages through
+ * the collection by document ID, reading only appointmentDate and dateZone, and re-encodes
+ * every appointment without dateZone from the given source zone into the clinic zone, marking
+ * it as it goes. Marked appointments are skipped, so the job can be run again after a failure.
+ * Run it once, right after deploying, with the zone the old hosts ran in; until then reads
+ * decode unmarked appointments from app.clinic.legacy-time-zone.
+ */
+@Component
+@Slf4j
+public class AppointmentTimeZoneMigration {
+
+    private static final String COLLECTION_NAME = "appointments";
+    private static final int PAGE_SIZE = 500;
+
+    private final Firestore firestore;
+    private final ClinicClock clinicClock;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private ExecutorService executor;
+
+    // Progress of the current or last run
+    private volatile String state = "IDLE";
+    private volatile String fromZone;
+    private volatile long scanned;
+    private volatile long migrated;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+
+    @Autowired
+    public AppointmentTimeZoneMigration(Firestore firestore, ClinicClock clinicClock) {
+        this.firestore = firestore;
+        this.clinicClock = clinicClock;
+    }
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "appointment-time-zone-migration");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start the migration in the background
+     *
+     * @param sourceZone Zone the unmarked appointments were written in, e.g. UTC
+     * @return false if a run is already in progress
+     */
+    public boolean submit(ZoneId sourceZone) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        state = "QUEUED";
+        fromZone = sourceZone.getId();
+        error = null;
+        scanned = 0;
+        migrated = 0;
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        executor.submit(() -> run(sourceZone));
+        return true;
+    }
+
+    /**
+     * Progress of the current or last run
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", state);
+        status.put("fromZone", fromZone);
+        status.put("toZone", clinicClock.getZone().getId());
+        status.put("scanned", scanned);
+        status.put("migrated", migrated);
+        status.put("elapsedMs", startedAt == 0 ? 0 : (finishedAt > 0 ? finishedAt : System.currentTimeMillis()) - startedAt);
+        if (error != null) {
+            status.put("error", error);
+        }
+        return status;
+    }
+
+    private void run(ZoneId sourceZone) {
+        state = "RUNNING";
+        try {
+            Query pages = firestore.collection(COLLECTION_NAME)
+                    .select("appointmentDate", "dateZone")
+                    .orderBy(FieldPath.documentId())
+                    .limit(PAGE_SIZE);
+            QueryDocumentSnapshot last = null;
+            while (true) {
+                List<QueryDocumentSnapshot> page = (last != null ? pages.startAfter(last) : pages)
+                        .get().get().getDocuments();
+                migratePage(page, sourceZone);
+                scanned += page.size();
+                if (page.size() < PAGE_SIZE) {
+                    break;
+                }
+                last = page.get(page.size() - 1);
+            }
+            state = "COMPLETED";
+            log.info("Moved {} of {} appointments from {} to {}", migrated, scanned, sourceZone, clinicClock.getZone());
+        } catch (InterruptedException e) {
+            state = "FAILED";
+            error = "Interrupted";
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Appointment time zone migration failed after {} appointments", migrated, e);
+            state = "FAILED";
+            error = e.getMessage();
+        } finally {
+            finishedAt = System.currentTimeMillis();
+            running.set(false);
+        }
+    }
+
+    private void migratePage(List<QueryDocumentSnapshot> page, ZoneId sourceZone)
+            throws InterruptedException, ExecutionException {
+        WriteBatch batch = firestore.batch();
+        int pending = 0;
+        for (QueryDocumentSnapshot appointment : page) {
+            Timestamp stored = appointment.getTimestamp("appointmentDate");
+            if (stored == null || appointment.getString("dateZone") != null) {
+                continue;
+            }
+            // Same wall-clock time, now meant in the clinic zone
+            Instant instant = Instant.ofEpochSecond(stored.getSeconds(), stored.getNanos());
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("appointmentDate", clinicClock.toTimestamp(LocalDateTime.ofInstant(instant, sourceZone)));
+            fields.put("dateZone", clinicClock.getZone().getId());
+            // Fails the batch if the appointment was written since it was read; the run can be repeated
+            batch.update(appointment.getReference(), fields, Precondition.updatedAt(appointment.getUpdateTime()));
+            pending++;
+        }
+        if (pending > 0) {
+            batch.commit().get();
+            migrated += pending;
+        }
+    }
+}
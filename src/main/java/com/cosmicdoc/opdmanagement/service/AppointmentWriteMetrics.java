@@ -0,0 +1,59 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and failure counts of appointment writes, recorded by OpdAppointmentRepositoryImpl
+ * when each Firestore write is acknowledged
+ */
+@Component
+public class AppointmentWriteMetrics {
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong totalLatencyMs = new AtomicLong();
+    private final AtomicLong maxLatencyMs = new AtomicLong();
+    private final AtomicLong lastLatencyMs = new AtomicLong();
+
+    /**
+     * Mark a write as sent
+     *
+     * @return Start time to pass to completed
+     */
+    public long started() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the acknowledgement (or failure) of a write
+     */
+    public void completed(long startNanos, boolean success) {
+        long latencyMs = (System.nanoTime() - startNanos) / 1_000_000;
+        inFlight.decrementAndGet();
+        writes.incrementAndGet();
+        if (!success) {
+            failures.incrementAndGet();
+        }
+        totalLatencyMs.addAndGet(latencyMs);
+        lastLatencyMs.set(latencyMs);
+        maxLatencyMs.accumulateAndGet(latencyMs, Math::max);
+    }
+
+    public Map<String, Object> getStats() {
+        long count = writes.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("writes", count);
+        stats.put("failures", failures.get());
+        stats.put("inFlight", inFlight.get());
+        stats.put("avgLatencyMs", count > 0 ? totalLatencyMs.get() / count : 0);
+        stats.put("lastLatencyMs", lastLatencyMs.get());
+        stats.put("maxLatencyMs", maxLatencyMs.get());
+        return stats;
+    }
+}
@@ -0,0 +1,154 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shared sequence service for human readable bill numbers (cash memos, invoices, receipts).
+ *
+ * Numbers have the form PREFIX + yyyyMMdd + 6 digit sequence, e.g. CM-20250101000042.
+ * Each prefix/day pair has a counter document in the bill_sequences collection. Instances
+ * lease blocks of numbers from that counter inside a transaction and hand them out from
+ * memory, so two bills can never share a number.
+ *
+ * With the default block size of 1 every number is a transaction on the counter, and the
+ * day's numbers are gap-free and increase across all instances. Larger blocks cut the
+ * counter writes, but a block is lost when an instance restarts, and with several instances
+ * the numbers are only increasing per instance (one may issue 21 before another issues 2).
+ * The day is the clinic's day, see ClinicClock.
+ */
+@Service
+@Slf4j
+public class BillNumberService {
+
+    private static final String COLLECTION_NAME = "bill_sequences";
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final Firestore firestore;
+    private final ClinicClock clinicClock;
+    private final int blockSize;
+
+    // Leased block per prefix + day key
+    private final Map<String, AtomicReference<SequenceBlock>> blocks = new ConcurrentHashMap<>();
+
+    @Autowired
+    public BillNumberService(Firestore firestore, ClinicClock clinicClock,
+                             @Value("${app.billing.sequence.block-size:1}") int blockSize) {
+        this.firestore = firestore;
+        this.clinicClock = clinicClock;
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    /**
+     * Allocate the next bill number for the clinic's current day
+     *
+     * @param prefix Number prefix, e.g. CM-, INV-, REC-
+     * @return Formatted bill number
+     */
+    public String nextNumber(String prefix) {
+        return nextNumber(prefix, clinicClock.today());
+    }
+
+    /**
+     * Allocate the next bill number for the given day
+     *
+     * @param prefix Number prefix, e.g. CM-, INV-, REC-
+     * @param date Business day the number belongs to
+     * @return Formatted bill number
+     */
+    public String nextNumber(String prefix, LocalDate date) {
+        String datePart = date.format(DATE_FORMATTER);
+        return prefix + datePart + String.format("%06d", nextSequence(prefix, datePart));
+    }
+
+    private long nextSequence(String prefix, String datePart) {
+        String key = prefix + datePart;
+        AtomicReference<SequenceBlock> blockRef = blocks.computeIfAbsent(key, k -> new AtomicReference<>(SequenceBlock.EMPTY));
+
+        // Fast path: lock-free allocation from the current block
+        long value = blockRef.get().tryNext();
+        while (value < 0) {
+            synchronized (blockRef) {
+                value = blockRef.get().tryNext();
+                if (value < 0) {
+                    long start = leaseBlock(key, prefix, datePart);
+                    blockRef.set(new SequenceBlock(start, start + blockSize));
+                    evictStaleDays(datePart);
+                    value = blockRef.get().tryNext();
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reserve the next block from the counter document and return its first value
+     */
+    private long leaseBlock(String key, String prefix, String datePart) {
+        DocumentReference counterRef = firestore.collection(COLLECTION_NAME).document(key);
+        try {
+            long start = firestore.runTransaction(transaction -> {
+                DocumentSnapshot snapshot = transaction.get(counterRef).get();
+                Long next = snapshot.exists() ? snapshot.getLong("next") : null;
+                long blockStart = next != null ? next : 1L;
+
+                Map<String, Object> counter = new HashMap<>();
+                counter.put("prefix", prefix);
+                counter.put("date", datePart);
+                counter.put("next", blockStart + blockSize);
+                counter.put("updatedAt", FieldValue.serverTimestamp());
+                transaction.set(counterRef, counter);
+                return blockStart;
+            }).get();
+            log.debug("Leased bill numbers {}..{} for {}", start, start + blockSize - 1, key);
+            return start;
+        } catch (ExecutionException e) {
+            log.error("Error leasing bill number block for {}", key, e);
+            throw new RuntimeException("Failed to allocate bill number: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to allocate bill number: " + e.getMessage(), e);
+        }
+    }
+
+    private void evictStaleDays(String currentDatePart) {
+        blocks.keySet().removeIf(key -> !key.endsWith(currentDatePart));
+    }
+
+    /**
+     * Immutable range [start, end) with an atomic cursor. Exhausted blocks are replaced,
+     * never reset, so a racing caller can never receive a number outside its lease.
+     */
+    private static final class SequenceBlock {
+        static final SequenceBlock EMPTY = new SequenceBlock(0, 0);
+
+        private final long end;
+        private final AtomicLong cursor;
+
+        SequenceBlock(long start, long end) {
+            this.end = end;
+            this.cursor = new AtomicLong(start);
+        }
+
+        long tryNext() {
+            long value = cursor.getAndIncrement();
+            return value < end ? value : -1;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Precondition;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable outbox for the patients/{patientId}/billing_history projection.
+ *
+ * Repositories add an outbox entry to the same WriteBatch as the billing document, so the
+ * request path is a single atomic commit and the projection can never be silently lost.
+ * There is one entry per billing document, so repeated changes collapse into one delivery;
+ * it collects every patient the document belonged to since it was last delivered.
+ *
+ * A small worker pool drains the outbox in batches. Due entries are first claimed by moving
+ * their nextAttemptAt past a lease, guarded by their update time, so other workers and
+ * instances skip them. Each batch is then delivered in a transaction that reads the source
+ * documents and entries: the copy under the source's current patient is set, copies under
+ * other patients are deleted and the entries are removed. A newer save either commits before
+ * the transaction reads (and is what gets copied) or after it (and leaves a new entry), so an
+ * old copy can never overwrite a newer one. Failed batches are retried with exponential
+ * backoff; entries that exhaust their attempts move to billing_history_outbox_failed.
+ */
+@Component
+@Slf4j
+public class BillingHistoryOutbox {
+
+    private static final String OUTBOX_COLLECTION = "billing_history_outbox";
+    private static final String FAILED_COLLECTION = "billing_history_outbox_failed";
+    private static final long BASE_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    // Claimed entries become due again after this, in case the claiming instance died
+    private static final long LEASE_MS = 60 * 1000;
+
+    private final Firestore firestore;
+    private final int workers;
+    private final int batchSize;
+    private final long pollIntervalMs;
+    private final int maxAttempts;
+
+    private ScheduledExecutorService poller;
+    private ExecutorService workerPool;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    // Metrics
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final AtomicLong lastLagMs = new AtomicLong();
+    private final AtomicLong maxLagMs = new AtomicLong();
+    private final AtomicLong lastBacklog = new AtomicLong();
+    private volatile Timestamp lastDrainAt;
+
+    @Autowired
+    public BillingHistoryOutbox(Firestore firestore,
+                                @Value("${app.billing.history-outbox.workers:2}") int workers,
+                                @Value("${app.billing.history-outbox.batch-size:100}") int batchSize,
+                                @Value("${app.billing.history-outbox.poll-interval-ms:2000}") long pollIntervalMs,
+                                @Value("${app.billing.history-outbox.max-attempts:10}") int maxAttempts) {
+        this.firestore = firestore;
+        this.workers = Math.max(1, workers);
+        // A transaction holds at most 500 writes; an entry needs two, plus one per earlier patient
+        this.batchSize = Math.max(1, Math.min(100, batchSize));
+        this.pollIntervalMs = Math.max(100, pollIntervalMs);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    @PostConstruct
+    public void start() {
+        workerPool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "billing-history-outbox-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "billing-history-outbox-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::drain, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+        log.info("Billing history outbox started with {} workers, batch size {}", workers, batchSize);
+    }
+
+    @PreDestroy
+    public void stop() {
+        poller.shutdownNow();
+        workerPool.shutdown();
+        try {
+            workerPool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add an outbox entry to the batch that writes or deletes the billing document
+     *
+     * @param batch The batch carrying the primary write
+     * @param sourceCollection Collection of the billing document, e.g. invoices
+     * @param documentId Billing document ID (also the billing_history document ID)
+     * @param patientId Patient whose billing history should reflect the document
+     */
+    public void enqueue(WriteBatch batch, String sourceCollection, String documentId, String patientId) {
+        enqueue(batch, sourceCollection, documentId, patientId, null);
+    }
+
+    /**
+     * Add an outbox entry for a save that may move the document to another patient
+     *
+     * @param previousPatientId Patient the stored document belonged to, whose copy is removed
+     *                          if it differs; null for new documents
+     */
+    public void enqueue(WriteBatch batch, String sourceCollection, String documentId, String patientId,
+                        String previousPatientId) {
+        List<Object> patientIds = new ArrayList<>();
+        for (String id : new String[]{patientId, previousPatientId}) {
+            if (id != null && !id.isEmpty() && !patientIds.contains(id)) {
+                patientIds.add(id);
+            }
+        }
+        if (patientIds.isEmpty()) {
+            return;
+        }
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("sourceCollection", sourceCollection);
+        entry.put("documentId", documentId);
+        entry.put("patientIds", FieldValue.arrayUnion(patientIds.toArray()));
+        entry.put("attempts", 0);
+        entry.put("createdAt", Timestamp.now());
+        entry.put("nextAttemptAt", Timestamp.now());
+        // Merging into the document's one entry collapses repeats and keeps earlier patients
+        batch.set(firestore.collection(OUTBOX_COLLECTION).document(entryId(sourceCollection, documentId)),
+                entry, SetOptions.merge());
+        enqueued.incrementAndGet();
+    }
+
+    /**
+     * Patient a stored billing document belongs to, to pass as previousPatientId when saving it
+     *
+     * @param source The billing document
+     * @return The stored patientId, or null if the document doesn't exist yet
+     */
+    public String storedPatientId(DocumentReference source) throws InterruptedException, ExecutionException {
+        DocumentSnapshot stored = firestore.getAll(new DocumentReference[]{source}, FieldMask.of("patientId"))
+                .get().get(0);
+        return stored.exists() ? stored.getString("patientId") : null;
+    }
+
+    /**
+     * Wake the poller after a commit so the projection converges without waiting a full interval
+     */
+    public void signal() {
+        if (poller != null && !draining.get()) {
+            poller.execute(this::drain);
+        }
+    }
+
+    /**
+     * Outbox throughput and lag metrics
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enqueued", enqueued.get());
+        stats.put("delivered", delivered.get());
+        stats.put("failedAttempts", failedAttempts.get());
+        stats.put("deadLettered", deadLettered.get());
+        stats.put("backlogAtLastPoll", lastBacklog.get());
+        stats.put("lastLagMs", lastLagMs.get());
+        stats.put("maxLagMs", maxLagMs.get());
+        stats.put("lastDrainAt", lastDrainAt != null ? lastDrainAt.toString() : null);
+        stats.put("workers", workers);
+        stats.put("batchSize", batchSize);
+        return stats;
+    }
+
+    /**
+     * Deliver due entries until the outbox has no more due work. Runs on the poller thread only.
+     */
+    private void drain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int pageSize = batchSize * workers;
+            List<QueryDocumentSnapshot> due;
+            do {
+                due = firestore.collection(OUTBOX_COLLECTION)
+                        .whereLessThanOrEqualTo("nextAttemptAt", Timestamp.now())
+                        .orderBy("nextAttemptAt", Query.Direction.ASCENDING)
+                        .limit(pageSize)
+                        .get().get().getDocuments();
+                lastBacklog.set(due.size());
+
+                List<Claim> claimed = claim(due);
+                List<Future<?>> inFlight = new ArrayList<>();
+                for (int start = 0; start < claimed.size(); start += batchSize) {
+                    List<Claim> chunk = claimed.subList(start, Math.min(claimed.size(), start + batchSize));
+                    inFlight.add(workerPool.submit(() -> deliver(chunk)));
+                }
+                for (Future<?> future : inFlight) {
+                    future.get();
+                }
+                lastDrainAt = Timestamp.now();
+            } while (due.size() == pageSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Billing history outbox drain failed: {}", e.getMessage());
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Lease due entries to this worker. Entries changed since the query (claimed elsewhere or
+     * enqueued again) fail their precondition and are left for the next poll.
+     */
+    private List<Claim> claim(List<QueryDocumentSnapshot> due) throws InterruptedException {
+        Timestamp leasedUntil = Timestamp.ofTimeMicroseconds((System.currentTimeMillis() + LEASE_MS) * 1000);
+        List<ApiFuture<WriteResult>> writes = new ArrayList<>();
+        for (QueryDocumentSnapshot entry : due) {
+            Map<String, Object> lease = new HashMap<>();
+            lease.put("nextAttemptAt", leasedUntil);
+            writes.add(entry.getReference().update(lease, Precondition.updatedAt(entry.getUpdateTime())));
+        }
+        List<Claim> claimed = new ArrayList<>();
+        for (int i = 0; i < due.size(); i++) {
+            try {
+                claimed.add(new Claim(due.get(i), writes.get(i).get().getUpdateTime()));
+            } catch (ExecutionException e) {
+                log.debug("Billing history entry {} not claimed: {}", due.get(i).getId(), e.getMessage());
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Project one chunk of claimed entries in a single transaction
+     */
+    private void deliver(List<Claim> claims) {
+        try {
+            firestore.runTransaction((Transaction.Function<Void>) transaction -> {
+                // Sources and entries are read inside the transaction, so a save that races
+                // with this delivery is either copied here or leaves an entry behind
+                DocumentReference[] refs = new DocumentReference[claims.size() * 2];
+                for (int i = 0; i < claims.size(); i++) {
+                    QueryDocumentSnapshot entry = claims.get(i).entry;
+                    refs[2 * i] = firestore.collection(entry.getString("sourceCollection"))
+                            .document(entry.getString("documentId"));
+                    refs[2 * i + 1] = entry.getReference();
+                }
+                List<DocumentSnapshot> snapshots = transaction.getAll(refs).get();
+
+                for (int i = 0; i < claims.size(); i++) {
+                    DocumentSnapshot source = snapshots.get(2 * i);
+                    DocumentSnapshot entry = snapshots.get(2 * i + 1);
+                    String documentId = claims.get(i).entry.getString("documentId");
+                    Map<String, Object> data = source.exists() ? source.getData() : null;
+                    String currentPatientId = data != null ? source.getString("patientId") : null;
+
+                    Set<String> patientIds = patientIds(entry.exists() ? entry : claims.get(i).entry);
+                    if (currentPatientId != null) {
+                        patientIds.add(currentPatientId);
+                    }
+                    for (String patientId : patientIds) {
+                        DocumentReference historyRef = firestore.collection("patients").document(patientId)
+                                .collection("billing_history").document(documentId);
+                        if (patientId.equals(currentPatientId)) {
+                            transaction.set(historyRef, data);
+                        } else {
+                            transaction.delete(historyRef);
+                        }
+                    }
+                    transaction.delete(entry.getReference());
+                }
+                return null;
+            }).get();
+
+            long now = System.currentTimeMillis();
+            for (Claim claim : claims) {
+                Timestamp createdAt = claim.entry.getTimestamp("createdAt");
+                if (createdAt != null) {
+                    long lag = now - createdAt.toDate().getTime();
+                    lastLagMs.set(lag);
+                    maxLagMs.accumulateAndGet(lag, Math::max);
+                }
+            }
+            delivered.addAndGet(claims.size());
+        } catch (ExecutionException e) {
+            log.warn("Failed to deliver {} billing history entries, scheduling retry: {}", claims.size(), e.getMessage());
+            scheduleRetry(claims);
+        } catch (InterruptedException e) {
+            // Claims expire with their lease, so the entries are delivered later
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Patients with a history copy to set or remove; entries written before patientIds existed
+     * carry a single patientId
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<String> patientIds(DocumentSnapshot entry) {
+        Set<String> patientIds = new LinkedHashSet<>();
+        Object list = entry.get("patientIds");
+        if (list instanceof List) {
+            for (Object id : (List<Object>) list) {
+                if (id instanceof String && !((String) id).isEmpty()) {
+                    patientIds.add((String) id);
+                }
+            }
+        }
+        String legacy = entry.getString("patientId");
+        if (legacy != null && !legacy.isEmpty()) {
+            patientIds.add(legacy);
+        }
+        return patientIds;
+    }
+
+    private static String entryId(String sourceCollection, String documentId) {
+        return sourceCollection + "-" + documentId;
+    }
+
+    private void scheduleRetry(List<Claim> claims) {
+        for (Claim claim : claims) {
+            QueryDocumentSnapshot entry = claim.entry;
+            failedAttempts.incrementAndGet();
+            Long previous = entry.getLong("attempts");
+            long attempts = (previous != null ? previous : 0) + 1;
+            // If the entry was enqueued again since the claim, leave the newer version alone
+            Precondition unchanged = Precondition.updatedAt(claim.claimedAt);
+            try {
+                if (attempts >= maxAttempts) {
+                    Map<String, Object> failed = new HashMap<>(entry.getData());
+                    failed.put("attempts", attempts);
+                    failed.put("failedAt", FieldValue.serverTimestamp());
+                    WriteBatch batch = firestore.batch();
+                    batch.set(firestore.collection(FAILED_COLLECTION).document(entry.getId()), failed);
+                    batch.delete(entry.getReference(), unchanged);
+                    batch.commit().get();
+                    deadLettered.incrementAndGet();
+                    log.error("Billing history entry {} for {} {} moved to {} after {} attempts", entry.getId(),
+                            entry.getString("sourceCollection"), entry.getString("documentId"), FAILED_COLLECTION, attempts);
+                } else {
+                    long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(20, attempts - 1));
+                    Map<String, Object> update = new HashMap<>();
+                    update.put("attempts", attempts);
+                    update.put("nextAttemptAt", Timestamp.ofTimeMicroseconds(
+                            (System.currentTimeMillis() + backoff) * 1000));
+                    entry.getReference().update(update, unchanged).get();
+                }
+            } catch (ExecutionException e) {
+                // Entry becomes due again when its lease runs out
+                log.warn("Failed to reschedule billing history entry {}: {}", entry.getId(), e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * An entry leased to this worker, with the update time of the lease write
+     */
+    private static final class Claim {
+        private final QueryDocumentSnapshot entry;
+        private final Timestamp claimedAt;
+
+        private Claim(QueryDocumentSnapshot entry, Timestamp claimedAt) {
+            this.entry = entry;
+            this.claimedAt = claimedAt;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.cosmicdoc.opdmanagement.service;
 
 import com.cosmicdoc.opdmanagement.model.CashMemo;
 import com.cosmicdoc.opdmanagement.repository.CashMemoRepository;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -17,10 +18,15 @@ import java.util.Optional;
 public class CashMemoService {
 
     private final CashMemoRepository cashMemoRepository;
+    private final PatientLedgerService patientLedgerService;
+    private final ClinicClock clinicClock;
 
     @Autowired
-    public CashMemoService(CashMemoRepository cashMemoRepository) {
+    public CashMemoService(CashMemoRepository cashMemoRepository, PatientLedgerService patientLedgerService,
+                           ClinicClock clinicClock) {
         this.cashMemoRepository = cashMemoRepository;
+        this.patientLedgerService = patientLedgerService;
+        this.clinicClock = clinicClock;
     }
 
     /**
@@ -34,19 +40,21 @@ public class CashMemoService {
         
         // Ensure timestamp fields are set if not already present
         if (cashMemo.getTimestamp() == null) {
-            cashMemo.setTimestamp(java.time.LocalDateTime.now());
+            cashMemo.setTimestamp(clinicClock.now());
         }
         if (cashMemo.getCreatedTimestamp() == null) {
-            cashMemo.setCreatedTimestamp(java.time.LocalDateTime.now());
+            cashMemo.setCreatedTimestamp(clinicClock.now());
         }
         if (cashMemo.getDate() == null) {
-            cashMemo.setDate(java.time.LocalDate.now());
+            cashMemo.setDate(clinicClock.today());
         }
         if (cashMemo.getCreatedDate() == null) {
-            cashMemo.setCreatedDate(java.time.LocalDate.now());
+            cashMemo.setCreatedDate(clinicClock.today());
         }
         
-        return cashMemoRepository.save(cashMemo);
+        CashMemo savedCashMemo = cashMemoRepository.save(cashMemo);
+        patientLedgerService.recordCashMemo(savedCashMemo);
+        return savedCashMemo;
     }
 
     /**
@@ -101,7 +109,9 @@ public class CashMemoService {
             updatedCashMemo.setBillId(existingCashMemo.getBillId());
         }
         
-        return cashMemoRepository.save(updatedCashMemo);
+        CashMemo savedCashMemo = cashMemoRepository.save(updatedCashMemo);
+        patientLedgerService.recordCashMemo(savedCashMemo);
+        return savedCashMemo;
     }
 
     /**
@@ -112,5 +122,6 @@ public class CashMemoService {
     public void deleteCashMemo(String id) {
         log.info("Deleting cash memo with ID: {}", id);
         cashMemoRepository.delete(id);
+        patientLedgerService.removeCashMemo(id);
     }
 }
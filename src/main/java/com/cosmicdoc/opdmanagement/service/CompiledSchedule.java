@@ -0,0 +1,222 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A doctor's weekly schedule compiled for slot generation.
+ *
+ * Working days are a bitmask (bit 0 = Monday) and working hours are merged minute-of-day
+ * ranges, expanded once into the sorted slot start minutes. The same slots apply to every
+ * working day, so generating a day's slots is a mask test plus, when there are bookings,
+ * one pass over a small int array.
+ */
+@Slf4j
+public final class CompiledSchedule {
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int DEFAULT_START = 9 * 60;
+    private static final int DEFAULT_END = 17 * 60;
+    private static final DateTimeFormatter TWELVE_HOUR = DateTimeFormatter.ofPattern("h:mm a", Locale.ENGLISH);
+
+    private final int dayMask;
+    private final int slotMinutes;
+    private final int[] slotStarts;
+    private final List<LocalTime> slotTimes;
+
+    private CompiledSchedule(int dayMask, int slotMinutes, int[] slotStarts) {
+        this.dayMask = dayMask;
+        this.slotMinutes = slotMinutes;
+        this.slotStarts = slotStarts;
+        LocalTime[] times = new LocalTime[slotStarts.length];
+        for (int i = 0; i < slotStarts.length; i++) {
+            times[i] = LocalTime.of(slotStarts[i] / 60, slotStarts[i] % 60);
+        }
+        this.slotTimes = Collections.unmodifiableList(Arrays.asList(times));
+    }
+
+    /**
+     * Compile day names and "HH:mm-HH:mm" ranges.
+     *
+     * Missing days mean every day; missing ranges mean the clinic default of 09:00-17:00.
+     * Unparseable entries are skipped.
+     *
+     * @param days Day names such as "Monday" or "Mon"
+     * @param timeRanges Working hour ranges such as "10:00-13:00"
+     * @param slotMinutes Slot length in minutes
+     */
+    public static CompiledSchedule compile(List<String> days, List<String> timeRanges, int slotMinutes) {
+        int mask = 0;
+        if (days != null) {
+            for (String day : days) {
+                DayOfWeek dayOfWeek = parseDay(day);
+                if (dayOfWeek != null) {
+                    mask |= 1 << (dayOfWeek.getValue() - 1);
+                }
+            }
+        }
+        if (mask == 0) {
+            mask = 0x7F;
+        }
+
+        List<int[]> ranges = new ArrayList<>();
+        if (timeRanges != null) {
+            for (String range : timeRanges) {
+                int[] parsed = parseRange(range, slotMinutes);
+                if (parsed != null) {
+                    ranges.add(parsed);
+                }
+            }
+        }
+        if (ranges.isEmpty()) {
+            ranges.add(new int[] {DEFAULT_START, DEFAULT_END});
+        }
+        return new CompiledSchedule(mask, slotMinutes, expand(ranges, slotMinutes));
+    }
+
+    /**
+     * Every day, 09:00-17:00
+     */
+    public static CompiledSchedule defaultSchedule(int slotMinutes) {
+        return compile(null, null, slotMinutes);
+    }
+
+    public boolean worksOn(DayOfWeek day) {
+        return (dayMask & (1 << (day.getValue() - 1))) != 0;
+    }
+
+    public int getSlotMinutes() {
+        return slotMinutes;
+    }
+
+    /**
+     * All slot start times of a working day; shared and unmodifiable
+     */
+    public List<LocalTime> slots() {
+        return slotTimes;
+    }
+
+    /**
+     * Slot start times not overlapping any booking.
+     *
+     * A booking starting at minute m occupies [m, m + slotMinutes), so it blocks every slot
+     * that starts less than one slot length before or after it.
+     *
+     * @param bookedMinutes Minute of day of each booking; only the first count are read
+     * @param count Number of bookings
+     * @return Open slots; the shared slot list when there are no bookings
+     */
+    public List<LocalTime> openSlots(int[] bookedMinutes, int count) {
+        if (count == 0) {
+            return slotTimes;
+        }
+        boolean[] blocked = new boolean[slotStarts.length];
+        for (int b = 0; b < count; b++) {
+            int booked = bookedMinutes[b];
+            // First slot starting after booked - slotMinutes
+            int i = Arrays.binarySearch(slotStarts, booked - slotMinutes + 1);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            for (; i < slotStarts.length && slotStarts[i] < booked + slotMinutes; i++) {
+                blocked[i] = true;
+            }
+        }
+        List<LocalTime> open = new ArrayList<>(slotStarts.length);
+        for (int i = 0; i < slotStarts.length; i++) {
+            if (!blocked[i]) {
+                open.add(slotTimes.get(i));
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Merge overlapping ranges and lay slots end to end inside each merged range
+     */
+    private static int[] expand(List<int[]> ranges, int slotMinutes) {
+        ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+        List<int[]> merged = new ArrayList<>();
+        for (int[] range : ranges) {
+            int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(new int[] {range[0], range[1]});
+            }
+        }
+
+        int total = 0;
+        for (int[] range : merged) {
+            total += (range[1] - range[0]) / slotMinutes;
+        }
+        int[] starts = new int[total];
+        int n = 0;
+        for (int[] range : merged) {
+            for (int start = range[0]; start + slotMinutes <= range[1]; start += slotMinutes) {
+                starts[n++] = start;
+            }
+        }
+        return starts;
+    }
+
+    private static DayOfWeek parseDay(String day) {
+        if (day == null || day.isBlank()) {
+            return null;
+        }
+        String normalized = day.trim().toUpperCase(Locale.ROOT);
+        for (DayOfWeek dayOfWeek : DayOfWeek.values()) {
+            if (dayOfWeek.name().equals(normalized)
+                    || (normalized.length() >= 3 && dayOfWeek.name().startsWith(normalized))) {
+                return dayOfWeek;
+            }
+        }
+        log.warn("Ignoring unrecognised schedule day: {}", day);
+        return null;
+    }
+
+    /**
+     * Parse "HH:mm-HH:mm" (or 12-hour times); a single time is one slot. An end at or
+     * before the start runs to midnight.
+     */
+    private static int[] parseRange(String range, int slotMinutes) {
+        if (range == null || range.isBlank()) {
+            return null;
+        }
+        String[] parts = range.split("-");
+        Integer start = parseMinute(parts[0]);
+        Integer end = parts.length > 1 ? parseMinute(parts[1]) : (start != null ? start + slotMinutes : null);
+        if (start == null || end == null || parts.length > 2) {
+            log.warn("Ignoring unrecognised schedule time slot: {}", range);
+            return null;
+        }
+        if (end <= start) {
+            end = MINUTES_PER_DAY;
+        }
+        return new int[] {start, Math.min(end, MINUTES_PER_DAY)};
+    }
+
+    private static Integer parseMinute(String time) {
+        String trimmed = time.trim();
+        try {
+            LocalTime parsed = LocalTime.parse(trimmed);
+            return parsed.getHour() * 60 + parsed.getMinute();
+        } catch (DateTimeParseException e) {
+            try {
+                LocalTime parsed = LocalTime.parse(trimmed.toUpperCase(Locale.ROOT), TWELVE_HOUR);
+                return parsed.getHour() * 60 + parsed.getMinute();
+            } catch (DateTimeParseException ignored) {
+                return null;
+            }
+        }
+    }
+}
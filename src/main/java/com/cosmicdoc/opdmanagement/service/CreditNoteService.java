@@ -17,10 +17,12 @@ import java.util.Optional;
 public class CreditNoteService {
 
     private final CreditNoteRepository creditNoteRepository;
+    private final PatientLedgerService patientLedgerService;
 
     @Autowired
-    public CreditNoteService(CreditNoteRepository creditNoteRepository) {
+    public CreditNoteService(CreditNoteRepository creditNoteRepository, PatientLedgerService patientLedgerService) {
         this.creditNoteRepository = creditNoteRepository;
+        this.patientLedgerService = patientLedgerService;
     }
 
     /**
@@ -31,7 +33,9 @@ public class CreditNoteService {
      */
     public CreditNote createCreditNote(CreditNote creditNote) {
         log.info("Creating credit note for patient: {}", creditNote.getPatientId());
-        return creditNoteRepository.save(creditNote);
+        CreditNote savedCreditNote = creditNoteRepository.save(creditNote);
+        patientLedgerService.recordCreditNote(savedCreditNote);
+        return savedCreditNote;
     }
 
     /**
@@ -86,7 +90,9 @@ public class CreditNoteService {
             updatedCreditNote.setCreditNoteId(existingCreditNote.getCreditNoteId());
         }
         
-        return creditNoteRepository.save(updatedCreditNote);
+        CreditNote savedCreditNote = creditNoteRepository.save(updatedCreditNote);
+        patientLedgerService.recordCreditNote(savedCreditNote);
+        return savedCreditNote;
     }
 
     /**
@@ -97,5 +103,6 @@ public class CreditNoteService {
     public void deleteCreditNote(String id) {
         log.info("Deleting credit note with ID: {}", id);
         creditNoteRepository.delete(id);
+        patientLedgerService.removeCreditNote(id);
     }
 }
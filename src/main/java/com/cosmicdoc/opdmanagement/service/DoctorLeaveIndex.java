@@ -0,0 +1,347 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.model.Doctor;
+import com.cosmicdoc.opdmanagement.model.FirestoreDoctor;
+import com.cosmicdoc.opdmanagement.util.ResilientSnapshotListener;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QuerySnapshot;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * In-memory leave calendar per doctor.
+ *
+ * Leaves stay embedded in the doctor document; this index mirrors them so slot and
+ * availability lookups never read Firestore. It is kept current by a snapshot listener on
+ * the doctors collection and by write-through calls from OpdDoctorRepositoryImpl. Each
+ * doctor's calendar is immutable and replaced on change: blocking leaves are sorted by
+ * start date with a running maximum of end dates, so "is this doctor on leave on this
+ * date" is a binary search plus a short backwards scan.
+ *
+ * REJECTED and CANCELLED leaves are kept for listing but never block availability.
+ *
+ * The listener is registered again after errors. While it is down, calendars are loaded per
+ * doctor and only kept for a short while, so leaves added or cancelled elsewhere in the
+ * meantime still show up; the first snapshot after it is back rebuilds the index.
+ */
+@Component
+@Slf4j
+public class DoctorLeaveIndex {
+
+    private static final String COLLECTION_NAME = "doctors";
+    private static final long FALLBACK_TTL_MS = 60 * 1000;
+
+    private final Firestore firestore;
+    private final Map<String, LeaveCalendar> calendars = new ConcurrentHashMap<>();
+    // Per-doctor loads made while the listener is down, with their load time
+    private final Map<String, FallbackEntry> fallbackCalendars = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+    private ResilientSnapshotListener listener;
+
+    @Autowired
+    public DoctorLeaveIndex(Firestore firestore) {
+        this.firestore = firestore;
+    }
+
+    @PostConstruct
+    public void startListening() {
+        listener = new ResilientSnapshotListener("doctor-leaves", firestore.collection(COLLECTION_NAME),
+                this::apply, () -> {
+                    log.warn("Doctor leave listener failed, falling back to per-doctor loads");
+                    ready = false;
+                    calendars.clear();
+                });
+        listener.start();
+    }
+
+    @PreDestroy
+    public void stopListening() {
+        if (listener != null) {
+            listener.stop();
+        }
+    }
+
+    private void apply(QuerySnapshot snapshot, boolean initial) {
+        if (initial) {
+            // Full result set: rebuild, dropping doctors deleted while the listener was down
+            Set<String> present = new HashSet<>();
+            for (DocumentSnapshot document : snapshot.getDocuments()) {
+                present.add(document.getId());
+                calendars.put(document.getId(), LeaveCalendar.of(storedLeaves(document)));
+            }
+            calendars.keySet().retainAll(present);
+        } else {
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                DocumentSnapshot document = change.getDocument();
+                if (change.getType() == DocumentChange.Type.REMOVED) {
+                    calendars.remove(document.getId());
+                } else {
+                    calendars.put(document.getId(), LeaveCalendar.of(storedLeaves(document)));
+                }
+            }
+        }
+        ready = true;
+        fallbackCalendars.clear();
+    }
+
+    /**
+     * Check whether a doctor has a blocking leave covering a date
+     *
+     * @param doctorId Doctor ID
+     * @param date Date to check
+     * @return true if a PENDING or APPROVED leave covers the date
+     */
+    public boolean isOnLeave(String doctorId, LocalDate date) {
+        return calendarFor(doctorId).covers(date);
+    }
+
+    /**
+     * Get all leaves of a doctor, ordered by start date
+     *
+     * @param doctorId Doctor ID
+     * @return Leaves including rejected ones
+     */
+    public List<Doctor.DoctorLeave> getLeaves(String doctorId) {
+        List<Doctor.DoctorLeave> leaves = new ArrayList<>();
+        for (LeaveEntry entry : calendarFor(doctorId).byId.values()) {
+            leaves.add(entry.leave.toDoctorLeave());
+        }
+        leaves.sort(Comparator.comparing(Doctor.DoctorLeave::getStartDate));
+        return leaves;
+    }
+
+    /**
+     * Get a leave exactly as it is stored in the doctor document, for use with arrayRemove
+     *
+     * @param doctorId Doctor ID
+     * @param leaveId Leave ID
+     * @return The stored array element if the leave exists
+     */
+    public Optional<Map<String, Object>> findStoredLeave(String doctorId, String leaveId) {
+        LeaveEntry entry = calendarFor(doctorId).byId.get(leaveId);
+        if (entry == null && doctorId != null && !doctorId.isEmpty()) {
+            // The leave may have been added on another instance that the index hasn't seen yet
+            entry = load(doctorId).byId.get(leaveId);
+        }
+        return entry != null ? Optional.of(entry.stored) : Optional.empty();
+    }
+
+    /**
+     * Record a leave that was just added with arrayUnion
+     */
+    public void addLeave(String doctorId, Map<String, Object> stored) {
+        fallbackCalendars.remove(doctorId);
+        if (!ready) {
+            // Only part of the leaves would be known; the next lookup loads the document
+            return;
+        }
+        calendars.compute(doctorId, (id, calendar) -> {
+            List<Map<String, Object>> leaves = calendar != null ? calendar.storedLeaves() : new ArrayList<>();
+            leaves.add(stored);
+            return LeaveCalendar.of(leaves);
+        });
+    }
+
+    /**
+     * Forget a leave that was just removed with arrayRemove
+     */
+    public void removeLeave(String doctorId, String leaveId) {
+        fallbackCalendars.remove(doctorId);
+        calendars.computeIfPresent(doctorId, (id, calendar) -> {
+            List<Map<String, Object>> leaves = new ArrayList<>();
+            for (LeaveEntry entry : calendar.byId.values()) {
+                if (!entry.leave.resolveId().equals(leaveId)) {
+                    leaves.add(entry.stored);
+                }
+            }
+            return LeaveCalendar.of(leaves);
+        });
+    }
+
+    /**
+     * Replace a doctor's leaves after the whole document was written
+     */
+    public void replace(String doctorId, List<Map<String, Object>> storedLeaves) {
+        fallbackCalendars.remove(doctorId);
+        if (ready) {
+            calendars.put(doctorId, LeaveCalendar.of(storedLeaves));
+        }
+    }
+
+    /**
+     * Drop a deleted doctor
+     */
+    public void remove(String doctorId) {
+        calendars.remove(doctorId);
+        fallbackCalendars.remove(doctorId);
+    }
+
+    private LeaveCalendar calendarFor(String doctorId) {
+        if (doctorId == null || doctorId.isEmpty()) {
+            return LeaveCalendar.EMPTY;
+        }
+        LeaveCalendar calendar = calendars.get(doctorId);
+        if (calendar != null) {
+            return calendar;
+        }
+        if (ready) {
+            // The listener has seen every doctor, so an unknown ID has no leaves
+            return LeaveCalendar.EMPTY;
+        }
+        // Listener not caught up: load this doctor, reusing a recent load
+        FallbackEntry cached = fallbackCalendars.get(doctorId);
+        if (cached != null && System.currentTimeMillis() - cached.loadedAt < FALLBACK_TTL_MS) {
+            return cached.calendar;
+        }
+        return load(doctorId);
+    }
+
+    private LeaveCalendar load(String doctorId) {
+        long now = System.currentTimeMillis();
+        try {
+            DocumentSnapshot document = firestore.collection(COLLECTION_NAME).document(doctorId).get().get();
+            LeaveCalendar loaded = document.exists() ? LeaveCalendar.of(storedLeaves(document)) : LeaveCalendar.EMPTY;
+            if (!ready) {
+                fallbackCalendars.put(doctorId, new FallbackEntry(loaded, now));
+            }
+            return loaded;
+        } catch (ExecutionException e) {
+            log.error("Error loading leaves for doctor: {}", doctorId, e);
+            return LeaveCalendar.EMPTY;
+        } catch (InterruptedException e) {
+            log.error("Interrupted loading leaves for doctor: {}", doctorId, e);
+            Thread.currentThread().interrupt();
+            return LeaveCalendar.EMPTY;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> storedLeaves(DocumentSnapshot document) {
+        List<Map<String, Object>> leaves = new ArrayList<>();
+        Object raw = document.get("leaves");
+        if (raw instanceof List) {
+            for (Object element : (List<Object>) raw) {
+                if (element instanceof Map) {
+                    leaves.add((Map<String, Object>) element);
+                }
+            }
+        }
+        return leaves;
+    }
+
+    private static boolean isBlocking(String status) {
+        return !"REJECTED".equals(status) && !"CANCELLED".equals(status);
+    }
+
+    private static final class FallbackEntry {
+        private final LeaveCalendar calendar;
+        private final long loadedAt;
+
+        private FallbackEntry(LeaveCalendar calendar, long loadedAt) {
+            this.calendar = calendar;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private static final class LeaveEntry {
+        final FirestoreDoctor.Leave leave;
+        final Map<String, Object> stored;
+        final LocalDate start;
+        final LocalDate end;
+
+        LeaveEntry(FirestoreDoctor.Leave leave, Map<String, Object> stored) {
+            this.leave = leave;
+            this.stored = stored;
+            this.start = LocalDate.parse(leave.getStartDate());
+            this.end = LocalDate.parse(leave.getEndDate());
+        }
+    }
+
+    /**
+     * Immutable leave set of one doctor with an interval lookup over the blocking leaves
+     */
+    private static final class LeaveCalendar {
+        static final LeaveCalendar EMPTY = new LeaveCalendar(new LinkedHashMap<>(), new ArrayList<>());
+
+        final Map<String, LeaveEntry> byId;
+        final LeaveEntry[] blocking; // Sorted by start date
+        final LocalDate[] maxEnd; // maxEnd[i] = latest end among blocking[0..i]
+
+        private LeaveCalendar(Map<String, LeaveEntry> byId, List<LeaveEntry> blocking) {
+            this.byId = Collections.unmodifiableMap(byId);
+            blocking.sort(Comparator.comparing(entry -> entry.start));
+            this.blocking = blocking.toArray(new LeaveEntry[0]);
+            this.maxEnd = new LocalDate[this.blocking.length];
+            for (int i = 0; i < this.blocking.length; i++) {
+                LocalDate end = this.blocking[i].end;
+                maxEnd[i] = i > 0 && maxEnd[i - 1].isAfter(end) ? maxEnd[i - 1] : end;
+            }
+        }
+
+        static LeaveCalendar of(List<Map<String, Object>> storedLeaves) {
+            Map<String, LeaveEntry> byId = new LinkedHashMap<>();
+            List<LeaveEntry> blocking = new ArrayList<>();
+            for (Map<String, Object> stored : storedLeaves) {
+                try {
+                    LeaveEntry entry = new LeaveEntry(FirestoreDoctor.Leave.fromMap(stored), stored);
+                    byId.put(entry.leave.resolveId(), entry);
+                    if (isBlocking(entry.leave.getStatus())) {
+                        blocking.add(entry);
+                    }
+                } catch (Exception e) {
+                    log.warn("Skipping malformed doctor leave {}: {}", stored, e.getMessage());
+                }
+            }
+            return new LeaveCalendar(byId, blocking);
+        }
+
+        boolean covers(LocalDate date) {
+            // Last leave starting on or before the date
+            int low = 0;
+            int high = blocking.length - 1;
+            int last = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (blocking[mid].start.isAfter(date)) {
+                    high = mid - 1;
+                } else {
+                    last = mid;
+                    low = mid + 1;
+                }
+            }
+            // Walk back only while some earlier leave can still reach the date
+            for (int i = last; i >= 0 && !maxEnd[i].isBefore(date); i--) {
+                if (!blocking[i].end.isBefore(date)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<Map<String, Object>> storedLeaves() {
+            List<Map<String, Object>> leaves = new ArrayList<>();
+            for (LeaveEntry entry : byId.values()) {
+                leaves.add(entry.stored);
+            }
+            return leaves;
+        }
+    }
+}
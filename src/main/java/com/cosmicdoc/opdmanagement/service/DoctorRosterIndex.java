@@ -0,0 +1,467 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.model.Doctor;
+import com.cosmicdoc.opdmanagement.model.FirestoreDoctor;
+import com.cosmicdoc.opdmanagement.model.NearbyDoctor;
+import com.cosmicdoc.opdmanagement.util.ResilientSnapshotListener;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QuerySnapshot;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * In-memory roster of doctors with a specialization multimap and a spatial grid.
+ *
+ * Doctors are mirrored from the doctors collection by a snapshot listener, registered again
+ * after errors and rebuilt from its first snapshot, and by write-through calls from
+ * OpdDoctorRepositoryImpl (save, delete, availability and location updates). Entries are
+ * never changed in place; updates replace them with a modified copy. Doctor IDs are kept per specialization, both for all doctors and for
+ * active ones, so department lookups are a map get. Active doctors with coordinates are
+ * also bucketed into fixed-size latitude/longitude cells; nearest-doctor queries search
+ * rings of cells outwards from the query point and stop once no unsearched cell can hold
+ * a closer doctor.
+ */
+@Component
+@Slf4j
+public class DoctorRosterIndex {
+
+    private static final String COLLECTION_NAME = "doctors";
+    private static final double CELL_DEGREES = 0.1; // About 11 km of latitude
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180.0;
+
+    private final Firestore firestore;
+    private final Map<String, Entry> doctors = new ConcurrentHashMap<>();
+    private final Map<Long, Set<String>> cells = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> bySpecialization = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> activeBySpecialization = new ConcurrentHashMap<>();
+    private final Set<String> activeIds = ConcurrentHashMap.newKeySet();
+    private volatile boolean ready;
+    private ResilientSnapshotListener listener;
+
+    @Autowired
+    public DoctorRosterIndex(Firestore firestore) {
+        this.firestore = firestore;
+    }
+
+    @PostConstruct
+    public void startListening() {
+        listener = new ResilientSnapshotListener("doctor-roster", firestore.collection(COLLECTION_NAME),
+                this::apply, () -> ready = false);
+        listener.start();
+    }
+
+    @PreDestroy
+    public void stopListening() {
+        if (listener != null) {
+            listener.stop();
+        }
+    }
+
+    private void apply(QuerySnapshot snapshot, boolean initial) {
+        if (initial) {
+            // Full result set: rebuild, dropping doctors deleted while the listener was down
+            Set<String> present = new HashSet<>();
+            for (DocumentSnapshot document : snapshot.getDocuments()) {
+                FirestoreDoctor doctor = toFirestoreDoctor(document);
+                if (doctor != null) {
+                    present.add(doctor.getId());
+                    put(doctor);
+                }
+            }
+            for (String id : new ArrayList<>(doctors.keySet())) {
+                if (!present.contains(id)) {
+                    remove(id);
+                }
+            }
+        } else {
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                DocumentSnapshot document = change.getDocument();
+                if (change.getType() == DocumentChange.Type.REMOVED) {
+                    remove(document.getId());
+                } else {
+                    FirestoreDoctor doctor = toFirestoreDoctor(document);
+                    if (doctor != null) {
+                        put(doctor);
+                    }
+                }
+            }
+        }
+        ready = true;
+    }
+
+    /**
+     * Whether the roster can answer queries, loading it first if the listener hasn't
+     * delivered its first snapshot yet. Callers should query Firestore when this is false.
+     */
+    public boolean isReady() {
+        ensureLoaded();
+        return ready;
+    }
+
+    /**
+     * All doctors with a specialization, ordered by name
+     *
+     * @param specialization Specialization, case-insensitive
+     * @param activeOnly Only doctors marked active
+     */
+    public List<Doctor> findBySpecialization(String specialization, boolean activeOnly) {
+        Map<String, Set<String>> multimap = activeOnly ? activeBySpecialization : bySpecialization;
+        return toDoctors(multimap.getOrDefault(specializationKey(specialization), Set.of()));
+    }
+
+    /**
+     * All active doctors, ordered by name
+     */
+    public List<Doctor> findActive() {
+        return toDoctors(activeIds);
+    }
+
+    /**
+     * A doctor by ID, from memory
+     */
+    public Optional<Doctor> findById(String doctorId) {
+        ensureLoaded();
+        Entry entry = doctorId != null ? doctors.get(doctorId) : null;
+        return entry != null ? Optional.of(entry.doctor.toDoctor()) : Optional.empty();
+    }
+
+    private List<Doctor> toDoctors(Set<String> ids) {
+        List<Doctor> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Entry entry = doctors.get(id);
+            if (entry != null) {
+                result.add(entry.doctor.toDoctor());
+            }
+        }
+        result.sort(Comparator.comparing(Doctor::getName, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER)));
+        return result;
+    }
+
+    /**
+     * Load the roster once if the listener hasn't delivered its first snapshot yet
+     */
+    private void ensureLoaded() {
+        if (ready) {
+            return;
+        }
+        synchronized (this) {
+            if (ready) {
+                return;
+            }
+            try {
+                for (DocumentSnapshot document : firestore.collection(COLLECTION_NAME).get().get().getDocuments()) {
+                    FirestoreDoctor doctor = toFirestoreDoctor(document);
+                    if (doctor != null) {
+                        put(doctor);
+                    }
+                }
+                ready = true;
+            } catch (ExecutionException e) {
+                log.error("Error loading doctor roster", e);
+            } catch (InterruptedException e) {
+                log.error("Interrupted loading doctor roster", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Record a doctor document that was just written
+     */
+    public synchronized void put(FirestoreDoctor doctor) {
+        if (doctor.getId() == null) {
+            return;
+        }
+        unlink(doctors.get(doctor.getId()));
+        Entry entry = new Entry(doctor);
+        doctors.put(doctor.getId(), entry);
+        link(entry);
+    }
+
+    /**
+     * Drop a deleted doctor
+     */
+    public synchronized void remove(String doctorId) {
+        unlink(doctors.remove(doctorId));
+    }
+
+    /**
+     * Apply an availability change without waiting for the listener
+     */
+    public synchronized void updateAvailability(String doctorId, boolean isActive) {
+        Entry entry = doctors.get(doctorId);
+        if (entry != null) {
+            // Entries are shared with concurrent readers, so change a copy
+            FirestoreDoctor doctor = copyOf(entry.doctor);
+            doctor.setActive(isActive);
+            put(doctor);
+        }
+    }
+
+    /**
+     * Apply a location change without waiting for the listener
+     */
+    public synchronized void updateLocation(String doctorId, double latitude, double longitude) {
+        Entry entry = doctors.get(doctorId);
+        if (entry != null) {
+            FirestoreDoctor doctor = copyOf(entry.doctor);
+            doctor.setLatitude(latitude);
+            doctor.setLongitude(longitude);
+            put(doctor);
+        }
+    }
+
+    /**
+     * Find the nearest active doctors to a point.
+     *
+     * @param latitude Query latitude
+     * @param longitude Query longitude
+     * @param k Maximum number of doctors to return
+     * @param maxDistanceKm Search radius, or 0 for unlimited
+     * @param specialization Only doctors with this specialization (case-insensitive), or null for any
+     * @param filter Extra condition a doctor must meet, e.g. not on leave
+     * @return Doctors with their distance, nearest first
+     */
+    public List<NearbyDoctor> findNearest(double latitude, double longitude, int k, double maxDistanceKm,
+                                          String specialization, Predicate<Doctor> filter) {
+        List<NearbyDoctor> results = new ArrayList<>();
+        if (k <= 0) {
+            return results;
+        }
+        ensureLoaded();
+        // Max-heap on distance holding the best k so far
+        PriorityQueue<Candidate> best = new PriorityQueue<>(Comparator.comparingDouble((Candidate c) -> c.distanceKm).reversed());
+        int located = locatedCount();
+        int latCell = cellOf(latitude);
+        int lonCell = cellOf(longitude);
+        double radius = maxDistanceKm > 0 ? maxDistanceKm : Double.MAX_VALUE;
+        String specializationKey = specialization != null ? specializationKey(specialization) : null;
+
+        int visited = 0;
+        for (int ring = 0; visited < located; ring++) {
+            double ringMinKm = ringMinDistanceKm(latitude, ring);
+            if (ringMinKm > radius || (best.size() == k && ringMinKm > best.peek().distanceKm)) {
+                break;
+            }
+            if (8L * ring > located) {
+                // Sparse roster: the remaining rings are mostly empty, so finish with a scan
+                best.clear();
+                for (Entry entry : doctors.values()) {
+                    offer(best, entry, latitude, longitude, k, radius, specializationKey, filter);
+                }
+                break;
+            }
+            // Only the border of the ring; interior cells were searched by earlier rings
+            for (int dLat = -ring; dLat <= ring; dLat++) {
+                int lonStep = Math.abs(dLat) == ring ? 1 : Math.max(1, 2 * ring);
+                for (int dLon = -ring; dLon <= ring; dLon += lonStep) {
+                    visited += searchCell(best, cellKey(latCell + dLat, lonCell + dLon), latitude, longitude, k, radius,
+                            specializationKey, filter);
+                }
+            }
+        }
+
+        List<Candidate> ordered = new ArrayList<>(best);
+        ordered.sort(Comparator.comparingDouble(c -> c.distanceKm));
+        for (Candidate candidate : ordered) {
+            results.add(new NearbyDoctor(candidate.doctor, Math.round(candidate.distanceKm * 100) / 100.0));
+        }
+        return results;
+    }
+
+    private int searchCell(PriorityQueue<Candidate> best, long key, double latitude, double longitude,
+                           int k, double radius, String specializationKey, Predicate<Doctor> filter) {
+        Set<String> ids = cells.get(key);
+        if (ids == null) {
+            return 0;
+        }
+        int seen = 0;
+        for (String id : ids) {
+            seen++;
+            Entry entry = doctors.get(id);
+            if (entry != null) {
+                offer(best, entry, latitude, longitude, k, radius, specializationKey, filter);
+            }
+        }
+        return seen;
+    }
+
+    private static void offer(PriorityQueue<Candidate> best, Entry entry, double latitude, double longitude,
+                              int k, double radius, String specializationKey, Predicate<Doctor> filter) {
+        if (!entry.located || !entry.doctor.isActive()) {
+            return;
+        }
+        // Same normalized key as the specialization multimaps
+        if (specializationKey != null && !specializationKey.equals(entry.specializationKey)) {
+            return;
+        }
+        double distance = distanceKm(latitude, longitude, entry.doctor.getLatitude(), entry.doctor.getLongitude());
+        if (distance > radius || (best.size() == k && distance >= best.peek().distanceKm)) {
+            return;
+        }
+        Doctor doctor = entry.doctor.toDoctor();
+        if (filter != null && !filter.test(doctor)) {
+            return;
+        }
+        best.add(new Candidate(doctor, distance));
+        if (best.size() > k) {
+            best.poll();
+        }
+    }
+
+    /**
+     * Lower bound on the distance from the query point to any cell of a ring: ring r lies
+     * at least r - 1 whole cells away, and cells are narrowest at the poleward edge of the ring
+     */
+    private static double ringMinDistanceKm(double latitude, int ring) {
+        if (ring <= 1) {
+            return 0;
+        }
+        double poleward = Math.min(89.0, Math.abs(latitude) + ring * CELL_DEGREES);
+        double cellKm = CELL_DEGREES * KM_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(poleward)));
+        return (ring - 1) * cellKm;
+    }
+
+    private int locatedCount() {
+        int count = 0;
+        for (Set<String> ids : cells.values()) {
+            count += ids.size();
+        }
+        return count;
+    }
+
+    private void link(Entry entry) {
+        String id = entry.doctor.getId();
+        bySpecialization.computeIfAbsent(entry.specializationKey, key -> ConcurrentHashMap.newKeySet()).add(id);
+        if (!entry.doctor.isActive()) {
+            return;
+        }
+        activeIds.add(id);
+        activeBySpecialization.computeIfAbsent(entry.specializationKey, key -> ConcurrentHashMap.newKeySet()).add(id);
+        if (entry.located) {
+            cells.computeIfAbsent(entry.cellKey, key -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    private void unlink(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        String id = entry.doctor.getId();
+        activeIds.remove(id);
+        removeFrom(bySpecialization, entry.specializationKey, id);
+        removeFrom(activeBySpecialization, entry.specializationKey, id);
+        if (entry.located) {
+            removeFrom(cells, entry.cellKey, id);
+        }
+    }
+
+    private static <K> void removeFrom(Map<K, Set<String>> multimap, K key, String id) {
+        Set<String> ids = multimap.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                multimap.remove(key);
+            }
+        }
+    }
+
+    private static String specializationKey(String specialization) {
+        return specialization == null ? "" : specialization.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static FirestoreDoctor copyOf(FirestoreDoctor doctor) {
+        FirestoreDoctor copy = new FirestoreDoctor();
+        copy.setId(doctor.getId());
+        copy.setName(doctor.getName());
+        copy.setEmail(doctor.getEmail());
+        copy.setPassword(doctor.getPassword());
+        copy.setSpecialization(doctor.getSpecialization());
+        copy.setQualification(doctor.getQualification());
+        copy.setExperience(doctor.getExperience());
+        copy.setPhoneNumber(doctor.getPhoneNumber());
+        copy.setAddress(doctor.getAddress());
+        copy.setAvailableDays(doctor.getAvailableDays());
+        copy.setAvailableTimeSlots(doctor.getAvailableTimeSlots());
+        copy.setActive(doctor.isActive());
+        copy.setSchedule(doctor.getSchedule());
+        copy.setLeaves(doctor.getLeaves());
+        copy.setLatitude(doctor.getLatitude());
+        copy.setLongitude(doctor.getLongitude());
+        return copy;
+    }
+
+    private static FirestoreDoctor toFirestoreDoctor(DocumentSnapshot document) {
+        try {
+            FirestoreDoctor doctor = document.toObject(FirestoreDoctor.class);
+            if (doctor != null) {
+                doctor.setId(document.getId());
+                // Stored as "isActive", which the bean mapper doesn't bind to the boolean getter
+                doctor.setActive(Boolean.TRUE.equals(document.getBoolean("isActive")));
+            }
+            return doctor;
+        } catch (Exception e) {
+            log.warn("Could not read doctor {}: {}", document.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static int cellOf(double degrees) {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+
+    private static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    private static final class Entry {
+        final FirestoreDoctor doctor;
+        final boolean located;
+        final long cellKey;
+        final String specializationKey;
+
+        Entry(FirestoreDoctor doctor) {
+            this.doctor = doctor;
+            this.specializationKey = specializationKey(doctor.getSpecialization());
+            this.located = doctor.getLatitude() != null && doctor.getLongitude() != null;
+            this.cellKey = located ? cellKey(cellOf(doctor.getLatitude()), cellOf(doctor.getLongitude())) : 0;
+        }
+    }
+
+    private static final class Candidate {
+        final Doctor doctor;
+        final double distanceKm;
+
+        Candidate(Doctor doctor, double distanceKm) {
+            this.doctor = doctor;
+            this.distanceKm = distanceKm;
+        }
+    }
+}
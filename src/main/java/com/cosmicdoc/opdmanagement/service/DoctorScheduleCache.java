@@ -0,0 +1,191 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.model.FirestoreDoctor;
+import com.cosmicdoc.opdmanagement.util.ResilientSnapshotListener;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QuerySnapshot;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Compiled weekly schedule per doctor.
+ *
+ * Schedules are compiled from schedule.days / schedule.timeSlots, falling back to
+ * availableDays / availableTimeSlots, whenever a doctor document changes (snapshot
+ * listener) or is saved here (write-through from OpdDoctorRepositoryImpl). Doctors
+ * without any schedule get the clinic default of every day, 09:00-17:00.
+ *
+ * The listener is registered again after errors. While it is down, schedules are loaded
+ * per doctor and only kept for a short while, so changes made elsewhere in the meantime
+ * still show up; the first snapshot after it is back rebuilds the cache.
+ */
+@Component
+@Slf4j
+public class DoctorScheduleCache {
+
+    private static final String COLLECTION_NAME = "doctors";
+    private static final long FALLBACK_TTL_MS = 60 * 1000;
+
+    private final Firestore firestore;
+    private final int slotMinutes;
+    private final CompiledSchedule defaultSchedule;
+    private final Map<String, CompiledSchedule> schedules = new ConcurrentHashMap<>();
+    // Per-doctor loads made while the listener is down, with their load time
+    private final Map<String, FallbackEntry> fallbackSchedules = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+    private ResilientSnapshotListener listener;
+
+    @Autowired
+    public DoctorScheduleCache(Firestore firestore,
+                               @Value("${app.appointments.slot-minutes:30}") int slotMinutes) {
+        this.firestore = firestore;
+        this.slotMinutes = Math.max(5, slotMinutes);
+        this.defaultSchedule = CompiledSchedule.defaultSchedule(this.slotMinutes);
+    }
+
+    @PostConstruct
+    public void startListening() {
+        listener = new ResilientSnapshotListener("doctor-schedules", firestore.collection(COLLECTION_NAME),
+                this::apply, () -> {
+                    log.warn("Doctor schedule listener failed, falling back to per-doctor loads");
+                    ready = false;
+                    schedules.clear();
+                });
+        listener.start();
+    }
+
+    @PreDestroy
+    public void stopListening() {
+        if (listener != null) {
+            listener.stop();
+        }
+    }
+
+    private void apply(QuerySnapshot snapshot, boolean initial) {
+        if (initial) {
+            // Full result set: rebuild, dropping doctors deleted while the listener was down
+            Set<String> present = new HashSet<>();
+            for (DocumentSnapshot document : snapshot.getDocuments()) {
+                present.add(document.getId());
+                schedules.put(document.getId(), compile(document));
+            }
+            schedules.keySet().retainAll(present);
+        } else {
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                DocumentSnapshot document = change.getDocument();
+                if (change.getType() == DocumentChange.Type.REMOVED) {
+                    schedules.remove(document.getId());
+                } else {
+                    schedules.put(document.getId(), compile(document));
+                }
+            }
+        }
+        ready = true;
+        fallbackSchedules.clear();
+    }
+
+    /**
+     * Get the compiled schedule of a doctor
+     *
+     * @param doctorId Doctor ID
+     * @return The doctor's schedule, or the clinic default
+     */
+    public CompiledSchedule getSchedule(String doctorId) {
+        if (doctorId == null || doctorId.isEmpty()) {
+            return defaultSchedule;
+        }
+        CompiledSchedule schedule = schedules.get(doctorId);
+        if (schedule != null) {
+            return schedule;
+        }
+        if (ready) {
+            return defaultSchedule;
+        }
+        // Listener not caught up: load this doctor, reusing a recent load
+        long now = System.currentTimeMillis();
+        FallbackEntry cached = fallbackSchedules.get(doctorId);
+        if (cached != null && now - cached.loadedAt < FALLBACK_TTL_MS) {
+            return cached.schedule;
+        }
+        try {
+            DocumentSnapshot document = firestore.collection(COLLECTION_NAME).document(doctorId).get().get();
+            CompiledSchedule loaded = document.exists() ? compile(document) : defaultSchedule;
+            if (!ready) {
+                fallbackSchedules.put(doctorId, new FallbackEntry(loaded, now));
+            }
+            return loaded;
+        } catch (ExecutionException e) {
+            log.error("Error loading schedule for doctor: {}", doctorId, e);
+            return defaultSchedule;
+        } catch (InterruptedException e) {
+            log.error("Interrupted loading schedule for doctor: {}", doctorId, e);
+            Thread.currentThread().interrupt();
+            return defaultSchedule;
+        }
+    }
+
+    /**
+     * Recompile after a doctor document was written
+     */
+    public void refresh(FirestoreDoctor doctor) {
+        schedules.put(doctor.getId(), compile(doctor));
+        fallbackSchedules.remove(doctor.getId());
+    }
+
+    /**
+     * Drop a deleted doctor
+     */
+    public void remove(String doctorId) {
+        schedules.remove(doctorId);
+        fallbackSchedules.remove(doctorId);
+    }
+
+    private CompiledSchedule compile(DocumentSnapshot document) {
+        try {
+            FirestoreDoctor doctor = document.toObject(FirestoreDoctor.class);
+            return doctor != null ? compile(doctor) : defaultSchedule;
+        } catch (Exception e) {
+            log.warn("Could not read schedule of doctor {}: {}", document.getId(), e.getMessage());
+            return defaultSchedule;
+        }
+    }
+
+    private CompiledSchedule compile(FirestoreDoctor doctor) {
+        FirestoreDoctor.Schedule schedule = doctor.getSchedule();
+        List<String> days = schedule != null && !isEmpty(schedule.getDays())
+                ? schedule.getDays() : doctor.getAvailableDays();
+        List<String> timeSlots = schedule != null && !isEmpty(schedule.getTimeSlots())
+                ? schedule.getTimeSlots() : doctor.getAvailableTimeSlots();
+        if (isEmpty(days) && isEmpty(timeSlots)) {
+            return defaultSchedule;
+        }
+        return CompiledSchedule.compile(days, timeSlots, slotMinutes);
+    }
+
+    private static boolean isEmpty(List<String> values) {
+        return values == null || values.isEmpty();
+    }
+
+    private static final class FallbackEntry {
+        private final CompiledSchedule schedule;
+        private final long loadedAt;
+
+        private FallbackEntry(CompiledSchedule schedule, long loadedAt) {
+            this.schedule = schedule;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.cosmicdoc.opdmanagement.service;
 
 import com.cosmicdoc.opdmanagement.model.Doctor;
+import com.cosmicdoc.opdmanagement.model.NearbyDoctor;
 import com.cosmicdoc.opdmanagement.dto.DoctorLoginRequest;
 import com.cosmicdoc.opdmanagement.exception.ResourceNotFoundException;
 import com.cosmicdoc.opdmanagement.repository.DoctorRepository;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -11,12 +13,16 @@ import org.springframework.stereotype.Service;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class DoctorService {
     private final DoctorRepository doctorRepository;
+    private final DoctorLeaveIndex doctorLeaveIndex;
+    private final DoctorRosterIndex doctorRosterIndex;
+    private final ClinicClock clinicClock;
 
     public List<Doctor> getAllDoctors() {
         return doctorRepository.findAll();
@@ -57,6 +63,8 @@ public class DoctorService {
         existingDoctor.setLicenseNumber(updatedDoctor.getLicenseNumber());
         existingDoctor.setLocation(updatedDoctor.getLocation());
         existingDoctor.setAvailable(updatedDoctor.isAvailable());
+        existingDoctor.setAvailableDays(updatedDoctor.getAvailableDays());
+        existingDoctor.setAvailableTimeSlots(updatedDoctor.getAvailableTimeSlots());
         
         return doctorRepository.save(existingDoctor);
     }
@@ -71,11 +79,44 @@ public class DoctorService {
     }
     
     public List<Doctor> getAvailableDoctors() {
-        return doctorRepository.findAvailable();
+        return getAvailableDoctors(clinicClock.today());
+    }
+    
+    /**
+     * Active doctors who are not on leave on the given date
+     */
+    public List<Doctor> getAvailableDoctors(LocalDate date) {
+        return excludeDoctorsOnLeave(doctorRepository.findAvailable(), date);
     }
     
     public List<Doctor> getAvailableDoctorsBySpecialization(String specialization) {
-        return doctorRepository.findAvailableBySpecialization(specialization);
+        return getAvailableDoctorsBySpecialization(specialization, clinicClock.today());
+    }
+    
+    public List<Doctor> getAvailableDoctorsBySpecialization(String specialization, LocalDate date) {
+        return excludeDoctorsOnLeave(doctorRepository.findAvailableBySpecialization(specialization), date);
+    }
+    
+    /**
+     * The k nearest active doctors who are not on leave today
+     *
+     * @param latitude Patient latitude
+     * @param longitude Patient longitude
+     * @param k Maximum number of doctors
+     * @param specialization Optional specialization filter, case-insensitive
+     * @param maxDistanceKm Search radius, or 0 for unlimited
+     */
+    public List<NearbyDoctor> findNearestAvailableDoctors(double latitude, double longitude, int k,
+                                                          String specialization, double maxDistanceKm) {
+        LocalDate today = clinicClock.today();
+        return doctorRosterIndex.findNearest(latitude, longitude, k, maxDistanceKm, specialization,
+                doctor -> !doctorLeaveIndex.isOnLeave(doctor.getId(), today));
+    }
+    
+    private List<Doctor> excludeDoctorsOnLeave(List<Doctor> doctors, LocalDate date) {
+        return doctors.stream()
+                .filter(doctor -> !doctorLeaveIndex.isOnLeave(doctor.getId(), date))
+                .collect(Collectors.toList());
     }
     
     public Doctor updateAvailability(String id, boolean isAvailable) {
@@ -91,7 +132,7 @@ public class DoctorService {
         throw new RuntimeException("Failed to update doctor availability");
     }
     
-    public boolean addLeave(String doctorId, LocalDate startDate, LocalDate endDate, String reason) {
+    public Optional<Doctor.DoctorLeave> addLeave(String doctorId, LocalDate startDate, LocalDate endDate, String reason) {
         getDoctorById(doctorId); // Verify doctor exists
         return doctorRepository.addLeave(doctorId, startDate, endDate, reason);
     }
@@ -2,6 +2,7 @@ package com.cosmicdoc.opdmanagement.service;
 
 import com.cosmicdoc.opdmanagement.model.Invoice;
 import com.cosmicdoc.opdmanagement.repository.InvoiceRepository;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -17,10 +18,15 @@ import java.util.Optional;
 public class InvoiceService {
 
     private final InvoiceRepository invoiceRepository;
+    private final PatientLedgerService patientLedgerService;
+    private final ClinicClock clinicClock;
 
     @Autowired
-    public InvoiceService(InvoiceRepository invoiceRepository) {
+    public InvoiceService(InvoiceRepository invoiceRepository, PatientLedgerService patientLedgerService,
+                          ClinicClock clinicClock) {
         this.invoiceRepository = invoiceRepository;
+        this.patientLedgerService = patientLedgerService;
+        this.clinicClock = clinicClock;
     }
 
     /**
@@ -34,19 +40,21 @@ public class InvoiceService {
         
         // Ensure timestamp fields are set if not already present
         if (invoice.getTimestamp() == null) {
-            invoice.setTimestamp(java.time.LocalDateTime.now());
+            invoice.setTimestamp(clinicClock.now());
         }
         if (invoice.getCreatedTimestamp() == null) {
-            invoice.setCreatedTimestamp(java.time.LocalDateTime.now());
+            invoice.setCreatedTimestamp(clinicClock.now());
         }
         if (invoice.getDate() == null) {
-            invoice.setDate(java.time.LocalDate.now());
+            invoice.setDate(clinicClock.today());
         }
         if (invoice.getCreatedDate() == null) {
-            invoice.setCreatedDate(java.time.LocalDate.now());
+            invoice.setCreatedDate(clinicClock.today());
         }
         
-        return invoiceRepository.save(invoice);
+        Invoice savedInvoice = invoiceRepository.save(invoice);
+        patientLedgerService.recordInvoice(savedInvoice);
+        return savedInvoice;
     }
 
     /**
@@ -110,7 +118,9 @@ public class InvoiceService {
             updatedInvoice.setInvoiceId(existingInvoice.getInvoiceId());
         }
         
-        return invoiceRepository.save(updatedInvoice);
+        Invoice savedInvoice = invoiceRepository.save(updatedInvoice);
+        patientLedgerService.recordInvoice(savedInvoice);
+        return savedInvoice;
     }
 
     /**
@@ -121,6 +131,7 @@ public class InvoiceService {
     public void deleteInvoice(String id) {
         log.info("Deleting invoice with ID: {}", id);
         invoiceRepository.delete(id);
+        patientLedgerService.removeInvoice(id);
     }
 
     /**
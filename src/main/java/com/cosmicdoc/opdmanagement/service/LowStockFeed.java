@@ -0,0 +1,139 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.model.PharmacyItem;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-sent event feed of low-stock changes for the pharmacy dashboard.
+ *
+ * PharmacyItemIndex creates an event whenever an item enters or leaves the low-stock
+ * watchlist, or its stock changes while on it, and publishes it once its lock is released.
+ * Events are sent from a single feed thread so a slow subscriber never holds up stock
+ * writes; they carry a sequence number taken when the change was made, so the dashboard
+ * can ignore one that arrives after a newer event for the same item. Subscribers whose
+ * send fails are completed and dropped.
+ */
+@Component
+@Slf4j
+public class LowStockFeed {
+
+    private static final long EMITTER_TIMEOUT_MS = 30 * 60 * 1000;
+    private static final int MAX_PENDING_EVENTS = 1000;
+
+    private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ThreadPoolExecutor sender = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(MAX_PENDING_EVENTS),
+            runnable -> {
+                Thread thread = new Thread(runnable, "low-stock-feed");
+                thread.setDaemon(true);
+                return thread;
+            },
+            (runnable, executor) -> log.warn("Low-stock feed is backed up, dropping an event"));
+
+    /**
+     * Register a new dashboard subscriber
+     */
+    public SseEmitter subscribe() {
+        SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MS);
+        emitters.add(emitter);
+        emitter.onCompletion(() -> emitters.remove(emitter));
+        emitter.onTimeout(() -> emitters.remove(emitter));
+        emitter.onError(error -> emitters.remove(emitter));
+        return emitter;
+    }
+
+    /**
+     * Capture a low-stock change. Cheap enough to call while holding a lock; nothing is sent
+     * until the event is published.
+     *
+     * @param item Item whose low-stock state changed
+     * @param reorderLevel Reorder level applied to the item
+     * @param low Whether the item is now at or below its reorder level
+     * @return The event, or null when nobody is subscribed
+     */
+    public Event event(PharmacyItem item, int reorderLevel, boolean low) {
+        if (emitters.isEmpty()) {
+            return null;
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("sequence", sequence.incrementAndGet());
+        data.put("id", item.getId());
+        data.put("name", item.getName());
+        data.put("stockQuantity", item.getStockQuantity());
+        data.put("reorderLevel", reorderLevel);
+        data.put("low", low);
+        return new Event(low ? "low-stock" : "restocked", data);
+    }
+
+    /**
+     * Queue an event for every subscriber; returns without waiting for the sends
+     *
+     * @param event Event from event(), null is ignored
+     */
+    public void publish(Event event) {
+        if (event == null || sender.isShutdown()) {
+            return;
+        }
+        sender.execute(() -> send(event));
+    }
+
+    private void send(Event event) {
+        for (SseEmitter emitter : emitters) {
+            try {
+                emitter.send(SseEmitter.event().name(event.getName()).data(event.getData()));
+            } catch (Exception e) {
+                log.debug("Dropping low-stock subscriber: {}", e.getMessage());
+                emitters.remove(emitter);
+                try {
+                    emitter.completeWithError(e);
+                } catch (RuntimeException ignored) {
+                    // Already completed
+                }
+            }
+        }
+    }
+
+    public int subscriberCount() {
+        return emitters.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sender.shutdownNow();
+    }
+
+    /**
+     * One SSE event, fixed when the change was made
+     */
+    public static final class Event {
+        private final String name;
+        private final Map<String, Object> data;
+
+        Event(String name, Map<String, Object> data) {
+            this.name = name;
+            this.data = Collections.unmodifiableMap(data);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Map<String, Object> getData() {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.repository.MedicalHistoryRepository;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.BulkWriterOptions;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteResult;
+import com.google.common.util.concurrent.MoreExecutors;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cascade delete of everything stored for a patient.
+ *
+ * Each collection is queried on the field that holds the patient there (appointments use
+ * userId, older ones patientId), paged with a keys-only query, and its documents are handed
+ * to one BulkWriter per job, which batches and parallelises the deletes while ramping up to
+ * a configured ops-per-second ceiling. Jobs run one at a time on a background thread;
+ * progress is kept per collection and field and can be polled by job ID. A job only reports
+ * COMPLETED after every query comes back empty on a final check. Deletes are idempotent, so
+ * a failed or interrupted job is simply started again.
+ */
+@Component
+@Slf4j
+public class PatientErasureJob {
+
+    private static final int PAGE_SIZE = 500;
+    private static final long FINISHED_JOB_RETENTION_MS = 24 * 60 * 60 * 1000L;
+    // Top-level collections and the fields that hold the patient ID in them
+    private static final String[][] PATIENT_FIELDS = {
+            {"visit_histories", "patientId"},
+            {"appointments", "userId"},
+            {"appointments", "patientId"},
+            {"invoices", "patientId"},
+            {"receipts", "patientId"},
+            {"advances", "patientId"},
+            {"credit_notes", "patientId"},
+            {"refunds", "patientId"},
+            {"cash_memos", "patientId"},
+            {"patient_ledger_entries", "patientId"},
+            {"billing_history_outbox", "patientId"},
+            {"billing_history_outbox", "patientIds"},
+            {"billing_history_outbox_failed", "patientId"},
+            {"billing_history_outbox_failed", "patientIds"}
+    };
+    // Fields above that hold a list of patient IDs rather than one
+    private static final String PATIENT_LIST_FIELD = "patientIds";
+
+    private final Firestore firestore;
+    private final MedicalHistoryRepository medicalHistoryRepository;
+    private final int maxOpsPerSecond;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+
+    @Autowired
+    public PatientErasureJob(Firestore firestore, MedicalHistoryRepository medicalHistoryRepository,
+                             @Value("${app.patient-erasure.max-ops-per-second:500}") int maxOpsPerSecond) {
+        this.firestore = firestore;
+        this.medicalHistoryRepository = medicalHistoryRepository;
+        this.maxOpsPerSecond = Math.max(1, maxOpsPerSecond);
+    }
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "patient-erasure");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queue the deletion of a patient's records
+     *
+     * @param patientId Patient ID
+     * @return ID to poll with getStatus
+     */
+    public String submit(String patientId) {
+        pruneFinishedJobs();
+        Job job = new Job(UUID.randomUUID().toString(), patientId);
+        jobs.put(job.id, job);
+        executor.submit(() -> run(job));
+        log.info("Queued erasure job {} for patient {}", job.id, patientId);
+        return job.id;
+    }
+
+    /**
+     * Get the progress of an erasure job
+     *
+     * @param jobId Job ID returned by submit
+     * @return State, per-collection delete counts and failures; null for an unknown job
+     */
+    public Map<String, Object> getStatus(String jobId) {
+        Job job = jobs.get(jobId);
+        return job != null ? job.toStatus() : null;
+    }
+
+    private void run(Job job) {
+        job.state = "RUNNING";
+        job.startedAt = System.currentTimeMillis();
+        BulkWriter bulkWriter = firestore.bulkWriter(BulkWriterOptions.builder()
+                .setInitialOpsPerSecond(Math.min(maxOpsPerSecond, PAGE_SIZE))
+                .setMaxOpsPerSecond(maxOpsPerSecond)
+                .build());
+        try {
+            for (String[] collectionField : PATIENT_FIELDS) {
+                deleteAll(job, bulkWriter, label(collectionField), patientQuery(collectionField, job.patientId));
+            }
+            deleteAll(job, bulkWriter, "billing_history",
+                    firestore.collection("patients").document(job.patientId).collection("billing_history"));
+            delete(job, bulkWriter, "patient_ledgers", firestore.collection("patient_ledgers").document(job.patientId));
+            bulkWriter.flush().get();
+
+            // Through the repository so its patient cache is evicted as well
+            job.current = "medical_histories";
+            medicalHistoryRepository.deleteByPatientId(job.patientId);
+
+            job.current = "verify";
+            List<String> remaining = findRemaining(job.patientId);
+            job.remaining = remaining;
+            job.state = job.failed.get() > 0 || !remaining.isEmpty() ? "COMPLETED_WITH_ERRORS" : "COMPLETED";
+            log.info("Erasure job {} for patient {} deleted {} documents, {} failed, still present in {}",
+                    job.id, job.patientId, job.deleted.get(), job.failed.get(), remaining);
+        } catch (InterruptedException e) {
+            job.state = "FAILED";
+            job.error = "Interrupted";
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Erasure job {} for patient {} failed", job.id, job.patientId, e);
+            job.state = "FAILED";
+            job.error = e.getMessage();
+        } finally {
+            bulkWriter.close();
+            job.current = null;
+            job.finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    private Query patientQuery(String[] collectionField, String patientId) {
+        if (PATIENT_LIST_FIELD.equals(collectionField[1])) {
+            return firestore.collection(collectionField[0]).whereArrayContains(collectionField[1], patientId);
+        }
+        return firestore.collection(collectionField[0]).whereEqualTo(collectionField[1], patientId);
+    }
+
+    private static String label(String[] collectionField) {
+        return collectionField[0] + "." + collectionField[1];
+    }
+
+    /**
+     * Collections and fields where a document of the patient can still be found
+     */
+    private List<String> findRemaining(String patientId) throws InterruptedException, ExecutionException {
+        List<String> remaining = new ArrayList<>();
+        for (String[] collectionField : PATIENT_FIELDS) {
+            Query check = patientQuery(collectionField, patientId).select(FieldPath.documentId()).limit(1);
+            if (!check.get().get().isEmpty()) {
+                remaining.add(label(collectionField));
+            }
+        }
+        if (firestore.collection("patients").document(patientId).collection("billing_history")
+                .select(FieldPath.documentId()).limit(1).get().get().size() > 0) {
+            remaining.add("billing_history");
+        }
+        if (firestore.collection("patient_ledgers").document(patientId).get().get().exists()) {
+            remaining.add("patient_ledgers");
+        }
+        if (!firestore.collection("medical_histories").whereEqualTo("patientId", patientId)
+                .select(FieldPath.documentId()).limit(1).get().get().isEmpty()) {
+            remaining.add("medical_histories");
+        }
+        return remaining;
+    }
+
+    /**
+     * Page through a query by document ID, fetching keys only, and delete every match
+     */
+    private void deleteAll(Job job, BulkWriter bulkWriter, String label, Query query)
+            throws InterruptedException, ExecutionException {
+        job.current = label;
+        // Listed even when nothing matches, so the status shows every query that ran
+        job.deletedByCollection.computeIfAbsent(label, key -> new AtomicLong());
+        Query keysOnly = query.select(FieldPath.documentId()).orderBy(FieldPath.documentId()).limit(PAGE_SIZE);
+        QueryDocumentSnapshot last = null;
+        while (true) {
+            Query page = last != null ? keysOnly.startAfter(last) : keysOnly;
+            List<QueryDocumentSnapshot> documents = page.get().get().getDocuments();
+            for (QueryDocumentSnapshot document : documents) {
+                delete(job, bulkWriter, label, document.getReference());
+            }
+            if (documents.size() < PAGE_SIZE) {
+                break;
+            }
+            last = documents.get(documents.size() - 1);
+        }
+        // Flush per collection so the reported progress matches what is really gone
+        bulkWriter.flush().get();
+    }
+
+    private void delete(Job job, BulkWriter bulkWriter, String label, DocumentReference reference) {
+        AtomicLong counter = job.deletedByCollection.computeIfAbsent(label, key -> new AtomicLong());
+        ApiFuture<WriteResult> future = bulkWriter.delete(reference);
+        ApiFutures.addCallback(future, new ApiFutureCallback<WriteResult>() {
+            @Override
+            public void onSuccess(WriteResult result) {
+                counter.incrementAndGet();
+                job.deleted.incrementAndGet();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                log.warn("Erasure job {} could not delete {}: {}", job.id, reference.getPath(), error.getMessage());
+                job.failed.incrementAndGet();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void pruneFinishedJobs() {
+        long cutoff = System.currentTimeMillis() - FINISHED_JOB_RETENTION_MS;
+        jobs.values().removeIf(job -> job.finishedAt > 0 && job.finishedAt < cutoff);
+    }
+
+    private static final class Job {
+        final String id;
+        final String patientId;
+        final long submittedAt = System.currentTimeMillis();
+        final Map<String, AtomicLong> deletedByCollection = new ConcurrentHashMap<>();
+        final AtomicLong deleted = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        volatile String state = "QUEUED";
+        volatile String current;
+        volatile String error;
+        volatile List<String> remaining;
+        volatile long startedAt;
+        volatile long finishedAt;
+
+        Job(String id, String patientId) {
+            this.id = id;
+            this.patientId = patientId;
+        }
+
+        Map<String, Object> toStatus() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("jobId", id);
+            status.put("patientId", patientId);
+            status.put("state", state);
+            status.put("currentCollection", current);
+            status.put("deleted", deleted.get());
+            status.put("failed", failed.get());
+            Map<String, Long> byCollection = new LinkedHashMap<>();
+            deletedByCollection.forEach((collection, count) -> byCollection.put(collection, count.get()));
+            status.put("deletedByCollection", byCollection);
+            if (remaining != null) {
+                status.put("remaining", remaining);
+            }
+            long end = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+            status.put("durationMs", startedAt > 0 ? end - startedAt : 0);
+            status.put("submittedAt", submittedAt);
+            if (error != null) {
+                status.put("error", error);
+            }
+            return status;
+        }
+    }
+}
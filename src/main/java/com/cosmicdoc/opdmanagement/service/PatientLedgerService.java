@@ -0,0 +1,395 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.model.Advance;
+import com.cosmicdoc.opdmanagement.model.CashMemo;
+import com.cosmicdoc.opdmanagement.model.CreditNote;
+import com.cosmicdoc.opdmanagement.model.Invoice;
+import com.cosmicdoc.opdmanagement.model.PatientLedger;
+import com.cosmicdoc.opdmanagement.model.Receipt;
+import com.cosmicdoc.opdmanagement.model.Refund;
+import com.cosmicdoc.opdmanagement.repository.AdvanceRepository;
+import com.cosmicdoc.opdmanagement.repository.CashMemoRepository;
+import com.cosmicdoc.opdmanagement.repository.CreditNoteRepository;
+import com.cosmicdoc.opdmanagement.repository.InvoiceRepository;
+import com.cosmicdoc.opdmanagement.repository.ReceiptRepository;
+import com.cosmicdoc.opdmanagement.repository.RefundRepository;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Maintains a materialized ledger document per patient (patient_ledgers/{patientId}) so the
+ * outstanding balance, available advance and available credit are a single document read.
+ *
+ * Every billing document also gets an entry in patient_ledger_entries recording what it
+ * contributed. Changes are applied in a transaction as "new contribution minus recorded
+ * contribution", so retries, repeated saves and deletes never double count, and a document
+ * moved to another patient is taken off the old ledger and added to the new one.
+ * A failed ledger update is logged rather than failing the billing request; rebuild()
+ * recomputes a patient's ledger from the billing collections.
+ */
+@Service
+@Slf4j
+public class PatientLedgerService {
+
+    private static final String LEDGER_COLLECTION = "patient_ledgers";
+    private static final String ENTRY_COLLECTION = "patient_ledger_entries";
+    private static final int BATCH_LIMIT = 500;
+
+    private static final String INVOICE = "INVOICE";
+    private static final String RECEIPT = "RECEIPT";
+    private static final String ADVANCE = "ADVANCE";
+    private static final String CREDIT_NOTE = "CREDIT_NOTE";
+    private static final String REFUND = "REFUND";
+    private static final String CASH_MEMO = "CASH_MEMO";
+
+    // Running totals stored on the ledger and per entry
+    private static final String CHARGED = "totalCharged";
+    private static final String PAID = "totalPaid";
+    private static final String ADVANCE_DEPOSITED = "advanceDeposited";
+    private static final String CREDIT_ISSUED = "creditIssued";
+    private static final String REFUNDED = "refunded";
+    private static final String[] BUCKETS = {CHARGED, PAID, ADVANCE_DEPOSITED, CREDIT_ISSUED, REFUNDED};
+
+    private final Firestore firestore;
+    private final InvoiceRepository invoiceRepository;
+    private final ReceiptRepository receiptRepository;
+    private final AdvanceRepository advanceRepository;
+    private final CreditNoteRepository creditNoteRepository;
+    private final RefundRepository refundRepository;
+    private final CashMemoRepository cashMemoRepository;
+
+    @Autowired
+    public PatientLedgerService(Firestore firestore,
+                                InvoiceRepository invoiceRepository,
+                                ReceiptRepository receiptRepository,
+                                AdvanceRepository advanceRepository,
+                                CreditNoteRepository creditNoteRepository,
+                                RefundRepository refundRepository,
+                                CashMemoRepository cashMemoRepository) {
+        this.firestore = firestore;
+        this.invoiceRepository = invoiceRepository;
+        this.receiptRepository = receiptRepository;
+        this.advanceRepository = advanceRepository;
+        this.creditNoteRepository = creditNoteRepository;
+        this.refundRepository = refundRepository;
+        this.cashMemoRepository = cashMemoRepository;
+    }
+
+    /**
+     * Get the ledger for a patient; patients without billing get an all-zero ledger
+     *
+     * @param patientId The patient ID
+     * @return The patient's ledger
+     */
+    public PatientLedger getLedger(String patientId) {
+        try {
+            DocumentSnapshot document = ledgerRef(patientId).get().get();
+            return toLedger(patientId, readTotals(document), document.exists() ? longValue(document, "entryCount") : 0,
+                    document.exists() ? document.getDate("updatedAt") : null);
+        } catch (ExecutionException e) {
+            log.error("Error reading ledger for patient: {}", patientId, e);
+            throw new RuntimeException("Failed to read patient ledger: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to read patient ledger: " + e.getMessage(), e);
+        }
+    }
+
+    public void recordInvoice(Invoice invoice) {
+        Map<String, Double> amounts = new HashMap<>();
+        if (!"CANCELLED".equals(invoice.getStatus())) {
+            amounts.put(CHARGED, invoice.getAmount());
+        }
+        apply(INVOICE, invoice.getId(), invoice.getPatientId(), amounts);
+    }
+
+    public void recordReceipt(Receipt receipt) {
+        Map<String, Double> amounts = new HashMap<>();
+        if (!"CANCELLED".equals(receipt.getStatus())) {
+            amounts.put(PAID, receipt.getAmount());
+        }
+        apply(RECEIPT, receipt.getId(), receipt.getPatientId(), amounts);
+    }
+
+    public void recordAdvance(Advance advance) {
+        apply(ADVANCE, advance.getId(), advance.getPatientId(), Map.of(ADVANCE_DEPOSITED, advance.getAmount()));
+    }
+
+    public void recordCreditNote(CreditNote creditNote) {
+        apply(CREDIT_NOTE, creditNote.getId(), creditNote.getPatientId(), Map.of(CREDIT_ISSUED, creditNote.getAmount()));
+    }
+
+    public void recordRefund(Refund refund) {
+        apply(REFUND, refund.getId(), refund.getPatientId(), Map.of(REFUNDED, refund.getAmount()));
+    }
+
+    /**
+     * Cash memos are settled at the counter, so they count as both charged and paid
+     */
+    public void recordCashMemo(CashMemo cashMemo) {
+        apply(CASH_MEMO, cashMemo.getId(), cashMemo.getPatientId(),
+                Map.of(CHARGED, cashMemo.getAmount(), PAID, cashMemo.getAmount()));
+    }
+
+    public void removeInvoice(String id) {
+        apply(INVOICE, id, null, Map.of());
+    }
+
+    public void removeReceipt(String id) {
+        apply(RECEIPT, id, null, Map.of());
+    }
+
+    public void removeAdvance(String id) {
+        apply(ADVANCE, id, null, Map.of());
+    }
+
+    public void removeCreditNote(String id) {
+        apply(CREDIT_NOTE, id, null, Map.of());
+    }
+
+    public void removeRefund(String id) {
+        apply(REFUND, id, null, Map.of());
+    }
+
+    public void removeCashMemo(String id) {
+        apply(CASH_MEMO, id, null, Map.of());
+    }
+
+    /**
+     * Recompute a patient's ledger and entries from the billing collections. Used to backfill
+     * patients billed before the ledger existed and to repair a ledger after a failed update.
+     *
+     * @param patientId The patient ID
+     * @return The rebuilt ledger
+     */
+    public PatientLedger rebuild(String patientId) {
+        log.info("Rebuilding ledger for patient: {}", patientId);
+        try {
+            Map<String, Map<String, Double>> entries = new HashMap<>();
+            Map<String, String> entryTypes = new HashMap<>();
+            for (Invoice invoice : invoiceRepository.findByPatientId(patientId)) {
+                collect(entries, entryTypes, INVOICE, invoice.getId(), "CANCELLED".equals(invoice.getStatus())
+                        ? Map.of() : Map.of(CHARGED, invoice.getAmount()));
+            }
+            for (Receipt receipt : receiptRepository.findByPatientId(patientId)) {
+                collect(entries, entryTypes, RECEIPT, receipt.getId(), "CANCELLED".equals(receipt.getStatus())
+                        ? Map.of() : Map.of(PAID, receipt.getAmount()));
+            }
+            for (Advance advance : advanceRepository.findByPatientId(patientId)) {
+                collect(entries, entryTypes, ADVANCE, advance.getId(), Map.of(ADVANCE_DEPOSITED, advance.getAmount()));
+            }
+            for (CreditNote creditNote : creditNoteRepository.findByPatientId(patientId)) {
+                collect(entries, entryTypes, CREDIT_NOTE, creditNote.getId(),
+                        Map.of(CREDIT_ISSUED, creditNote.getAmount()));
+            }
+            for (Refund refund : refundRepository.findByPatientId(patientId)) {
+                collect(entries, entryTypes, REFUND, refund.getId(), Map.of(REFUNDED, refund.getAmount()));
+            }
+            for (CashMemo cashMemo : cashMemoRepository.findByPatientId(patientId)) {
+                collect(entries, entryTypes, CASH_MEMO, cashMemo.getId(),
+                        Map.of(CHARGED, cashMemo.getAmount(), PAID, cashMemo.getAmount()));
+            }
+
+            Map<String, Double> totals = new HashMap<>();
+            List<DocumentReference> staleEntries = new ArrayList<>();
+            for (QueryDocumentSnapshot existing : firestore.collection(ENTRY_COLLECTION)
+                    .whereEqualTo("patientId", patientId).get().get().getDocuments()) {
+                if (!entries.containsKey(existing.getId())) {
+                    staleEntries.add(existing.getReference());
+                }
+            }
+
+            WriteBatch batch = firestore.batch();
+            int operations = 0;
+            for (DocumentReference stale : staleEntries) {
+                batch.delete(stale);
+                if (++operations % BATCH_LIMIT == 0) {
+                    batch.commit().get();
+                    batch = firestore.batch();
+                }
+            }
+            for (Map.Entry<String, Map<String, Double>> entry : entries.entrySet()) {
+                batch.set(firestore.collection(ENTRY_COLLECTION).document(entry.getKey()),
+                        toEntryDoc(entryTypes.get(entry.getKey()), patientId, entry.getValue()));
+                adjust(totals, entry.getValue(), 1);
+                if (++operations % BATCH_LIMIT == 0) {
+                    batch.commit().get();
+                    batch = firestore.batch();
+                }
+            }
+            batch.set(ledgerRef(patientId), toLedgerDoc(patientId, totals, entries.size()));
+            batch.commit().get();
+
+            log.info("Rebuilt ledger for patient {} from {} billing documents", patientId, entries.size());
+            return toLedger(patientId, totals, entries.size(), null);
+        } catch (ExecutionException e) {
+            log.error("Error rebuilding ledger for patient: {}", patientId, e);
+            throw new RuntimeException("Failed to rebuild patient ledger: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to rebuild patient ledger: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replace the recorded contribution of one billing document in a single transaction.
+     * A null patientId removes the document from the ledger.
+     */
+    private void apply(String type, String documentId, String patientId, Map<String, Double> amounts) {
+        if (documentId == null || documentId.isEmpty()) {
+            return;
+        }
+        DocumentReference entryRef = firestore.collection(ENTRY_COLLECTION).document(entryKey(type, documentId));
+        try {
+            firestore.runTransaction(transaction -> {
+                // All reads must happen before the first write
+                DocumentSnapshot entry = transaction.get(entryRef).get();
+                String previousPatientId = entry.exists() ? entry.getString("patientId") : null;
+                Map<String, Double> previousAmounts = readTotals(entry);
+
+                DocumentSnapshot previousLedger = previousPatientId != null
+                        ? transaction.get(ledgerRef(previousPatientId)).get() : null;
+                DocumentSnapshot currentLedger = patientId == null ? null
+                        : Objects.equals(patientId, previousPatientId) ? previousLedger
+                        : transaction.get(ledgerRef(patientId)).get();
+
+                if (previousLedger != null && previousLedger != currentLedger) {
+                    Map<String, Double> totals = readTotals(previousLedger);
+                    adjust(totals, previousAmounts, -1);
+                    transaction.set(ledgerRef(previousPatientId), toLedgerDoc(previousPatientId, totals,
+                            longValue(previousLedger, "entryCount") - 1));
+                }
+                if (currentLedger != null) {
+                    Map<String, Double> totals = readTotals(currentLedger);
+                    long entryCount = longValue(currentLedger, "entryCount");
+                    if (currentLedger == previousLedger) {
+                        adjust(totals, previousAmounts, -1);
+                    } else {
+                        entryCount++;
+                    }
+                    adjust(totals, amounts, 1);
+                    transaction.set(ledgerRef(patientId), toLedgerDoc(patientId, totals, entryCount));
+                }
+
+                if (patientId == null) {
+                    if (entry.exists()) {
+                        transaction.delete(entryRef);
+                    }
+                } else {
+                    transaction.set(entryRef, toEntryDoc(type, patientId, amounts));
+                }
+                return null;
+            }).get();
+        } catch (ExecutionException e) {
+            // The billing document is already saved; don't fail the request, rebuild() repairs the ledger
+            log.error("Error updating ledger for {} {}, rebuild the patient ledger to repair it", type, documentId, e);
+        } catch (InterruptedException e) {
+            log.error("Interrupted updating ledger for {} {}, rebuild the patient ledger to repair it", type, documentId);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private DocumentReference ledgerRef(String patientId) {
+        return firestore.collection(LEDGER_COLLECTION).document(patientId);
+    }
+
+    private static void collect(Map<String, Map<String, Double>> entries, Map<String, String> entryTypes,
+                                String type, String documentId, Map<String, Double> amounts) {
+        if (documentId != null && !documentId.isEmpty()) {
+            entries.put(entryKey(type, documentId), amounts);
+            entryTypes.put(entryKey(type, documentId), type);
+        }
+    }
+
+    private static String entryKey(String type, String documentId) {
+        return type + "_" + documentId;
+    }
+
+    private static Map<String, Double> readTotals(DocumentSnapshot document) {
+        Map<String, Double> totals = new HashMap<>();
+        if (document != null && document.exists()) {
+            for (String bucket : BUCKETS) {
+                Double value = document.getDouble(bucket);
+                if (value != null) {
+                    totals.put(bucket, value);
+                }
+            }
+        }
+        return totals;
+    }
+
+    private static long longValue(DocumentSnapshot document, String field) {
+        Long value = document.exists() ? document.getLong(field) : null;
+        return value != null ? value : 0;
+    }
+
+    private static void adjust(Map<String, Double> totals, Map<String, Double> amounts, int sign) {
+        for (Map.Entry<String, Double> amount : amounts.entrySet()) {
+            totals.merge(amount.getKey(), sign * amount.getValue(), Double::sum);
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100.0) / 100.0;
+    }
+
+    private static Map<String, Object> toEntryDoc(String type, String patientId, Map<String, Double> amounts) {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("type", type);
+        doc.put("patientId", patientId);
+        for (Map.Entry<String, Double> amount : amounts.entrySet()) {
+            doc.put(amount.getKey(), round(amount.getValue()));
+        }
+        doc.put("updatedAt", FieldValue.serverTimestamp());
+        return doc;
+    }
+
+    private static Map<String, Object> toLedgerDoc(String patientId, Map<String, Double> totals, long entryCount) {
+        PatientLedger ledger = toLedger(patientId, totals, entryCount, null);
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("patientId", patientId);
+        doc.put(CHARGED, ledger.getTotalCharged());
+        doc.put(PAID, ledger.getTotalPaid());
+        doc.put(ADVANCE_DEPOSITED, ledger.getAdvanceDeposited());
+        doc.put(CREDIT_ISSUED, ledger.getCreditIssued());
+        doc.put(REFUNDED, ledger.getRefunded());
+        doc.put("outstandingBalance", ledger.getOutstandingBalance());
+        doc.put("advanceAvailable", ledger.getAdvanceAvailable());
+        doc.put("creditAvailable", ledger.getCreditAvailable());
+        doc.put("entryCount", ledger.getEntryCount());
+        doc.put("updatedAt", FieldValue.serverTimestamp());
+        return doc;
+    }
+
+    private static PatientLedger toLedger(String patientId, Map<String, Double> totals, long entryCount,
+                                          Date updatedAt) {
+        PatientLedger ledger = new PatientLedger();
+        ledger.setPatientId(patientId);
+        ledger.setTotalCharged(round(totals.getOrDefault(CHARGED, 0.0)));
+        ledger.setTotalPaid(round(totals.getOrDefault(PAID, 0.0)));
+        ledger.setAdvanceDeposited(round(totals.getOrDefault(ADVANCE_DEPOSITED, 0.0)));
+        ledger.setCreditIssued(round(totals.getOrDefault(CREDIT_ISSUED, 0.0)));
+        ledger.setRefunded(round(totals.getOrDefault(REFUNDED, 0.0)));
+        ledger.setOutstandingBalance(round(ledger.getTotalCharged() - ledger.getTotalPaid()));
+        ledger.setAdvanceAvailable(Math.max(0, round(ledger.getAdvanceDeposited() - ledger.getRefunded())));
+        ledger.setCreditAvailable(ledger.getCreditIssued());
+        ledger.setEntryCount(Math.max(0, entryCount));
+        ledger.setUpdatedAt(updatedAt);
+        return ledger;
+    }
+}
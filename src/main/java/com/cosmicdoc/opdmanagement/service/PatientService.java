@@ -4,14 +4,14 @@ import com.cosmicdoc.opdmanagement.model.Patient;
 import com.cosmicdoc.opdmanagement.repository.PatientRepository;
 import com.cosmicdoc.opdmanagement.dto.PatientDTO;
 import com.cosmicdoc.opdmanagement.exception.ResourceNotFoundException;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
@@ -24,10 +24,17 @@ public class PatientService {
     private static final Pattern PATIENT_ID_PATTERN = Pattern.compile("PAT-(\\d{4})-(\\d{4})");
     private final AtomicInteger sequenceCounter;
     private final PatientRepository patientRepository;
+    private final PatientErasureJob patientErasureJob;
+    private final ClinicClock clinicClock;
+    // Year the sequence counter counts for
+    private int sequenceYear;
 
     @Autowired
-    public PatientService(PatientRepository patientRepository) {
+    public PatientService(PatientRepository patientRepository, PatientErasureJob patientErasureJob,
+                          ClinicClock clinicClock) {
         this.patientRepository = patientRepository;
+        this.patientErasureJob = patientErasureJob;
+        this.clinicClock = clinicClock;
         this.sequenceCounter = initializeSequenceCounter();
     }
     
@@ -36,7 +43,8 @@ public class PatientService {
      * in the current year
      */
     private AtomicInteger initializeSequenceCounter() {
-        String currentYear = LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy"));
+        sequenceYear = clinicClock.today().getYear();
+        String currentYear = String.valueOf(sequenceYear);
         int highestSequence = 0;
         
         try {
@@ -108,7 +116,7 @@ public class PatientService {
 
         // Set registration date if not already set
         if (patient.getRegistrationDate() == null) {
-            patient.setRegistrationDate(LocalDate.now());
+            patient.setRegistrationDate(clinicClock.today());
         }
 
         // Save patient
@@ -135,7 +143,11 @@ public class PatientService {
         return mapToDTO(savedPatient);
     }
 
-    public void deletePatient(String id) {
+    /**
+     * Delete a patient and start deleting their records in the background
+     * @return ID of the erasure job, for getErasureStatus
+     */
+    public String deletePatient(String id) {
         // Check if patient exists
         if (!patientRepository.existsById(id)) {
             throw new ResourceNotFoundException("Patient not found with id: " + id);
@@ -143,6 +155,25 @@ public class PatientService {
 
         // Delete patient
         patientRepository.deleteById(id);
+
+        // Medical, visit, appointment and billing records go in a background job
+        return patientErasureJob.submit(id);
+    }
+
+    /**
+     * Start (or restart) the deletion of a patient's records; also works after the patient is gone
+     * @return ID of the erasure job
+     */
+    public String erasePatientRecords(String id) {
+        return patientErasureJob.submit(id);
+    }
+
+    public Map<String, Object> getErasureStatus(String jobId) {
+        Map<String, Object> status = patientErasureJob.getStatus(jobId);
+        if (status == null) {
+            throw new ResourceNotFoundException("Erasure job not found with id: " + jobId);
+        }
+        return status;
     }
     
     /**
@@ -199,9 +230,17 @@ public class PatientService {
      * Where YYYY is the current year and XXXX is a sequential number
      * @return a formatted patient ID string
      */
-    private String generateReadablePatientId() {
-        // Get current year
-        String year = LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy"));
+    private synchronized String generateReadablePatientId() {
+        // Get current year in the clinic's time zone
+        int currentYear = clinicClock.today().getYear();
+        String year = String.valueOf(currentYear);
+        
+        // The sequence starts again at 0001 in a new year
+        if (currentYear != sequenceYear) {
+            logger.info("Patient sequence counter reset for year {}", currentYear);
+            sequenceCounter.set(1);
+            sequenceYear = currentYear;
+        }
         
         // Get next sequence number with padding
         String sequence = String.format("%04d", sequenceCounter.getAndIncrement());
@@ -0,0 +1,101 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.model.PharmacyItem;
+import com.cosmicdoc.opdmanagement.repository.PharmacyItemRepository;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Daily near-expiry check for pharmacy stock.
+ *
+ * Reads from the expiry-ordered PharmacyItemIndex (via the repository), logs expired and
+ * soon-to-expire items that still have stock, and keeps the latest report in memory for
+ * the pharmacy dashboard.
+ */
+@Component
+@Slf4j
+public class PharmacyExpiryAlertJob {
+
+    private final PharmacyItemRepository pharmacyItemRepository;
+    private final ClinicClock clinicClock;
+    private final int windowDays;
+
+    private volatile Map<String, Object> latestReport;
+
+    @Autowired
+    public PharmacyExpiryAlertJob(PharmacyItemRepository pharmacyItemRepository, ClinicClock clinicClock,
+                                  @Value("${app.pharmacy.expiry-alert.window-days:30}") int windowDays) {
+        this.pharmacyItemRepository = pharmacyItemRepository;
+        this.clinicClock = clinicClock;
+        this.windowDays = Math.max(1, windowDays);
+    }
+
+    @Scheduled(cron = "${app.pharmacy.expiry-alert.cron:0 0 7 * * *}", zone = "${app.clinic.time-zone:Asia/Kolkata}")
+    public void run() {
+        LocalDate today = clinicClock.today();
+        List<PharmacyItem> expired = inStock(pharmacyItemRepository.findByExpiryDateBefore(today));
+        List<PharmacyItem> expiringSoon = inStock(
+                pharmacyItemRepository.findByExpiryDateBetween(today, today.plusDays(windowDays)));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("generatedAt", clinicClock.now().toString());
+        report.put("windowDays", windowDays);
+        report.put("expiredCount", expired.size());
+        report.put("expiringCount", expiringSoon.size());
+        report.put("expired", summarize(expired));
+        report.put("expiringSoon", summarize(expiringSoon));
+        latestReport = report;
+
+        if (!expired.isEmpty() || !expiringSoon.isEmpty()) {
+            log.warn("Pharmacy expiry alert: {} items expired with stock, {} expiring within {} days",
+                    expired.size(), expiringSoon.size(), windowDays);
+        } else {
+            log.info("Pharmacy expiry check: nothing expired or expiring within {} days", windowDays);
+        }
+    }
+
+    /**
+     * Latest report, generating one on first use
+     */
+    public Map<String, Object> getLatestReport() {
+        if (latestReport == null) {
+            run();
+        }
+        return latestReport;
+    }
+
+    private static List<PharmacyItem> inStock(List<PharmacyItem> items) {
+        List<PharmacyItem> result = new ArrayList<>();
+        for (PharmacyItem item : items) {
+            if (item.getStockQuantity() != null && item.getStockQuantity() > 0) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    private static List<Map<String, Object>> summarize(List<PharmacyItem> items) {
+        List<Map<String, Object>> summary = new ArrayList<>();
+        for (PharmacyItem item : items) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("id", item.getId());
+            entry.put("name", item.getName());
+            entry.put("batchNumber", item.getBatchNumber());
+            entry.put("expiryDate", item.getExpiryDate() != null ? item.getExpiryDate().toString() : null);
+            entry.put("stockQuantity", item.getStockQuantity());
+            summary.add(entry);
+        }
+        return summary;
+    }
+}
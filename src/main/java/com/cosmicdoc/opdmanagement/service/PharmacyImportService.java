@@ -0,0 +1,375 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.dto.PharmacyItemDTO;
+import com.cosmicdoc.opdmanagement.model.FirestorePharmacyItem;
+import com.cosmicdoc.opdmanagement.model.PharmacyItem;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.BulkWriterException;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteResult;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Status;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Streaming bulk import of pharmacy items from CSV (header row required) or NDJSON.
+ *
+ * Rows are parsed one line at a time, validated with the same constraints as
+ * POST /api/pharmacy-items, and upserted through a Firestore BulkWriter. A semaphore caps
+ * the number of writes in flight so a large upload can't run ahead of Firestore. Each
+ * failed row (parse, validation or write) is reported with its line number.
+ *
+ * Rows without an id are keyed by name, dosage form, manufacturer and batch number, so
+ * importing the same file again updates the items it created instead of duplicating them.
+ * New items are created with the file's stock quantity and reorder level. For items that
+ * already exist only the catalog fields the row carries are merged: live stock changes go
+ * through stock movements and are never overwritten by an import.
+ */
+@Service
+@Slf4j
+public class PharmacyImportService {
+
+    private static final String COLLECTION_NAME = "pharmacy_items";
+    private static final int MAX_REPORTED_ERRORS = 1000;
+    // BulkWriter only sends a batch once it holds this many writes or is flushed
+    private static final int BULK_WRITER_BATCH_SIZE = 20;
+
+    private final Firestore firestore;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+    private final PharmacyItemService pharmacyItemService;
+    private final PharmacyItemIndex pharmacyItemIndex;
+    private final int maxInFlight;
+
+    @Autowired
+    public PharmacyImportService(Firestore firestore, ObjectMapper objectMapper, Validator validator,
+                                 PharmacyItemService pharmacyItemService, PharmacyItemIndex pharmacyItemIndex,
+                                 @Value("${app.pharmacy.import.max-in-flight:500}") int maxInFlight) {
+        this.firestore = firestore;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.pharmacyItemService = pharmacyItemService;
+        this.pharmacyItemIndex = pharmacyItemIndex;
+        // A smaller limit would block before the first batch is ever sent
+        this.maxInFlight = Math.max(BULK_WRITER_BATCH_SIZE, maxInFlight);
+    }
+
+    /**
+     * Import pharmacy items from a stream
+     *
+     * @param input Upload stream, read line by line
+     * @param format "csv" or "ndjson"
+     * @return Report with row counts and per-row errors
+     */
+    public Map<String, Object> importItems(InputStream input, String format) throws IOException {
+        boolean csv = "csv".equalsIgnoreCase(format);
+        long start = System.currentTimeMillis();
+
+        AtomicInteger imported = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        List<Map<String, Object>> errors = new ArrayList<>();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        // Rows whose create found an existing item, to be merged from this thread
+        Queue<ExistingRow> existing = new ConcurrentLinkedQueue<>();
+        int rows = 0;
+
+        BulkWriter bulkWriter = firestore.bulkWriter();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String[] header = null;
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                if (csv && header == null) {
+                    header = parseCsvLine(line).toArray(new String[0]);
+                    continue;
+                }
+                rows++;
+
+                PharmacyItemDTO dto;
+                try {
+                    dto = csv ? toDto(header, parseCsvLine(line)) : objectMapper.readValue(line, PharmacyItemDTO.class);
+                } catch (Exception e) {
+                    recordError(errors, failed, lineNumber, "Unreadable row: " + e.getMessage());
+                    continue;
+                }
+
+                Set<ConstraintViolation<PharmacyItemDTO>> violations = validator.validate(dto);
+                if (!violations.isEmpty()) {
+                    recordError(errors, failed, lineNumber, violations.stream()
+                            .map(ConstraintViolation::getMessage)
+                            .sorted()
+                            .collect(Collectors.joining("; ")));
+                    continue;
+                }
+
+                PharmacyItem item = pharmacyItemService.mapToEntity(dto);
+                if (item.getId() == null || item.getId().isBlank()) {
+                    item.setId(naturalId(item));
+                }
+
+                mergeExisting(bulkWriter, inFlight, existing, imported, failed, errors);
+                acquire(bulkWriter, inFlight);
+                ApiFuture<WriteResult> write = bulkWriter.create(
+                        firestore.collection(COLLECTION_NAME).document(item.getId()),
+                        FirestorePharmacyItem.fromPharmacyItem(item));
+                int row = lineNumber;
+                ApiFutures.addCallback(write, new ApiFutureCallback<WriteResult>() {
+                    @Override
+                    public void onSuccess(WriteResult result) {
+                        imported.incrementAndGet();
+                        pharmacyItemIndex.put(item);
+                        inFlight.release();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        if (isAlreadyExists(t)) {
+                            existing.add(new ExistingRow(row, item));
+                        } else {
+                            recordError(errors, failed, row, "Write failed: " + t.getMessage());
+                        }
+                        inFlight.release();
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+
+            // Every callback has run once all permits are back; merges may queue no further rows
+            do {
+                bulkWriter.flush().get();
+                inFlight.acquire(maxInFlight);
+                inFlight.release(maxInFlight);
+            } while (mergeExisting(bulkWriter, inFlight, existing, imported, failed, errors));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Pharmacy import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Pharmacy import failed: " + e.getMessage(), e);
+        } finally {
+            // Flushes outstanding writes and waits for their callbacks
+            bulkWriter.close();
+        }
+
+        long durationMs = System.currentTimeMillis() - start;
+        log.info("Pharmacy import finished: {} rows, {} imported, {} failed in {} ms",
+                rows, imported.get(), failed.get(), durationMs);
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("totalRows", rows);
+        report.put("imported", imported.get());
+        report.put("failed", failed.get());
+        report.put("durationMs", durationMs);
+        synchronized (errors) {
+            errors.sort((a, b) -> Integer.compare((Integer) a.get("line"), (Integer) b.get("line")));
+            report.put("errors", new ArrayList<>(errors));
+        }
+        report.put("errorsTruncated", failed.get() > MAX_REPORTED_ERRORS);
+        return report;
+    }
+
+    /**
+     * Merge the catalog fields of rows whose item already existed
+     *
+     * @return true if any merge was queued
+     */
+    private boolean mergeExisting(BulkWriter bulkWriter, Semaphore inFlight, Queue<ExistingRow> existing,
+                                  AtomicInteger imported, AtomicInteger failed, List<Map<String, Object>> errors)
+            throws InterruptedException {
+        boolean queued = false;
+        ExistingRow next;
+        while ((next = existing.poll()) != null) {
+            ExistingRow row = next;
+            acquire(bulkWriter, inFlight);
+            DocumentReference ref = firestore.collection(COLLECTION_NAME).document(row.item.getId());
+            // The index picks the change up from its snapshot listener, with the live stock
+            ApiFutures.addCallback(bulkWriter.set(ref, catalogFields(row.item), SetOptions.merge()),
+                    new ApiFutureCallback<WriteResult>() {
+                        @Override
+                        public void onSuccess(WriteResult result) {
+                            imported.incrementAndGet();
+                            inFlight.release();
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            recordError(errors, failed, row.line, "Write failed: " + t.getMessage());
+                            inFlight.release();
+                        }
+                    }, MoreExecutors.directExecutor());
+            queued = true;
+        }
+        return queued;
+    }
+
+    private static void acquire(BulkWriter bulkWriter, Semaphore inFlight) throws InterruptedException {
+        if (!inFlight.tryAcquire()) {
+            // Send the partial batch so its callbacks can free permits
+            bulkWriter.flush();
+            inFlight.acquire();
+        }
+    }
+
+    /**
+     * Catalog fields the row sets, so columns missing from the file keep their stored values.
+     * stockQuantity and reorderLevel are never part of it.
+     */
+    private static Map<String, Object> catalogFields(PharmacyItem item) {
+        FirestorePharmacyItem row = FirestorePharmacyItem.fromPharmacyItem(item);
+        Map<String, Object> fields = new HashMap<>();
+        putIfSet(fields, "name", row.getName());
+        putIfSet(fields, "description", row.getDescription());
+        putIfSet(fields, "dosageForm", row.getDosageForm());
+        putIfSet(fields, "manufacturer", row.getManufacturer());
+        putIfSet(fields, "batchNumber", row.getBatchNumber());
+        putIfSet(fields, "price", row.getPrice());
+        putIfSet(fields, "expiryDate", row.getExpiryDate());
+        putIfSet(fields, "expiryAt", row.getExpiryAt());
+        putIfSet(fields, "requiresPrescription", row.getRequiresPrescription());
+        putIfSet(fields, "category", row.getCategory());
+        putIfSet(fields, "isActive", row.getIsActive());
+        return fields;
+    }
+
+    private static void putIfSet(Map<String, Object> fields, String name, Object value) {
+        if (value != null) {
+            fields.put(name, value);
+        }
+    }
+
+    private static boolean isAlreadyExists(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BulkWriterException
+                    && ((BulkWriterException) cause).getStatus().getCode() == Status.Code.ALREADY_EXISTS) {
+                return true;
+            }
+            if (cause instanceof ApiException
+                    && ((ApiException) cause).getStatusCode().getCode() == StatusCode.Code.ALREADY_EXISTS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stable ID for a row without one, derived from what identifies a stock line
+     */
+    private static String naturalId(PharmacyItem item) {
+        String key = String.join("|", normalizeKey(item.getName()), normalizeKey(item.getDosageForm()),
+                normalizeKey(item.getManufacturer()), normalizeKey(item.getBatchNumber()));
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private static String normalizeKey(String value) {
+        return value == null ? "" : value.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private static void recordError(List<Map<String, Object>> errors, AtomicInteger failed, int line, String message) {
+        failed.incrementAndGet();
+        synchronized (errors) {
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                Map<String, Object> error = new HashMap<>();
+                error.put("line", line);
+                error.put("message", message);
+                errors.add(error);
+            }
+        }
+    }
+
+    /**
+     * Map CSV cells to a DTO by header name; Jackson does the type conversion
+     */
+    private PharmacyItemDTO toDto(String[] header, List<String> cells) {
+        if (cells.size() > header.length) {
+            throw new IllegalArgumentException("expected " + header.length + " columns, found " + cells.size());
+        }
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < cells.size(); i++) {
+            String value = cells.get(i).trim();
+            if (!value.isEmpty()) {
+                values.put(header[i].trim(), value);
+            }
+        }
+        return objectMapper.convertValue(values, PharmacyItemDTO.class);
+    }
+
+    /**
+     * Split one CSV line, honouring double quotes and "" escapes. Quoted fields may not
+     * contain line breaks.
+     */
+    private static List<String> parseCsvLine(String line) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    cell.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    cell.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quoted field");
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+
+    private static final class ExistingRow {
+        private final int line;
+        private final PharmacyItem item;
+
+        private ExistingRow(int line, PharmacyItem item) {
+            this.line = line;
+            this.item = item;
+        }
+    }
+}
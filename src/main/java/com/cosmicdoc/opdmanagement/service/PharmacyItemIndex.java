@@ -0,0 +1,466 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.model.FirestorePharmacyItem;
+import com.cosmicdoc.opdmanagement.model.PharmacyItem;
+import com.cosmicdoc.opdmanagement.util.ResilientSnapshotListener;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QuerySnapshot;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory copy of the pharmacy_items collection with a search index over name, category
+ * and manufacturer.
+ *
+ * The index is built from the first snapshot of a listener on the collection and kept
+ * current by its later changes (writes from other instances or the console) and by
+ * write-through calls from OpdPharmacyItemRepositoryImpl. The listener is registered again
+ * with backoff after errors, and each new registration rebuilds the index. Queries of 3+
+ * characters intersect trigram postings; shorter queries scan every item, because one or
+ * two characters match too much of the catalog for postings to help and substring matches
+ * ("ol" in "paracetamol") must still be found. Every candidate is verified against the
+ * current item, so a search racing a write can never return a wrong match. Until the first
+ * snapshot arrives, isReady() is false and callers fall back to Firestore.
+ *
+ * Items with an expiry date are also kept in a skip list ordered by (expiry day, id), so
+ * "expired before" and "expiring within N days" are range scans rather than collection reads.
+ *
+ * A low-stock watchlist (stock at or below the item's reorder level, or the configured
+ * default) is maintained on every write. Transitions are captured under the write lock and
+ * handed to LowStockFeed after it is released.
+ */
+@Component
+@Slf4j
+public class PharmacyItemIndex {
+
+    private static final String COLLECTION_NAME = "pharmacy_items";
+    private static final int GRAM_LENGTH = 3;
+
+    private final Firestore firestore;
+    private final LowStockFeed lowStockFeed;
+    private final int defaultReorderLevel;
+
+    private final Map<String, PharmacyItem> items = new ConcurrentHashMap<>();
+    // trigram -> item IDs
+    private final Map<String, Set<String>> postings = new ConcurrentHashMap<>();
+    // (expiry epoch day, id) in expiry order
+    private final ConcurrentSkipListSet<ExpiryEntry> byExpiry = new ConcurrentSkipListSet<>();
+    // IDs of active items at or below their reorder level
+    private final Set<String> lowStock = ConcurrentHashMap.newKeySet();
+    private volatile boolean ready;
+    private ResilientSnapshotListener listener;
+
+    @Autowired
+    public PharmacyItemIndex(Firestore firestore, LowStockFeed lowStockFeed,
+                             @Value("${app.pharmacy.default-reorder-level:10}") int defaultReorderLevel) {
+        this.firestore = firestore;
+        this.lowStockFeed = lowStockFeed;
+        this.defaultReorderLevel = defaultReorderLevel;
+    }
+
+    @PostConstruct
+    public void startListening() {
+        listener = new ResilientSnapshotListener("pharmacy-items", firestore.collection(COLLECTION_NAME),
+                this::apply,
+                () -> log.warn("Pharmacy item index only sees local writes until its listener is back"));
+        listener.start();
+    }
+
+    @PreDestroy
+    public void stopListening() {
+        if (listener != null) {
+            listener.stop();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Write-through after an item is created or updated
+     */
+    public void put(PharmacyItem item) {
+        // Sent after the lock is released, so subscribers can't slow down writes
+        lowStockFeed.publish(update(item, true));
+    }
+
+    /**
+     * @return The low-stock change to publish, or null
+     */
+    private synchronized LowStockFeed.Event update(PharmacyItem item, boolean publish) {
+        if (item == null || item.getId() == null) {
+            return null;
+        }
+        PharmacyItem copy = copyOf(item);
+        PharmacyItem previous = items.put(item.getId(), copy);
+        if (previous != null) {
+            unindex(previous);
+        }
+        index(copy);
+
+        boolean wasLow = previous != null && isLow(previous);
+        boolean nowLow = isLow(copy);
+        if (publish && (wasLow != nowLow || (nowLow && !Objects.equals(previous.getStockQuantity(), copy.getStockQuantity())))) {
+            return lowStockFeed.event(copy, reorderLevel(copy), nowLow);
+        }
+        return null;
+    }
+
+    /**
+     * Write-through after an item is deleted
+     */
+    public void remove(String id) {
+        lowStockFeed.publish(delete(id));
+    }
+
+    private synchronized LowStockFeed.Event delete(String id) {
+        if (id == null) {
+            return null;
+        }
+        PharmacyItem previous = items.remove(id);
+        if (previous != null) {
+            unindex(previous);
+            if (isLow(previous)) {
+                return lowStockFeed.event(previous, reorderLevel(previous), false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Items on the low-stock watchlist, lowest stock first
+     *
+     * @return Copies of the low-stock items
+     */
+    public List<PharmacyItem> findLowStock() {
+        List<PharmacyItem> results = new ArrayList<>();
+        for (String id : lowStock) {
+            PharmacyItem item = items.get(id);
+            if (item != null) {
+                results.add(copyOf(item));
+            }
+        }
+        results.sort(Comparator.comparingInt(PharmacyItemIndex::stockOf)
+                .thenComparing(item -> normalize(item.getName())));
+        return results;
+    }
+
+    /**
+     * Reorder level used for an item: its own, or the configured default
+     */
+    public int reorderLevel(PharmacyItem item) {
+        return item.getReorderLevel() != null ? item.getReorderLevel() : defaultReorderLevel;
+    }
+
+    private boolean isLow(PharmacyItem item) {
+        return !Boolean.FALSE.equals(item.getIsActive()) && stockOf(item) <= reorderLevel(item);
+    }
+
+    private static int stockOf(PharmacyItem item) {
+        return item.getStockQuantity() != null ? item.getStockQuantity() : 0;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * Items whose name contains the text, best matches first
+     *
+     * @param name Search text, case-insensitive
+     * @return Copies of the matching items
+     */
+    public List<PharmacyItem> findByNameContaining(String name) {
+        return search(name, 0, true);
+    }
+
+    /**
+     * Ranked search over name, category and manufacturer.
+     *
+     * Ranking: exact name, name prefix, word prefix inside the name, substring of the name,
+     * then category and manufacturer matches; ties are ordered by name.
+     *
+     * @param query Search text, case-insensitive
+     * @param limit Maximum number of results, or 0 for no limit
+     * @return Copies of the matching items in rank order
+     */
+    public List<PharmacyItem> search(String query, int limit) {
+        return search(query, limit, false);
+    }
+
+    private List<PharmacyItem> search(String query, int limit, boolean nameOnly) {
+        String term = normalize(query);
+        if (term.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<RankedItem> ranked = new ArrayList<>();
+        for (String id : candidates(term)) {
+            PharmacyItem item = items.get(id);
+            if (item == null) {
+                continue;
+            }
+            int rank = rank(item, term);
+            if (rank < Integer.MAX_VALUE && (!nameOnly || rank <= 3)) {
+                ranked.add(new RankedItem(item, rank, normalize(item.getName())));
+            }
+        }
+        ranked.sort(Comparator.comparingInt((RankedItem r) -> r.rank).thenComparing(r -> r.sortName));
+
+        List<PharmacyItem> results = new ArrayList<>();
+        for (RankedItem r : ranked) {
+            if (limit > 0 && results.size() >= limit) {
+                break;
+            }
+            results.add(copyOf(r.item));
+        }
+        return results;
+    }
+
+    /**
+     * Items expiring strictly before the given date, soonest first
+     *
+     * @param date Exclusive upper bound
+     * @return Copies of the matching items
+     */
+    public List<PharmacyItem> findExpiringBefore(LocalDate date) {
+        return collect(byExpiry.headSet(new ExpiryEntry(date.toEpochDay(), "")));
+    }
+
+    /**
+     * Items expiring between two dates, soonest first
+     *
+     * @param from Inclusive lower bound
+     * @param to Inclusive upper bound
+     * @return Copies of the matching items
+     */
+    public List<PharmacyItem> findExpiringBetween(LocalDate from, LocalDate to) {
+        if (to.isBefore(from)) {
+            return new ArrayList<>();
+        }
+        return collect(byExpiry.subSet(new ExpiryEntry(from.toEpochDay(), ""),
+                new ExpiryEntry(to.toEpochDay() + 1, "")));
+    }
+
+    private List<PharmacyItem> collect(Set<ExpiryEntry> entries) {
+        List<PharmacyItem> results = new ArrayList<>();
+        for (ExpiryEntry entry : entries) {
+            PharmacyItem item = items.get(entry.id);
+            if (item != null) {
+                results.add(copyOf(item));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Item IDs that may match the term; rank() does the final check
+     */
+    private Set<String> candidates(String term) {
+        if (term.length() < GRAM_LENGTH) {
+            return items.keySet();
+        }
+
+        // Intersect starting from the rarest gram to keep the working set small
+        List<Set<String>> gramPostings = new ArrayList<>();
+        for (int i = 0; i + GRAM_LENGTH <= term.length(); i++) {
+            Set<String> posting = postings.get(term.substring(i, i + GRAM_LENGTH));
+            if (posting == null) {
+                return Collections.emptySet();
+            }
+            gramPostings.add(posting);
+        }
+        gramPostings.sort(Comparator.comparingInt(Set::size));
+
+        Set<String> result = new HashSet<>(gramPostings.get(0));
+        for (int i = 1; i < gramPostings.size() && !result.isEmpty(); i++) {
+            result.retainAll(gramPostings.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Apply a listener snapshot: the first one of a registration replaces the index,
+     * later ones carry only the changed documents
+     */
+    private void apply(QuerySnapshot snapshot, boolean initial) {
+        if (!initial) {
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                if (change.getType() == DocumentChange.Type.REMOVED) {
+                    remove(change.getDocument().getId());
+                } else {
+                    PharmacyItem item = toItem(change.getDocument());
+                    if (item != null) {
+                        put(item);
+                    }
+                }
+            }
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        Set<String> present = new HashSet<>();
+        for (DocumentSnapshot document : snapshot.getDocuments()) {
+            PharmacyItem item = toItem(document);
+            if (item != null) {
+                present.add(item.getId());
+                // No low-stock events for the initial build
+                lowStockFeed.publish(update(item, ready));
+            }
+        }
+        // Deleted while no listener was registered
+        for (String id : new ArrayList<>(items.keySet())) {
+            if (!present.contains(id)) {
+                remove(id);
+            }
+        }
+        if (!ready) {
+            log.info("Pharmacy item index built: {} items in {} ms", present.size(), System.currentTimeMillis() - start);
+        }
+        ready = true;
+    }
+
+    private static PharmacyItem toItem(DocumentSnapshot document) {
+        try {
+            FirestorePharmacyItem firestoreItem = document.toObject(FirestorePharmacyItem.class);
+            if (firestoreItem == null) {
+                return null;
+            }
+            PharmacyItem item = firestoreItem.toPharmacyItem();
+            if (item.getId() == null) {
+                item.setId(document.getId());
+            }
+            return item;
+        } catch (RuntimeException e) {
+            log.warn("Skipping unreadable pharmacy item {}: {}", document.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    private void index(PharmacyItem item) {
+        for (String key : keys(item)) {
+            postings.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(item.getId());
+        }
+        if (item.getExpiryDate() != null) {
+            byExpiry.add(new ExpiryEntry(item.getExpiryDate().toEpochDay(), item.getId()));
+        }
+        if (isLow(item)) {
+            lowStock.add(item.getId());
+        }
+    }
+
+    private void unindex(PharmacyItem item) {
+        for (String key : keys(item)) {
+            Set<String> posting = postings.get(key);
+            if (posting != null) {
+                posting.remove(item.getId());
+                if (posting.isEmpty()) {
+                    postings.remove(key, posting);
+                }
+            }
+        }
+        if (item.getExpiryDate() != null) {
+            byExpiry.remove(new ExpiryEntry(item.getExpiryDate().toEpochDay(), item.getId()));
+        }
+        lowStock.remove(item.getId());
+    }
+
+    private static Set<String> keys(PharmacyItem item) {
+        Set<String> keys = new HashSet<>();
+        for (String field : new String[]{item.getName(), item.getCategory(), item.getManufacturer()}) {
+            String text = normalize(field);
+            for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+                keys.add(text.substring(i, i + GRAM_LENGTH));
+            }
+        }
+        return keys;
+    }
+
+    private static int rank(PharmacyItem item, String term) {
+        String name = normalize(item.getName());
+        if (name.equals(term)) {
+            return 0;
+        }
+        if (name.startsWith(term)) {
+            return 1;
+        }
+        if (name.contains(" " + term)) {
+            return 2;
+        }
+        if (name.contains(term)) {
+            return 3;
+        }
+        if (normalize(item.getCategory()).contains(term) || normalize(item.getManufacturer()).contains(term)) {
+            return 4;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    private static PharmacyItem copyOf(PharmacyItem item) {
+        PharmacyItem copy = FirestorePharmacyItem.fromPharmacyItem(item).toPharmacyItem();
+        copy.setId(item.getId());
+        return copy;
+    }
+
+    private static final class ExpiryEntry implements Comparable<ExpiryEntry> {
+        private final long epochDay;
+        private final String id;
+
+        ExpiryEntry(long epochDay, String id) {
+            this.epochDay = epochDay;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(ExpiryEntry other) {
+            int byDay = Long.compare(epochDay, other.epochDay);
+            return byDay != 0 ? byDay : id.compareTo(other.id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ExpiryEntry && compareTo((ExpiryEntry) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(epochDay) * 31 + id.hashCode();
+        }
+    }
+
+    private static final class RankedItem {
+        private final PharmacyItem item;
+        private final int rank;
+        private final String sortName;
+
+        RankedItem(PharmacyItem item, int rank, String sortName) {
+            this.item = item;
+            this.rank = rank;
+            this.sortName = sortName;
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package com.cosmicdoc.opdmanagement.service;
 
 import com.cosmicdoc.opdmanagement.model.PharmacyItem;
+import com.cosmicdoc.opdmanagement.model.StockMovement;
 import com.cosmicdoc.opdmanagement.repository.PharmacyItemRepository;
 import com.cosmicdoc.opdmanagement.dto.PharmacyItemDTO;
+import com.cosmicdoc.opdmanagement.dto.StockMovementDTO;
 import com.cosmicdoc.opdmanagement.exception.ResourceNotFoundException;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -16,10 +23,22 @@ import java.util.stream.Collectors;
 @Service
 public class PharmacyItemService {
     private final PharmacyItemRepository pharmacyItemRepository;
+    private final PharmacyExpiryAlertJob pharmacyExpiryAlertJob;
+    private final PharmacyItemIndex pharmacyItemIndex;
+    private final LowStockFeed lowStockFeed;
+    private final ClinicClock clinicClock;
 
     @Autowired
-    public PharmacyItemService(PharmacyItemRepository pharmacyItemRepository) {
+    public PharmacyItemService(PharmacyItemRepository pharmacyItemRepository,
+                               PharmacyExpiryAlertJob pharmacyExpiryAlertJob,
+                               PharmacyItemIndex pharmacyItemIndex,
+                               LowStockFeed lowStockFeed,
+                               ClinicClock clinicClock) {
         this.pharmacyItemRepository = pharmacyItemRepository;
+        this.pharmacyExpiryAlertJob = pharmacyExpiryAlertJob;
+        this.pharmacyItemIndex = pharmacyItemIndex;
+        this.lowStockFeed = lowStockFeed;
+        this.clinicClock = clinicClock;
     }
 
     public List<PharmacyItemDTO> getAllPharmacyItems() {
@@ -52,18 +71,76 @@ public class PharmacyItemService {
                 .collect(Collectors.toList());
     }
 
+    public List<PharmacyItemDTO> getPharmacyItemsExpiringWithin(int days) {
+        LocalDate today = clinicClock.today();
+        return pharmacyItemRepository.findByExpiryDateBetween(today, today.plusDays(days)).stream()
+                .map(this::mapToDTO)
+                .collect(Collectors.toList());
+    }
+
+    public Map<String, Object> getExpiryAlertReport() {
+        return pharmacyExpiryAlertJob.getLatestReport();
+    }
+
+    public int migrateExpiryTimestamps() {
+        return pharmacyItemRepository.migrateExpiryTimestamps();
+    }
+
     public List<PharmacyItemDTO> getPharmacyItemsByNameContaining(String name) {
         return pharmacyItemRepository.findByNameContaining(name).stream()
                 .map(this::mapToDTO)
                 .collect(Collectors.toList());
     }
 
+    public List<PharmacyItemDTO> searchPharmacyItems(String query, int limit) {
+        return pharmacyItemRepository.search(query, limit).stream()
+                .map(this::mapToDTO)
+                .collect(Collectors.toList());
+    }
+
     public List<PharmacyItemDTO> getLowStockItems(int threshold) {
         return pharmacyItemRepository.findByStockQuantityLessThan(threshold).stream()
                 .map(this::mapToDTO)
                 .collect(Collectors.toList());
     }
 
+    public List<PharmacyItemDTO> getLowStockWatchlist() {
+        return pharmacyItemRepository.findLowStock().stream()
+                .map(this::mapToDTO)
+                .collect(Collectors.toList());
+    }
+
+    public Map<String, Object> getLowStockSummary() {
+        List<PharmacyItem> lowStockItems = pharmacyItemRepository.findLowStock();
+        
+        List<Map<String, Object>> items = new ArrayList<>();
+        int outOfStock = 0;
+        for (PharmacyItem item : lowStockItems) {
+            int stock = item.getStockQuantity() != null ? item.getStockQuantity() : 0;
+            int reorderLevel = pharmacyItemIndex.reorderLevel(item);
+            if (stock <= 0) {
+                outOfStock++;
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("id", item.getId());
+            entry.put("name", item.getName());
+            entry.put("stockQuantity", stock);
+            entry.put("reorderLevel", reorderLevel);
+            entry.put("shortfall", reorderLevel - stock);
+            items.add(entry);
+        }
+        
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("lowStockCount", lowStockItems.size());
+        summary.put("outOfStockCount", outOfStock);
+        summary.put("items", items);
+        return summary;
+    }
+
+    public SseEmitter subscribeToLowStock() {
+        return lowStockFeed.subscribe();
+    }
+
     public List<PharmacyItemDTO> getItemsByPrescriptionRequirement(boolean requiresPrescription) {
         return pharmacyItemRepository.findByRequiresPrescription(requiresPrescription).stream()
                 .map(this::mapToDTO)
@@ -104,20 +181,24 @@ public class PharmacyItemService {
     }
 
     public PharmacyItemDTO updateStock(String id, int quantity) {
-        // Get existing pharmacy item
-        PharmacyItem item = pharmacyItemRepository.findById(id)
-            .orElseThrow(() -> new ResourceNotFoundException("Pharmacy item not found with id: " + id));
-        
-        // Update stock quantity
-        item.setStockQuantity(quantity);
-        
-        // Save updated pharmacy item
-        PharmacyItem savedItem = pharmacyItemRepository.save(item);
+        // Set the absolute quantity in a transaction, writing only the stock field
+        PharmacyItem savedItem = pharmacyItemRepository.setStockQuantity(id, quantity);
         
         // Return mapped DTO
         return mapToDTO(savedItem);
     }
 
+    public List<PharmacyItemDTO> applyStockMovements(List<StockMovementDTO> movementDTOs) {
+        // Apply all movements (e.g. one cash memo's dispense list) in a single commit
+        List<StockMovement> movements = movementDTOs.stream()
+                .map(this::mapToMovement)
+                .collect(Collectors.toList());
+        
+        return pharmacyItemRepository.applyStockMovements(movements).stream()
+                .map(this::mapToDTO)
+                .collect(Collectors.toList());
+    }
+
     public void deletePharmacyItem(String id) {
         // Check if pharmacy item exists
         if (!pharmacyItemRepository.existsById(id)) {
@@ -139,6 +220,7 @@ public class PharmacyItemService {
         dto.setBatchNumber(item.getBatchNumber());
         dto.setPrice(item.getPrice());
         dto.setStockQuantity(item.getStockQuantity());
+        dto.setReorderLevel(item.getReorderLevel());
         dto.setExpiryDate(item.getExpiryDate());
         dto.setRequiresPrescription(item.getRequiresPrescription());
         dto.setCategory(item.getCategory());
@@ -146,7 +228,17 @@ public class PharmacyItemService {
         return dto;
     }
 
-    private PharmacyItem mapToEntity(PharmacyItemDTO dto) {
+    private StockMovement mapToMovement(StockMovementDTO dto) {
+        StockMovement movement = new StockMovement();
+        movement.setItemId(dto.getItemId());
+        movement.setDelta(dto.getDelta());
+        movement.setReason(dto.getReason());
+        movement.setReferenceId(dto.getReferenceId());
+        movement.setCreatedBy(dto.getCreatedBy());
+        return movement;
+    }
+
+    PharmacyItem mapToEntity(PharmacyItemDTO dto) {
         PharmacyItem item = new PharmacyItem();
         item.setId(dto.getId());
         item.setName(dto.getName());
@@ -156,6 +248,7 @@ public class PharmacyItemService {
         item.setBatchNumber(dto.getBatchNumber());
         item.setPrice(dto.getPrice());
         item.setStockQuantity(dto.getStockQuantity());
+        item.setReorderLevel(dto.getReorderLevel());
         item.setExpiryDate(dto.getExpiryDate());
         item.setRequiresPrescription(dto.getRequiresPrescription());
         item.setCategory(dto.getCategory());
@@ -19,11 +19,14 @@ public class ReceiptService {
 
     private final ReceiptRepository receiptRepository;
     private final InvoiceService invoiceService;
+    private final PatientLedgerService patientLedgerService;
 
     @Autowired
-    public ReceiptService(ReceiptRepository receiptRepository, InvoiceService invoiceService) {
+    public ReceiptService(ReceiptRepository receiptRepository, InvoiceService invoiceService,
+                          PatientLedgerService patientLedgerService) {
         this.receiptRepository = receiptRepository;
         this.invoiceService = invoiceService;
+        this.patientLedgerService = patientLedgerService;
     }
 
     /**
@@ -51,6 +54,7 @@ public class ReceiptService {
         
         // Save the receipt first
         Receipt savedReceipt = receiptRepository.save(receipt);
+        patientLedgerService.recordReceipt(savedReceipt);
         
         // If this receipt is linked to an invoice, update the invoice status to PAID
         if (receipt.getInvoiceId() != null && !receipt.getInvoiceId().isEmpty()) {
@@ -179,7 +183,9 @@ public class ReceiptService {
         }
         
         receipt.setReceiptId(id);
-        return receiptRepository.save(receipt);
+        Receipt savedReceipt = receiptRepository.save(receipt);
+        patientLedgerService.recordReceipt(savedReceipt);
+        return savedReceipt;
     }
 
     /**
@@ -190,6 +196,7 @@ public class ReceiptService {
     public void deleteReceipt(String id) {
         log.info("Deleting receipt with ID: {}", id);
         receiptRepository.delete(id);
+        patientLedgerService.removeReceipt(id);
     }
 
     /**
@@ -17,10 +17,12 @@ import java.util.Optional;
 public class RefundService {
 
     private final RefundRepository refundRepository;
+    private final PatientLedgerService patientLedgerService;
 
     @Autowired
-    public RefundService(RefundRepository refundRepository) {
+    public RefundService(RefundRepository refundRepository, PatientLedgerService patientLedgerService) {
         this.refundRepository = refundRepository;
+        this.patientLedgerService = patientLedgerService;
     }
 
     /**
@@ -31,7 +33,9 @@ public class RefundService {
      */
     public Refund createRefund(Refund refund) {
         log.info("Creating refund for patient: {}", refund.getPatientId());
-        return refundRepository.save(refund);
+        Refund savedRefund = refundRepository.save(refund);
+        patientLedgerService.recordRefund(savedRefund);
+        return savedRefund;
     }
 
     /**
@@ -86,7 +90,9 @@ public class RefundService {
             updatedRefund.setRefundId(existingRefund.getRefundId());
         }
         
-        return refundRepository.save(updatedRefund);
+        Refund savedRefund = refundRepository.save(updatedRefund);
+        patientLedgerService.recordRefund(savedRefund);
+        return savedRefund;
     }
 
     /**
@@ -97,5 +103,6 @@ public class RefundService {
     public void deleteRefund(String id) {
         log.info("Deleting refund with ID: {}", id);
         refundRepository.delete(id);
+        patientLedgerService.removeRefund(id);
     }
 }
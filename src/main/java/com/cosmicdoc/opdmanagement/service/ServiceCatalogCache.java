@@ -0,0 +1,320 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.model.FirestoreService;
+import com.cosmicdoc.opdmanagement.model.LineItem;
+import com.cosmicdoc.opdmanagement.model.Service;
+import com.cosmicdoc.opdmanagement.util.ResilientSnapshotListener;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QuerySnapshot;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * In-memory snapshot of the services collection.
+ *
+ * The catalog is small and rarely changes, so it is loaded once and then kept current by
+ * a snapshot listener (changes made by other instances) and by write-through calls from
+ * ServiceManagementServiceImpl (changes made here). If the listener fails, the snapshot is
+ * dropped so reads reload it, and the listener is registered again with backoff. Readers
+ * get copies, so callers can never mutate the shared snapshot.
+ *
+ * Every snapshot carries an n-gram index (1 to 3 characters) over service name and group,
+ * rebuilt whenever the snapshot is replaced, so typeahead search never scans the catalog.
+ */
+@Component
+@Slf4j
+public class ServiceCatalogCache {
+
+    private static final String COLLECTION_NAME = "services";
+    private static final int MAX_GRAM_LENGTH = 3;
+
+    private final Firestore firestore;
+
+    // Immutable catalog replaced on every change; null until first load
+    private volatile Catalog snapshot;
+    private ResilientSnapshotListener listener;
+
+    @Autowired
+    public ServiceCatalogCache(Firestore firestore) {
+        this.firestore = firestore;
+    }
+
+    @PostConstruct
+    public void startListening() {
+        listener = new ResilientSnapshotListener("service-catalog", firestore.collection(COLLECTION_NAME),
+                (querySnapshot, initial) -> {
+                    Map<String, Service> services = toServiceMap(querySnapshot);
+                    replaceSnapshot(services);
+                    log.debug("Service catalog refreshed from listener: {} services", services.size());
+                },
+                this::invalidate);
+        listener.start();
+    }
+
+    @PreDestroy
+    public void stopListening() {
+        if (listener != null) {
+            listener.stop();
+        }
+    }
+
+    /**
+     * Get a service by ID from the catalog snapshot
+     *
+     * @param id Service ID
+     * @return Copy of the service if present
+     */
+    public Optional<Service> findById(String id) {
+        if (id == null || id.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(getSnapshot().services.get(id)).map(ServiceCatalogCache::copyOf);
+    }
+
+    /**
+     * Get every service in the catalog snapshot
+     *
+     * @return Copies of all services
+     */
+    public List<Service> findAll() {
+        List<Service> services = new ArrayList<>();
+        for (Service service : getSnapshot().services.values()) {
+            services.add(copyOf(service));
+        }
+        return services;
+    }
+
+    /**
+     * Ranked search over service name and group.
+     *
+     * Ranking: exact name, name prefix, word prefix inside the name, substring of the name,
+     * then group matches; ties are ordered by name.
+     *
+     * @param query Search text, case-insensitive
+     * @param limit Maximum number of results, or 0 for no limit
+     * @return Copies of the matching services in rank order
+     */
+    public List<Service> search(String query, int limit) {
+        String term = normalize(query);
+        if (term.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Catalog catalog = getSnapshot();
+        List<Service> ranked = new ArrayList<>();
+        for (String id : catalog.candidates(term)) {
+            Service service = catalog.services.get(id);
+            if (service != null && rank(service, term) < Integer.MAX_VALUE) {
+                ranked.add(service);
+            }
+        }
+
+        ranked.sort(Comparator.<Service>comparingInt(service -> rank(service, term))
+                .thenComparing(service -> normalize(service.getName())));
+
+        List<Service> results = new ArrayList<>();
+        for (Service service : ranked) {
+            if (limit > 0 && results.size() >= limit) {
+                break;
+            }
+            results.add(copyOf(service));
+        }
+        return results;
+    }
+
+    /**
+     * Populates service names for line items based on their serviceId, falling back to the
+     * line item description when the service is unknown
+     *
+     * @param lineItems List of line items to populate service names for
+     */
+    public void populateServiceNames(List<LineItem> lineItems) {
+        if (lineItems == null || lineItems.isEmpty()) {
+            return;
+        }
+
+        Map<String, Service> services = getSnapshot().services;
+        for (LineItem item : lineItems) {
+            Service service = item.getServiceId() != null ? services.get(item.getServiceId()) : null;
+            if (service != null) {
+                item.setServiceName(service.getName());
+            } else if (item.getDescription() != null && !item.getDescription().isEmpty()) {
+                item.setServiceName(item.getDescription());
+            }
+        }
+    }
+
+    /**
+     * Write-through after a service is created or updated
+     */
+    public synchronized void put(Service service) {
+        if (snapshot == null || service == null || service.getId() == null) {
+            return;
+        }
+        Map<String, Service> updated = new HashMap<>(snapshot.services);
+        updated.put(service.getId(), copyOf(service));
+        replaceSnapshot(updated);
+    }
+
+    /**
+     * Write-through after a service is deleted
+     */
+    public synchronized void remove(String id) {
+        if (snapshot == null || id == null) {
+            return;
+        }
+        Map<String, Service> updated = new HashMap<>(snapshot.services);
+        updated.remove(id);
+        replaceSnapshot(updated);
+    }
+
+    /**
+     * Drop the snapshot so the next read reloads it from Firestore
+     */
+    public synchronized void invalidate() {
+        snapshot = null;
+    }
+
+    private Catalog getSnapshot() {
+        Catalog current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                replaceSnapshot(load());
+            }
+            return snapshot;
+        }
+    }
+
+    private Map<String, Service> load() {
+        try {
+            log.info("Loading service catalog");
+            return toServiceMap(firestore.collection(COLLECTION_NAME).get().get());
+        } catch (ExecutionException e) {
+            log.error("Error loading service catalog", e);
+            throw new RuntimeException("Failed to load service catalog: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted loading service catalog", e);
+        }
+    }
+
+    private synchronized void replaceSnapshot(Map<String, Service> services) {
+        snapshot = new Catalog(services);
+    }
+
+    private static Map<String, Service> toServiceMap(QuerySnapshot querySnapshot) {
+        Map<String, Service> services = new HashMap<>();
+        for (DocumentSnapshot document : querySnapshot.getDocuments()) {
+            FirestoreService firestoreService = document.toObject(FirestoreService.class);
+            if (firestoreService != null) {
+                Service service = firestoreService.toService();
+                services.put(service.getId(), service);
+            }
+        }
+        return services;
+    }
+
+    private static int rank(Service service, String term) {
+        String name = normalize(service.getName());
+        if (name.equals(term)) {
+            return 0;
+        }
+        if (name.startsWith(term)) {
+            return 1;
+        }
+        if (name.contains(" " + term)) {
+            return 2;
+        }
+        if (name.contains(term)) {
+            return 3;
+        }
+        if (normalize(service.getGroup()).contains(term)) {
+            return 4;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Immutable services map plus the n-gram index built from it
+     */
+    private static final class Catalog {
+        private final Map<String, Service> services;
+        private final Map<String, Set<String>> gramIndex;
+
+        Catalog(Map<String, Service> services) {
+            this.services = Collections.unmodifiableMap(services);
+            this.gramIndex = buildIndex(services);
+        }
+
+        /**
+         * Services that contain every n-gram of the term; a superset of the real matches,
+         * which rank() then verifies
+         */
+        Set<String> candidates(String term) {
+            if (term.length() <= MAX_GRAM_LENGTH) {
+                return gramIndex.getOrDefault(term, Collections.emptySet());
+            }
+
+            Set<String> result = null;
+            for (int i = 0; i + MAX_GRAM_LENGTH <= term.length(); i++) {
+                Set<String> postings = gramIndex.getOrDefault(term.substring(i, i + MAX_GRAM_LENGTH),
+                        Collections.emptySet());
+                if (result == null) {
+                    result = new HashSet<>(postings);
+                } else {
+                    result.retainAll(postings);
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        private static Map<String, Set<String>> buildIndex(Map<String, Service> services) {
+            Map<String, Set<String>> index = new HashMap<>();
+            for (Service service : services.values()) {
+                addGrams(index, normalize(service.getName()), service.getId());
+                addGrams(index, normalize(service.getGroup()), service.getId());
+            }
+            return index;
+        }
+
+        private static void addGrams(Map<String, Set<String>> index, String text, String id) {
+            for (int start = 0; start < text.length(); start++) {
+                for (int length = 1; length <= MAX_GRAM_LENGTH && start + length <= text.length(); length++) {
+                    index.computeIfAbsent(text.substring(start, start + length), k -> new HashSet<>()).add(id);
+                }
+            }
+        }
+    }
+
+    private static Service copyOf(Service service) {
+        return new Service(service.getId(), service.getName(), service.getDescription(), service.getGroup(),
+                service.getRate(), service.isActive(), service.getCreatedAt(), service.getUpdatedAt(),
+                service.getCreatedBy(), service.getUpdatedBy());
+    }
+}
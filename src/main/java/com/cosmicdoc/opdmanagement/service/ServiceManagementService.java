@@ -73,4 +73,13 @@ public interface ServiceManagementService {
      * @return List of matching services
      */
     List<Service> searchServicesByName(String name);
+    
+    /**
+     * Ranked search for services by name or group, best matches first
+     *
+     * @param name Text to search for
+     * @param limit Maximum number of results, or 0 for no limit
+     * @return List of matching services
+     */
+    List<Service> searchServicesByName(String name, int limit);
 }
@@ -0,0 +1,261 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background migration that numbers the tokens of existing appointments.
+ *
+ * Appointments are processed one day at a time: each day is read with one range query,
+ * grouped by doctor, ordered by appointment time and numbered from 1. Token fields are set
+ * with field-level updates in WriteBatches of up to 500 writes. The last batch of a day also
+ * records that day in a checkpoint document, so an interrupted run resumes at the next day.
+ * Token statuses that are already set (CURRENT, COMPLETED, SKIPPED...) are kept.
+ */
+@Component
+@Slf4j
+public class TokenInitializationJob {
+
+    private static final String COLLECTION_NAME = "appointments";
+    private static final String CHECKPOINT_COLLECTION = "migration_checkpoints";
+    private static final String CHECKPOINT_ID = "token-initialization";
+    private static final int MAX_BATCH_WRITES = 500;
+
+    private final Firestore firestore;
+    private final ClinicClock clinicClock;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private ExecutorService executor;
+
+    // Progress of the current or last run
+    private volatile String state = "IDLE";
+    private volatile LocalDate firstDay;
+    private volatile LocalDate lastDay;
+    private volatile LocalDate currentDay;
+    private volatile long daysProcessed;
+    private volatile long appointmentsUpdated;
+    private volatile long batchesCommitted;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+
+    @Autowired
+    public TokenInitializationJob(Firestore firestore, ClinicClock clinicClock) {
+        this.firestore = firestore;
+        this.clinicClock = clinicClock;
+    }
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "token-initialization");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start the migration in the background
+     *
+     * @param restart Ignore the checkpoint and start from the earliest appointment
+     * @return false if a run is already in progress
+     */
+    public boolean submit(boolean restart) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        state = "QUEUED";
+        error = null;
+        firstDay = null;
+        lastDay = null;
+        daysProcessed = 0;
+        appointmentsUpdated = 0;
+        batchesCommitted = 0;
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        executor.submit(() -> run(restart));
+        return true;
+    }
+
+    /**
+     * Progress and throughput of the current or last run
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", state);
+        status.put("firstDay", firstDay != null ? firstDay.toString() : null);
+        status.put("lastDay", lastDay != null ? lastDay.toString() : null);
+        status.put("currentDay", currentDay != null ? currentDay.toString() : null);
+        status.put("totalDays", firstDay != null && lastDay != null ? ChronoUnit.DAYS.between(firstDay, lastDay) + 1 : 0);
+        status.put("daysProcessed", daysProcessed);
+        status.put("appointmentsUpdated", appointmentsUpdated);
+        status.put("batchesCommitted", batchesCommitted);
+        long elapsedMs = startedAt == 0 ? 0 : (finishedAt > 0 ? finishedAt : System.currentTimeMillis()) - startedAt;
+        status.put("elapsedMs", elapsedMs);
+        status.put("appointmentsPerSecond", elapsedMs > 0 ? appointmentsUpdated * 1000 / elapsedMs : 0);
+        if (error != null) {
+            status.put("error", error);
+        }
+        return status;
+    }
+
+    private void run(boolean restart) {
+        state = "RUNNING";
+        try {
+            LocalDate earliest = boundaryDay(Query.Direction.ASCENDING);
+            LocalDate latest = boundaryDay(Query.Direction.DESCENDING);
+            if (earliest == null || latest == null) {
+                state = "COMPLETED";
+                return;
+            }
+            LocalDate resumeAfter = restart ? null : checkpoint();
+            firstDay = resumeAfter != null && !resumeAfter.isBefore(earliest) ? resumeAfter.plusDays(1) : earliest;
+            lastDay = latest;
+            log.info("Initializing tokens for appointments from {} to {}", firstDay, lastDay);
+
+            for (LocalDate day = firstDay; !day.isAfter(lastDay); day = day.plusDays(1)) {
+                currentDay = day;
+                processDay(day);
+                daysProcessed++;
+            }
+            state = "COMPLETED";
+            log.info("Token initialization updated {} appointments over {} days in {} batches",
+                    appointmentsUpdated, daysProcessed, batchesCommitted);
+        } catch (InterruptedException e) {
+            state = "FAILED";
+            error = "Interrupted";
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Token initialization failed on {}", currentDay, e);
+            state = "FAILED";
+            error = e.getMessage();
+        } finally {
+            currentDay = null;
+            finishedAt = System.currentTimeMillis();
+            running.set(false);
+        }
+    }
+
+    private void processDay(LocalDate day) throws InterruptedException, ExecutionException {
+        ClinicClock.Range range = clinicClock.dayRange(day);
+        List<QueryDocumentSnapshot> documents = firestore.collection(COLLECTION_NAME)
+                .whereGreaterThanOrEqualTo("appointmentDate", range.getStart())
+                .whereLessThan("appointmentDate", range.getEnd())
+                .get().get().getDocuments();
+
+        Map<String, List<QueryDocumentSnapshot>> byDoctor = new HashMap<>();
+        for (QueryDocumentSnapshot document : documents) {
+            String doctorId = document.getString("doctorId");
+            if (doctorId != null) {
+                byDoctor.computeIfAbsent(doctorId, id -> new ArrayList<>()).add(document);
+            }
+        }
+
+        String tokenTime = clinicClock.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        WriteBatch batch = firestore.batch();
+        int pending = 0;
+        for (List<QueryDocumentSnapshot> appointments : byDoctor.values()) {
+            // Same ordering on every run, so re-running a day assigns the same tokens
+            appointments.sort(Comparator
+                    .comparing((QueryDocumentSnapshot document) -> document.getTimestamp("appointmentDate"))
+                    .thenComparing(DocumentSnapshot::getId));
+            int token = 0;
+            for (QueryDocumentSnapshot appointment : appointments) {
+                token++;
+                if (pending == MAX_BATCH_WRITES) {
+                    commit(batch, pending);
+                    batch = firestore.batch();
+                    pending = 0;
+                }
+                batch.update(appointment.getReference(), tokenFields(appointment, token, tokenTime));
+                pending++;
+            }
+        }
+
+        // The day's last batch carries the checkpoint, so the day is recorded only once fully written
+        if (pending == MAX_BATCH_WRITES) {
+            commit(batch, pending);
+            batch = firestore.batch();
+            pending = 0;
+        }
+        Map<String, Object> checkpoint = new HashMap<>();
+        checkpoint.put("lastCompletedDay", day.toString());
+        checkpoint.put("updatedAt", FieldValue.serverTimestamp());
+        batch.set(firestore.collection(CHECKPOINT_COLLECTION).document(CHECKPOINT_ID), checkpoint);
+        commit(batch, pending);
+    }
+
+    private static Map<String, Object> tokenFields(DocumentSnapshot appointment, int token, String tokenTime) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("tokenNumber", token);
+        fields.put("tokenOrder", token);
+        if (appointment.getString("tokenStatus") == null) {
+            fields.put("tokenStatus", "WAITING");
+        }
+        if (appointment.getString("tokenTime") == null) {
+            fields.put("tokenTime", tokenTime);
+        }
+        String patientName = appointment.getString("patientName");
+        if (patientName == null || patientName.isEmpty()) {
+            fields.put("patientName", "Patient #" + appointment.getString("userId"));
+        }
+        fields.put("updatedAt", FieldValue.serverTimestamp());
+        return fields;
+    }
+
+    private void commit(WriteBatch batch, int appointmentWrites) throws InterruptedException, ExecutionException {
+        batch.commit().get();
+        batchesCommitted++;
+        appointmentsUpdated += appointmentWrites;
+    }
+
+    /**
+     * Day of the earliest or latest appointment, or null when there are none
+     */
+    private LocalDate boundaryDay(Query.Direction direction) throws InterruptedException, ExecutionException {
+        List<QueryDocumentSnapshot> documents = firestore.collection(COLLECTION_NAME)
+                .orderBy("appointmentDate", direction)
+                .limit(1)
+                .get().get().getDocuments();
+        if (documents.isEmpty()) {
+            return null;
+        }
+        Timestamp timestamp = documents.get(0).getTimestamp("appointmentDate");
+        return timestamp != null ? clinicClock.toLocalDate(timestamp) : null;
+    }
+
+    private LocalDate checkpoint() throws InterruptedException, ExecutionException {
+        DocumentSnapshot document = firestore.collection(CHECKPOINT_COLLECTION).document(CHECKPOINT_ID).get().get();
+        String day = document.exists() ? document.getString("lastCompletedDay") : null;
+        return day != null ? LocalDate.parse(day) : null;
+    }
+}
@@ -1,6 +1,8 @@
 package com.cosmicdoc.opdmanagement.service;
 
 import com.cosmicdoc.opdmanagement.dto.AppointmentDTO;
+import com.cosmicdoc.opdmanagement.dto.QueueAdvanceDTO;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -16,14 +18,19 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class TokenService {
 
     private final AppointmentService appointmentService;
+    private final VisitHistoryPipeline visitHistoryPipeline;
+    private final ClinicClock clinicClock;
     
     // Use a map to track token counters per doctor per date
     private java.util.Map<String, AtomicInteger> doctorDateTokenCounters = new java.util.HashMap<>();
     private LocalDate lastTokenDate = null;
 
     @Autowired
-    public TokenService(AppointmentService appointmentService) {
+    public TokenService(AppointmentService appointmentService, VisitHistoryPipeline visitHistoryPipeline,
+                        ClinicClock clinicClock) {
         this.appointmentService = appointmentService;
+        this.visitHistoryPipeline = visitHistoryPipeline;
+        this.clinicClock = clinicClock;
         
         // Initialize the counter based on existing appointments for today
         resetTokenCounterIfNeeded();
@@ -59,7 +66,7 @@ public class TokenService {
     public int generateTokenForToday() {
         resetTokenCounterIfNeeded();
         // Use current date and a default doctor ID (this method should be deprecated)
-        return generateTokenForDoctor("default", LocalDate.now());
+        return generateTokenForDoctor("default", clinicClock.today());
     }
 
     /**
@@ -89,7 +96,7 @@ public class TokenService {
      * Reset token counters if date changes
      */
     private void resetTokenCounterIfNeeded() {
-        LocalDate today = LocalDate.now();
+        LocalDate today = clinicClock.today();
         if (lastTokenDate == null || !lastTokenDate.equals(today)) {
             // Only clear counters if the date has changed
             doctorDateTokenCounters.clear();
@@ -136,7 +143,7 @@ public class TokenService {
                 appointment.getDoctorId());
         
         // Filter to today's appointments
-        LocalDate today = LocalDate.now();
+        LocalDate today = clinicClock.today();
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
         
         long queuePosition = doctorAppointments.stream()
@@ -156,7 +163,7 @@ public class TokenService {
         List<AppointmentDTO> appointments = appointmentService.getAppointmentsByDoctorId(doctorId);
         
         // Filter to today's appointments with CURRENT token status
-        LocalDate today = LocalDate.now();
+        LocalDate today = clinicClock.today();
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
         
         return appointments.stream()
@@ -176,7 +183,7 @@ public class TokenService {
         List<AppointmentDTO> appointments = appointmentService.getAppointmentsByDoctorId(doctorId);
         
         // Filter to today's appointments with WAITING token status
-        LocalDate today = LocalDate.now();
+        LocalDate today = clinicClock.today();
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
         
         return appointments.stream()
@@ -209,26 +216,22 @@ public class TokenService {
      * @return the next active token, or null if none
      */
     public AppointmentDTO completeCurrentToken(String doctorId) {
-        AppointmentDTO currentToken = getCurrentToken(doctorId);
-        
-        if (currentToken != null) {
-            // Mark current token as completed
-            currentToken.setTokenStatus("COMPLETED");
-            currentToken.setStatus("COMPLETED");
-            appointmentService.updateAppointment(currentToken.getAppointmentId(), currentToken);
-        }
-        
-        // Find and activate the next token
-        AppointmentDTO nextToken = getNextToken(doctorId);
+        return advanceQueue(doctorId, false).getCurrent();
+    }
+    
+    /**
+     * Finish the current token and activate the next one as a single transaction
+     * @param skip Mark the current token SKIPPED instead of COMPLETED
+     * @return the finished and the newly active token
+     */
+    public QueueAdvanceDTO advanceQueue(String doctorId, boolean skip) {
+        QueueAdvanceDTO advance = appointmentService.advanceTokenQueue(doctorId, skip);
         
-        if (nextToken != null) {
-            nextToken.setTokenStatus("CURRENT");
-            nextToken.setStatus("ENGAGED");
-            appointmentService.updateAppointment(nextToken.getAppointmentId(), nextToken);
-            return nextToken;
+        // The visit history is written in the background
+        if (!skip && advance.getFinished() != null) {
+            visitHistoryPipeline.publish(advance.getFinished());
         }
-        
-        return null;
+        return advance;
     }
     
     /**
@@ -236,25 +239,7 @@ public class TokenService {
      * @return the next active token, or null if none
      */
     public AppointmentDTO skipCurrentToken(String doctorId) {
-        AppointmentDTO currentToken = getCurrentToken(doctorId);
-        
-        if (currentToken != null) {
-            // Mark current token as skipped
-            currentToken.setTokenStatus("SKIPPED");
-            appointmentService.updateAppointment(currentToken.getAppointmentId(), currentToken);
-        }
-        
-        // Find and activate the next token
-        AppointmentDTO nextToken = getNextToken(doctorId);
-        
-        if (nextToken != null) {
-            nextToken.setTokenStatus("CURRENT");
-            nextToken.setStatus("ENGAGED");
-            appointmentService.updateAppointment(nextToken.getAppointmentId(), nextToken);
-            return nextToken;
-        }
-        
-        return null;
+        return advanceQueue(doctorId, true).getCurrent();
     }
     
     // This duplicate method has been removed as it's already defined above
@@ -0,0 +1,233 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.dto.AppointmentDTO;
+import com.cosmicdoc.opdmanagement.model.Doctor;
+import com.cosmicdoc.opdmanagement.model.VisitHistory;
+import com.cosmicdoc.opdmanagement.repository.VisitHistoryRepository;
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Creates a visit history for every appointment completed at the token desk.
+ *
+ * TokenService publishes completed appointments into a bounded in-memory queue and returns
+ * straight away. One consumer thread drains the queue in batches and writes each batch with
+ * a single commit, retrying with exponential backoff. When the queue stays full for a moment,
+ * the publishing request writes its own visit instead, so a slow Firestore slows the desk
+ * down rather than losing visits. Visit IDs are derived from the appointment ID, which makes
+ * retries and repeated completions overwrite rather than duplicate.
+ */
+@Component
+@Slf4j
+public class VisitHistoryPipeline {
+
+    private static final String VISIT_ID_PREFIX = "appt-";
+    private static final long BASE_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30 * 1000;
+    private static final long POLL_INTERVAL_MS = 1000;
+    // How long a publisher waits for queue space before writing the visit itself
+    private static final long OFFER_TIMEOUT_MS = 50;
+
+    private final VisitHistoryRepository visitHistoryRepository;
+    private final DoctorRosterIndex doctorRosterIndex;
+    private final ClinicClock clinicClock;
+    private final BlockingQueue<VisitHistory> queue;
+    private final int batchSize;
+    private final int maxAttempts;
+    private volatile boolean running;
+    private Thread consumer;
+
+    // Metrics
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong writtenInline = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    @Autowired
+    public VisitHistoryPipeline(VisitHistoryRepository visitHistoryRepository, DoctorRosterIndex doctorRosterIndex,
+                                ClinicClock clinicClock,
+                                @Value("${app.visit-history.pipeline.queue-capacity:1000}") int queueCapacity,
+                                @Value("${app.visit-history.pipeline.batch-size:50}") int batchSize,
+                                @Value("${app.visit-history.pipeline.max-attempts:5}") int maxAttempts) {
+        this.visitHistoryRepository = visitHistoryRepository;
+        this.doctorRosterIndex = doctorRosterIndex;
+        this.clinicClock = clinicClock;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        // WriteBatch holds at most 500 writes
+        this.batchSize = Math.max(1, Math.min(500, batchSize));
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        consumer = new Thread(this::consume, "visit-history-pipeline");
+        consumer.setDaemon(true);
+        consumer.start();
+        log.info("Visit history pipeline started, batch size {}", batchSize);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        consumer.interrupt();
+        try {
+            consumer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // One last attempt for whatever is still queued
+        List<VisitHistory> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        for (int start = 0; start < remaining.size(); start += batchSize) {
+            writeOnce(remaining.subList(start, Math.min(remaining.size(), start + batchSize)));
+        }
+    }
+
+    /**
+     * Queue a visit history for an appointment that was just completed
+     *
+     * @param appointment The completed appointment
+     */
+    public void publish(AppointmentDTO appointment) {
+        if (appointment == null || appointment.getAppointmentId() == null || appointment.getPatientId() == null) {
+            return;
+        }
+        VisitHistory visit = toVisitHistory(appointment);
+        published.incrementAndGet();
+        boolean interrupted = false;
+        try {
+            if (queue.offer(visit, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            // Restored after the inline write, which would otherwise fail straight away
+            interrupted = true;
+        }
+        // Queue still full: write on the caller's thread instead of dropping the visit
+        try {
+            visitHistoryRepository.save(visit);
+            writtenInline.incrementAndGet();
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            log.error("Could not create visit history for appointment {}: {}", appointment.getAppointmentId(), e.getMessage());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Pipeline throughput and backlog metrics
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("published", published.get());
+        stats.put("written", written.get());
+        stats.put("writtenInline", writtenInline.get());
+        stats.put("retries", retries.get());
+        stats.put("failed", failed.get());
+        stats.put("queued", queue.size());
+        stats.put("queueCapacity", queue.size() + queue.remainingCapacity());
+        stats.put("batchSize", batchSize);
+        return stats;
+    }
+
+    private void consume() {
+        List<VisitHistory> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                VisitHistory first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                // stop() interrupts to end the loop; give the batch in hand one last try
+                if (!batch.isEmpty()) {
+                    writeOnce(batch);
+                }
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write one batch, backing off between attempts
+     */
+    private void write(List<VisitHistory> batch) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                visitHistoryRepository.saveAll(batch);
+                written.addAndGet(batch.size());
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= maxAttempts) {
+                    failed.addAndGet(batch.size());
+                    log.error("Giving up on visit histories for appointments {} after {} attempts: {}",
+                            appointmentIds(batch), attempt, e.getMessage());
+                    return;
+                }
+                retries.incrementAndGet();
+                long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << (attempt - 1));
+                log.warn("Visit history batch of {} failed, retrying in {} ms: {}", batch.size(), backoff, e.getMessage());
+                Thread.sleep(backoff);
+            }
+        }
+    }
+
+    private void writeOnce(List<VisitHistory> batch) {
+        try {
+            visitHistoryRepository.saveAll(batch);
+            written.addAndGet(batch.size());
+        } catch (RuntimeException e) {
+            failed.addAndGet(batch.size());
+            log.error("Dropping visit histories for appointments {} at shutdown: {}", appointmentIds(batch), e.getMessage());
+        }
+    }
+
+    private VisitHistory toVisitHistory(AppointmentDTO appointment) {
+        LocalDate visitDate = appointment.getAppointmentDateTime() != null
+                ? appointment.getAppointmentDateTime().toLocalDate() : clinicClock.today();
+        String doctorName = doctorRosterIndex.findById(appointment.getDoctorId())
+                .map(Doctor::getName)
+                .orElse(null);
+        return VisitHistory.builder()
+                .id(VISIT_ID_PREFIX + appointment.getAppointmentId())
+                .patientId(appointment.getPatientId())
+                .visitDate(visitDate.toString())
+                .doctorId(appointment.getDoctorId())
+                .doctorName(doctorName)
+                .notes(appointment.getNotes())
+                .build();
+    }
+
+    private static String appointmentIds(List<VisitHistory> batch) {
+        return batch.stream()
+                .map(visit -> visit.getId().substring(VISIT_ID_PREFIX.length()))
+                .collect(Collectors.joining(", "));
+    }
+}
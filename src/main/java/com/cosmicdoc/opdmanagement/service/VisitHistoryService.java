@@ -1,6 +1,7 @@
 package com.cosmicdoc.opdmanagement.service;
 
 import com.cosmicdoc.opdmanagement.dto.VisitHistoryDTO;
+import com.cosmicdoc.opdmanagement.dto.VisitTimelineDTO;
 import com.cosmicdoc.opdmanagement.response.ApiResponse;
 
 import java.util.List;
@@ -11,6 +12,10 @@ public interface VisitHistoryService {
     
     ApiResponse<List<VisitHistoryDTO>> getVisitHistoryByPatientId(String patientId);
     
+    ApiResponse<VisitTimelineDTO> getVisitTimeline(String patientId, int limit, String cursor, boolean summary);
+    
+    ApiResponse<Integer> migrateVisitTimestamps();
+    
     ApiResponse<VisitHistoryDTO> createVisitHistory(VisitHistoryDTO visitHistoryDTO);
     
     ApiResponse<VisitHistoryDTO> updateVisitHistory(String id, VisitHistoryDTO visitHistoryDTO);
@@ -48,17 +48,15 @@ public class MedicalHistoryServiceImpl implements MedicalHistoryService {
     
     @Override
     public ApiResponse<MedicalHistoryDTO> createMedicalHistory(MedicalHistoryDTO medicalHistoryDTO) {
-        // Check if medical history already exists for the patient
-        Optional<MedicalHistory> existingHistory = medicalHistoryRepository.findByPatientId(medicalHistoryDTO.getPatientId());
-        if (existingHistory.isPresent()) {
-            return ApiResponse.error("Medical history already exists for this patient. Use update instead.");
-        }
-        
         MedicalHistory medicalHistory = convertToEntity(medicalHistoryDTO);
         medicalHistory.setLastUpdated(LocalDateTime.now());
         
-        MedicalHistory savedHistory = medicalHistoryRepository.save(medicalHistory);
-        return ApiResponse.success("Medical history created successfully", convertToDTO(savedHistory));
+        // The repository enforces one history per patient atomically
+        Optional<MedicalHistory> savedHistory = medicalHistoryRepository.createIfAbsent(medicalHistory);
+        if (savedHistory.isEmpty()) {
+            return ApiResponse.error("Medical history already exists for this patient. Use update instead.");
+        }
+        return ApiResponse.success("Medical history created successfully", convertToDTO(savedHistory.get()));
     }
     
     @Override
@@ -3,18 +3,19 @@ package com.cosmicdoc.opdmanagement.service.impl;
 import com.cosmicdoc.opdmanagement.exception.ResourceNotFoundException;
 import com.cosmicdoc.opdmanagement.model.FirestoreService;
 import com.cosmicdoc.opdmanagement.model.Service;
+import com.cosmicdoc.opdmanagement.service.ServiceCatalogCache;
 import com.cosmicdoc.opdmanagement.service.ServiceManagementService;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
 import com.google.firebase.cloud.FirestoreClient;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
 
 /**
  * Implementation of ServiceManagementService with Firestore integration
@@ -25,6 +26,13 @@ public class ServiceManagementServiceImpl implements ServiceManagementService {
 
     private static final String COLLECTION_NAME = "services";
 
+    private final ServiceCatalogCache serviceCatalogCache;
+
+    @Autowired
+    public ServiceManagementServiceImpl(ServiceCatalogCache serviceCatalogCache) {
+        this.serviceCatalogCache = serviceCatalogCache;
+    }
+
     private Firestore getFirestore() {
         return FirestoreClient.getFirestore();
     }
@@ -58,6 +66,7 @@ public class ServiceManagementServiceImpl implements ServiceManagementService {
             // Save to Firestore
             getFirestore().collection(COLLECTION_NAME).document(service.getId())
                 .set(firestoreService).get();
+            serviceCatalogCache.put(service);
             
             log.info("Service created with ID: {}", service.getId());
             return service;
@@ -183,6 +192,7 @@ public class ServiceManagementServiceImpl implements ServiceManagementService {
             
             FirestoreService firestoreService = FirestoreService.fromService(service);
             getFirestore().collection(COLLECTION_NAME).document(id).set(firestoreService).get();
+            serviceCatalogCache.put(service);
             
             log.info("Service updated: {}", service.getName());
             return service;
@@ -207,6 +217,7 @@ public class ServiceManagementServiceImpl implements ServiceManagementService {
             
             // Delete the document
             getFirestore().collection(COLLECTION_NAME).document(id).delete().get();
+            serviceCatalogCache.remove(id);
             
             log.info("Service deleted with ID: {}", id);
             return true;
@@ -233,6 +244,7 @@ public class ServiceManagementServiceImpl implements ServiceManagementService {
             FirestoreService firestoreService = FirestoreService.fromService(service);
             getFirestore().collection(COLLECTION_NAME).document(id)
                 .set(firestoreService).get();
+            serviceCatalogCache.put(service);
             
             log.info("Service status updated: {}", active);
             return service;
@@ -245,19 +257,18 @@ public class ServiceManagementServiceImpl implements ServiceManagementService {
 
     @Override
     public List<com.cosmicdoc.opdmanagement.model.Service> searchServicesByName(String name) {
+        return searchServicesByName(name, 0);
+    }
+
+    @Override
+    public List<com.cosmicdoc.opdmanagement.model.Service> searchServicesByName(String name, int limit) {
         try {
-            log.info("Searching for services with name containing: {}", name);
-            
-            // Firebase doesn't support direct contains/like queries, so we need to fetch all and filter
-            List<com.cosmicdoc.opdmanagement.model.Service> allServices = getAllServices();
+            log.debug("Searching for services matching: {}", name);
             
-            // Filter services by name containing the search term (case-insensitive)
-            List<com.cosmicdoc.opdmanagement.model.Service> matchingServices = allServices.stream()
-                .filter(service -> service.getName() != null && 
-                                  service.getName().toLowerCase().contains(name.toLowerCase()))
-                .collect(Collectors.toList());
+            // Served from the in-memory n-gram index instead of a full collection read
+            List<com.cosmicdoc.opdmanagement.model.Service> matchingServices = serviceCatalogCache.search(name, limit);
             
-            log.info("Found {} services matching: {}", matchingServices.size(), name);
+            log.debug("Found {} services matching: {}", matchingServices.size(), name);
             return matchingServices;
         } catch (Exception e) {
             log.error("Error searching services by name: {}", name, e);
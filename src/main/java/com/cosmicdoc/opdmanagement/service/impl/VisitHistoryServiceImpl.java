@@ -1,7 +1,9 @@
 package com.cosmicdoc.opdmanagement.service.impl;
 
 import com.cosmicdoc.opdmanagement.dto.VisitHistoryDTO;
+import com.cosmicdoc.opdmanagement.dto.VisitTimelineDTO;
 import com.cosmicdoc.opdmanagement.model.VisitHistory;
+import com.cosmicdoc.opdmanagement.model.VisitHistoryPage;
 import com.cosmicdoc.opdmanagement.repository.VisitHistoryRepository;
 import com.cosmicdoc.opdmanagement.response.ApiResponse;
 import com.cosmicdoc.opdmanagement.service.VisitHistoryService;
@@ -49,6 +51,27 @@ public class VisitHistoryServiceImpl implements VisitHistoryService {
         }
     }
     
+    @Override
+    public ApiResponse<VisitTimelineDTO> getVisitTimeline(String patientId, int limit, String cursor, boolean summary) {
+        VisitHistoryPage page;
+        try {
+            page = visitHistoryRepository.findTimelineByPatientId(patientId, limit, cursor, summary);
+        } catch (IllegalArgumentException e) {
+            return ApiResponse.error(e.getMessage());
+        }
+        List<VisitHistoryDTO> dtoList = page.getVisits().stream()
+                .map(this::convertToDTO)
+                .collect(Collectors.toList());
+        VisitTimelineDTO timeline = new VisitTimelineDTO(dtoList, page.getNextCursor(), page.getNextCursor() != null);
+        return ApiResponse.success("Visit timeline retrieved successfully", timeline);
+    }
+    
+    @Override
+    public ApiResponse<Integer> migrateVisitTimestamps() {
+        int updated = visitHistoryRepository.migrateVisitTimestamps();
+        return ApiResponse.success("Visit timestamps migrated", updated);
+    }
+    
     @Override
     public ApiResponse<VisitHistoryDTO> createVisitHistory(VisitHistoryDTO visitHistoryDTO) {
         VisitHistory visitHistory = convertToEntity(visitHistoryDTO);
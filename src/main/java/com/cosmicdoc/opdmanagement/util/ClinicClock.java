@@ -0,0 +1,179 @@
+package com.cosmicdoc.opdmanagement.util;
+
+import com.google.cloud.Timestamp;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dates and times in the clinic's time zone.
+ *
+ * Appointment dates are stored as Firestore Timestamps but booked and queried as local clinic
+ * days, so every conversion has to use the same zone regardless of where the service runs
+ * (Cloud Run defaults to UTC). Day and month boundaries are computed once per date and cached;
+ * ranges are half-open, [start, end), so a day query covers exactly that day's index range.
+ *
+ * Appointments written before this class existed were encoded in the writing host's zone and
+ * have no dateZone field. Until AppointmentTimeZoneMigration re-encodes them, they are read as
+ * if written in app.clinic.legacy-time-zone, so reading and saving one back keeps its time.
+ */
+@Component
+@Slf4j
+public class ClinicClock {
+
+    public static final String DEFAULT_TIME_ZONE = "Asia/Kolkata";
+    public static final String DEFAULT_LEGACY_TIME_ZONE = "UTC";
+    private static final int MAX_CACHED_RANGES = 1000;
+
+    // For model classes, which are created by Firestore rather than Spring. Until the bean
+    // exists (tests, early startup) use the same setting Spring would, never the host zone.
+    private static volatile ZoneId clinicZone = ZoneId.of(System.getProperty("app.clinic.time-zone",
+            System.getenv().getOrDefault("APP_CLINIC_TIME_ZONE", DEFAULT_TIME_ZONE)));
+    private static volatile ZoneId legacyZone = ZoneId.of(System.getProperty("app.clinic.legacy-time-zone",
+            System.getenv().getOrDefault("APP_CLINIC_LEGACY_TIME_ZONE", DEFAULT_LEGACY_TIME_ZONE)));
+
+    private final ZoneId zone;
+    private final Clock clock;
+    private final Map<LocalDate, Range> dayRanges = new ConcurrentHashMap<>();
+    private final Map<YearMonth, Range> monthRanges = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ClinicClock(@Value("${app.clinic.time-zone:Asia/Kolkata}") String timeZone,
+                       @Value("${app.clinic.legacy-time-zone:UTC}") String legacyTimeZone) {
+        this.zone = ZoneId.of(timeZone);
+        this.clock = Clock.system(zone);
+        clinicZone = zone;
+        legacyZone = ZoneId.of(legacyTimeZone);
+        log.info("Clinic time zone is {}, unmigrated appointments are read as {}", zone, legacyZone);
+    }
+
+    public ClinicClock(String timeZone) {
+        this(timeZone, DEFAULT_LEGACY_TIME_ZONE);
+    }
+
+    /**
+     * Zone of the clinic, for code that can't have the clock injected
+     */
+    public static ZoneId zone() {
+        return clinicZone;
+    }
+
+    /**
+     * Zone appointments without a dateZone were written in
+     */
+    public static ZoneId legacyZone() {
+        return legacyZone;
+    }
+
+    /**
+     * Re-encode a timestamp written in the legacy zone so it has the same wall-clock time in
+     * the clinic zone
+     */
+    public static Timestamp fromLegacyZone(Timestamp timestamp) {
+        ZoneId from = legacyZone;
+        ZoneId to = clinicZone;
+        if (timestamp == null || from.equals(to)) {
+            return timestamp;
+        }
+        return toTimestamp(LocalDateTime.ofInstant(toInstant(timestamp), from).atZone(to).toInstant());
+    }
+
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    public LocalDate today() {
+        return LocalDate.now(clock);
+    }
+
+    public LocalDateTime now() {
+        return LocalDateTime.now(clock);
+    }
+
+    /**
+     * Start of the given day and start of the next one
+     */
+    public Range dayRange(LocalDate date) {
+        Range range = dayRanges.get(date);
+        if (range == null) {
+            range = new Range(startOf(date), startOf(date.plusDays(1)));
+            cache(dayRanges, date, range);
+        }
+        return range;
+    }
+
+    /**
+     * Start of the first day of the month and start of the next month
+     */
+    public Range monthRange(YearMonth month) {
+        Range range = monthRanges.get(month);
+        if (range == null) {
+            range = new Range(startOf(month.atDay(1)), startOf(month.plusMonths(1).atDay(1)));
+            cache(monthRanges, month, range);
+        }
+        return range;
+    }
+
+    public Timestamp startOf(LocalDate date) {
+        return toTimestamp(date.atStartOfDay(zone).toInstant());
+    }
+
+    public Timestamp toTimestamp(LocalDateTime dateTime) {
+        return toTimestamp(dateTime.atZone(zone).toInstant());
+    }
+
+    public LocalDateTime toLocalDateTime(Timestamp timestamp) {
+        return LocalDateTime.ofInstant(toInstant(timestamp), zone);
+    }
+
+    public LocalDate toLocalDate(Timestamp timestamp) {
+        return toInstant(timestamp).atZone(zone).toLocalDate();
+    }
+
+    private static Timestamp toTimestamp(Instant instant) {
+        return Timestamp.ofTimeSecondsAndNanos(instant.getEpochSecond(), instant.getNano());
+    }
+
+    private static Instant toInstant(Timestamp timestamp) {
+        return Instant.ofEpochSecond(timestamp.getSeconds(), timestamp.getNanos());
+    }
+
+    private static <K> void cache(Map<K, Range> cache, K key, Range range) {
+        // Lookups cluster around today, so dropping everything on overflow is cheap enough
+        if (cache.size() >= MAX_CACHED_RANGES) {
+            cache.clear();
+        }
+        cache.put(key, range);
+    }
+
+    /**
+     * Timestamp range with an inclusive start and exclusive end
+     */
+    public static final class Range {
+        private final Timestamp start;
+        private final Timestamp end;
+
+        Range(Timestamp start, Timestamp end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public Timestamp getStart() {
+            return start;
+        }
+
+        public Timestamp getEnd() {
+            return end;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.cosmicdoc.opdmanagement.util;
+
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QuerySnapshot;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot listener that comes back after errors.
+ *
+ * Firestore ends a listener for good once it reports an error, so an in-memory mirror fed
+ * by a plain listener silently goes stale. This wrapper removes the failed registration,
+ * tells the owner (so it can fall back to direct reads), and registers again with
+ * exponential backoff. The first snapshot of every registration holds the whole result set
+ * and is flagged as initial, so the owner can rebuild rather than apply it as changes and
+ * drop documents that were deleted while the listener was down.
+ */
+@Slf4j
+public class ResilientSnapshotListener {
+
+    private static final long BASE_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60 * 1000;
+
+    /**
+     * Receives the snapshots of the current registration
+     */
+    public interface Handler {
+        void onSnapshot(QuerySnapshot snapshot, boolean initial);
+    }
+
+    private final String name;
+    private final Query query;
+    private final Handler handler;
+    private final Runnable onError;
+    private final ScheduledExecutorService retryExecutor;
+
+    private ListenerRegistration registration;
+    private int generation;
+    private int failures;
+    private boolean stopped;
+
+    /**
+     * @param name Name for log messages
+     * @param query Query to listen to
+     * @param handler Called with every snapshot
+     * @param onError Called after the listener failed, before it is registered again
+     */
+    public ResilientSnapshotListener(String name, Query query, Handler handler, Runnable onError) {
+        this.name = name;
+        this.query = query;
+        this.handler = handler;
+        this.onError = onError;
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-listener-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized void start() {
+        stopped = false;
+        register();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (registration != null) {
+            registration.remove();
+            registration = null;
+        }
+        retryExecutor.shutdownNow();
+    }
+
+    private synchronized void register() {
+        if (stopped) {
+            return;
+        }
+        int current = ++generation;
+        boolean[] initial = {true};
+        try {
+            registration = query.addSnapshotListener((snapshot, error) -> {
+                if (!isCurrent(current)) {
+                    return;
+                }
+                if (error != null) {
+                    failed(current, error);
+                    return;
+                }
+                if (snapshot != null) {
+                    synchronized (this) {
+                        failures = 0;
+                    }
+                    handler.onSnapshot(snapshot, initial[0]);
+                    initial[0] = false;
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warn("Could not register {} listener: {}", name, e.getMessage());
+            scheduleRetry();
+        }
+    }
+
+    private synchronized boolean isCurrent(int registrationGeneration) {
+        return !stopped && registrationGeneration == generation;
+    }
+
+    private void failed(int registrationGeneration, FirestoreException error) {
+        synchronized (this) {
+            if (!isCurrent(registrationGeneration)) {
+                return;
+            }
+            if (registration != null) {
+                registration.remove();
+                registration = null;
+            }
+            // Ignore anything the failed registration still delivers
+            generation++;
+        }
+        log.warn("{} listener failed, registering again: {}", name, error.getMessage());
+        try {
+            onError.run();
+        } finally {
+            scheduleRetry();
+        }
+    }
+
+    private synchronized void scheduleRetry() {
+        if (stopped) {
+            return;
+        }
+        long delay = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(failures, 6));
+        failures++;
+        retryExecutor.schedule(this::register, delay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,139 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.util.ClinicClock;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Transaction;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Concurrency check for bill numbers: many threads on several service instances share one
+ * counter store, the way instances share the bill_sequences collection.
+ */
+class BillNumberServiceTest {
+
+    private static final int THREADS = 16;
+    private static final int NUMBERS_PER_THREAD = 250;
+    private static final LocalDate DAY = LocalDate.of(2025, 1, 1);
+    private static final String PREFIX = "CM-";
+    private static final String COUNTER_ID = "CM-20250101";
+
+    // Counter documents by ID, only touched inside the simulated transaction
+    private final Map<String, Long> counters = new HashMap<>();
+    private Firestore firestore;
+    private ClinicClock clinicClock;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        firestore = mock(Firestore.class);
+        clinicClock = new ClinicClock("Asia/Kolkata");
+
+        CollectionReference collection = mock(CollectionReference.class);
+        DocumentReference counter = mock(DocumentReference.class);
+        when(firestore.collection("bill_sequences")).thenReturn(collection);
+        when(collection.document(COUNTER_ID)).thenReturn(counter);
+
+        DocumentSnapshot snapshot = mock(DocumentSnapshot.class);
+        when(snapshot.exists()).thenAnswer(invocation -> counters.containsKey(COUNTER_ID));
+        when(snapshot.getLong("next")).thenAnswer(invocation -> counters.get(COUNTER_ID));
+
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.get(counter)).thenReturn(ApiFutures.immediateFuture(snapshot));
+        when(transaction.set(eq(counter), anyMap())).thenAnswer(invocation -> {
+            Map<String, Object> fields = invocation.getArgument(1);
+            counters.put(COUNTER_ID, (Long) fields.get("next"));
+            return transaction;
+        });
+
+        // Transactions on one counter document are serialized, as in Firestore
+        when(firestore.runTransaction(any(Transaction.Function.class))).thenAnswer(invocation -> {
+            Transaction.Function<Object> function = invocation.getArgument(0);
+            synchronized (counters) {
+                return ApiFutures.immediateFuture(function.updateCallback(transaction));
+            }
+        });
+    }
+
+    @Test
+    void numbersAreUniqueAndGapFreeWithSingleNumberBlocks() throws Exception {
+        List<Long> sequences = allocateConcurrently(1, 2);
+
+        TreeSet<Long> distinct = new TreeSet<>(sequences);
+        assertEquals(sequences.size(), distinct.size(), "duplicate bill numbers");
+        assertEquals(1L, distinct.first());
+        assertEquals((long) sequences.size(), distinct.last(), "gap in bill numbers");
+    }
+
+    @Test
+    void numbersAreUniqueWithLeasedBlocks() throws Exception {
+        List<Long> sequences = allocateConcurrently(20, 3);
+
+        TreeSet<Long> distinct = new TreeSet<>(sequences);
+        assertEquals(sequences.size(), distinct.size(), "duplicate bill numbers");
+        assertTrue(distinct.first() >= 1);
+        assertTrue(distinct.last() < counters.get(COUNTER_ID), "number handed out beyond the leased blocks");
+    }
+
+    /**
+     * Allocate numbers for one prefix and day from several instances and threads at once
+     */
+    private List<Long> allocateConcurrently(int blockSize, int instances) throws Exception {
+        List<BillNumberService> services = new ArrayList<>();
+        for (int i = 0; i < instances; i++) {
+            services.add(new BillNumberService(firestore, clinicClock, blockSize));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<Long>>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            BillNumberService service = services.get(t % instances);
+            Callable<List<Long>> worker = () -> {
+                start.await();
+                List<Long> allocated = new ArrayList<>();
+                for (int i = 0; i < NUMBERS_PER_THREAD; i++) {
+                    String number = service.nextNumber(PREFIX, DAY);
+                    assertTrue(number.startsWith(COUNTER_ID), number);
+                    allocated.add(Long.parseLong(number.substring(COUNTER_ID.length())));
+                }
+                return allocated;
+            };
+            results.add(executor.submit(worker));
+        }
+        start.countDown();
+
+        List<Long> sequences = new ArrayList<>();
+        for (Future<List<Long>> result : results) {
+            sequences.addAll(result.get(30, TimeUnit.SECONDS));
+        }
+        executor.shutdownNow();
+        assertEquals(THREADS * NUMBERS_PER_THREAD, sequences.size());
+        return sequences;
+    }
+}
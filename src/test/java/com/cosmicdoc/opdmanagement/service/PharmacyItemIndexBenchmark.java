@@ -0,0 +1,111 @@
+package com.cosmicdoc.opdmanagement.service;
+
+import com.cosmicdoc.opdmanagement.model.PharmacyItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pharmacy search over a synthetic 50k SKU catalog: the in-memory index against the
+ * substring scan that findByNameContaining used to do over the whole collection.
+ *
+ * Not part of mvn test; run main() from the IDE, or after mvn test-compile:
+ * java -cp target/test-classes:target/classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout) \
+ *     com.cosmicdoc.opdmanagement.service.PharmacyItemIndexBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PharmacyItemIndexBenchmark {
+
+    private static final String[] STEMS = {
+            "paracetamol", "amoxicillin", "azithromycin", "cetirizine", "metformin", "atorvastatin",
+            "omeprazole", "pantoprazole", "ibuprofen", "diclofenac", "amlodipine", "losartan",
+            "salbutamol", "montelukast", "ondansetron", "ranitidine", "levothyroxine", "glimepiride"
+    };
+    private static final String[] FORMS = {"tablet", "capsule", "syrup", "injection", "suspension", "gel"};
+    private static final String[] CATEGORIES = {"analgesic", "antibiotic", "antihistamine", "antidiabetic",
+            "cardiac", "gastro", "respiratory", "thyroid"};
+    private static final String[] MANUFACTURERS = {"Cipla", "Sun Pharma", "Lupin", "Zydus", "Mankind",
+            "Dr Reddys", "Torrent", "Alkem"};
+
+    @Param({"50000"})
+    public int skus;
+
+    @Param({"ol", "para", "cillin 500", "zydus"})
+    public String query;
+
+    private PharmacyItemIndex index;
+    private List<PharmacyItem> catalog;
+
+    @Setup
+    public void setUp() {
+        // Firestore is only used by the listener, which the benchmark doesn't start
+        index = new PharmacyItemIndex(null, new LowStockFeed(), 10);
+        catalog = new ArrayList<>(skus);
+        Random random = new Random(42);
+        for (int i = 0; i < skus; i++) {
+            PharmacyItem item = new PharmacyItem();
+            item.setId("sku-" + i);
+            item.setName(STEMS[random.nextInt(STEMS.length)] + " " + (50 * (1 + random.nextInt(20)))
+                    + " " + FORMS[random.nextInt(FORMS.length)]);
+            item.setCategory(CATEGORIES[random.nextInt(CATEGORIES.length)]);
+            item.setManufacturer(MANUFACTURERS[random.nextInt(MANUFACTURERS.length)]);
+            item.setStockQuantity(random.nextInt(500));
+            item.setExpiryDate(LocalDate.of(2026, 1, 1).plusDays(random.nextInt(720)));
+            item.setIsActive(true);
+            catalog.add(item);
+            index.put(item);
+        }
+    }
+
+    @Benchmark
+    public List<PharmacyItem> indexSearch() {
+        return index.search(query, 20);
+    }
+
+    @Benchmark
+    public List<PharmacyItem> indexNameContaining() {
+        return index.findByNameContaining(query);
+    }
+
+    /**
+     * What findByNameContaining did before the index: test every item's name
+     */
+    @Benchmark
+    public List<PharmacyItem> scanNameContaining() {
+        String term = query.toLowerCase(Locale.ROOT);
+        List<PharmacyItem> results = new ArrayList<>();
+        for (PharmacyItem item : catalog) {
+            if (item.getName() != null && item.getName().toLowerCase(Locale.ROOT).contains(term)) {
+                results.add(item);
+            }
+        }
+        return results;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PharmacyItemIndexBenchmark.class.getSimpleName()).build()).run();
+    }
+}